@@ -0,0 +1,70 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.bench;
+
+import com.shuffle.chan.BasicChan;
+import com.shuffle.chan.BasicInbox;
+import com.shuffle.chan.Inbox;
+import com.shuffle.chan.Send;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fills up a chan and an inbox and then empties them again in the same thread, which
+ * measures the cost of each message without any contention. InboxBenchmark measures
+ * the case in which many threads are sending at once.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChanBenchmark {
+
+    @Param({"1", "100"})
+    public int messages;
+
+    @Benchmark
+    public void chan(Blackhole bh) throws InterruptedException {
+        BasicChan<Integer> chan = new BasicChan<>(messages);
+
+        for (int i = 0; i < messages; i++) {
+            chan.send(i);
+        }
+        chan.close();
+
+        Integer x;
+        while ((x = chan.receive()) != null) {
+            bh.consume(x);
+        }
+    }
+
+    @Benchmark
+    public void inbox(Blackhole bh) throws InterruptedException {
+        Inbox<Integer, Integer> inbox = new BasicInbox<>(messages);
+        Send<Integer> send = inbox.receivesFrom(0);
+
+        for (int i = 0; i < messages; i++) {
+            send.send(i);
+        }
+        inbox.close();
+
+        Inbox.Envelope<Integer, Integer> x;
+        while ((x = inbox.receive()) != null) {
+            bh.consume(x);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.bench;
+
+import com.shuffle.chan.BasicInbox;
+import com.shuffle.chan.Inbox;
+import com.shuffle.chan.RingInbox;
+import com.shuffle.chan.Send;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Four network threads sending into one inbox which is drained by a single protocol thread.
+ * A send into a full inbox fails immediately, so the score of receive is the number of
+ * messages which actually got through.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class InboxBenchmark {
+
+    @State(Scope.Group)
+    public static class Shared {
+        @Param({"basic", "ring"})
+        public String inbox;
+
+        Inbox<Integer, Integer> in;
+        final AtomicInteger peers = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void setup() {
+            in = inbox.equals("ring")
+                    ? new RingInbox<Integer, Integer>(1024)
+                    : new BasicInbox<Integer, Integer>(1024);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws InterruptedException {
+            in.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Peer {
+        Send<Integer> send;
+
+        @Setup(Level.Trial)
+        public void setup(Shared shared) {
+            send = shared.in.receivesFrom(shared.peers.incrementAndGet());
+        }
+    }
+
+    @Benchmark
+    @Group("inbox")
+    @GroupThreads(4)
+    public boolean send(Peer peer) throws InterruptedException {
+        try {
+            return peer.send.send(1);
+        } catch (IllegalStateException e) {
+            // The BasicInbox throws this when it is full.
+            return false;
+        }
+    }
+
+    @Benchmark
+    @Group("inbox")
+    @GroupThreads(1)
+    public Inbox.Envelope<Integer, Integer> receive(Shared shared) throws InterruptedException {
+        // A timeout so that the receiver is not left waiting when the senders stop.
+        return shared.in.receive(1, TimeUnit.MILLISECONDS);
+    }
+}
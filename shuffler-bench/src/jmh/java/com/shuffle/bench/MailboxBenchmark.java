@@ -0,0 +1,154 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.bench;
+
+import com.shuffle.bitcoin.VerificationKey;
+import com.shuffle.mock.MockSessionIdentifier;
+import com.shuffle.mock.MockVerificationKey;
+import com.shuffle.p2p.Bytestring;
+import com.shuffle.player.Message;
+import com.shuffle.protocol.Mailbox;
+import com.shuffle.protocol.message.MessageFactory;
+import com.shuffle.protocol.message.Packet;
+import com.shuffle.protocol.message.Phase;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every other player sends a message in each phase, but they all arrive in reverse order
+ * of phase, so the mailbox has to hold on to almost all of them before it can return the
+ * ones it is waiting for. At the end, all the packets of each phase are looked up again.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MailboxBenchmark {
+
+    private static final Phase[] phases = {
+            Phase.Announcement,
+            Phase.Shuffling,
+            Phase.BroadcastOutput,
+            Phase.EquivocationCheck,
+            Phase.VerificationAndSubmission};
+
+    @Param({"10", "50", "200"})
+    public int players;
+
+    private static class BenchPacket implements Packet {
+        private final Message payload;
+        private final Phase phase;
+        private final VerificationKey from;
+        private final VerificationKey to;
+
+        BenchPacket(Message payload, Phase phase, VerificationKey from, VerificationKey to) {
+            this.payload = payload;
+            this.phase = phase;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public com.shuffle.protocol.message.Message payload() {
+            return payload;
+        }
+
+        @Override
+        public Phase phase() {
+            return phase;
+        }
+
+        @Override
+        public VerificationKey from() {
+            return from;
+        }
+
+        @Override
+        public VerificationKey to() {
+            return to;
+        }
+
+        @Override
+        public Bytestring signature() {
+            return null;
+        }
+    }
+
+    // Delivers the same packets in the same order every time.
+    private static class Replay implements MessageFactory {
+        private final List<Packet> packets;
+        private int next = 0;
+
+        Replay(List<Packet> packets) {
+            this.packets = packets;
+        }
+
+        @Override
+        public com.shuffle.protocol.message.Message make() {
+            return null;
+        }
+
+        @Override
+        public Packet receive() {
+            return next < packets.size() ? packets.get(next++) : null;
+        }
+
+        @Override
+        public Packet receive(long timeout, TimeUnit unit) {
+            return receive();
+        }
+    }
+
+    private final VerificationKey me = new MockVerificationKey(0);
+    private final List<VerificationKey> keys = new ArrayList<>();
+    private final List<Packet> packets = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i <= players; i++) {
+            keys.add(new MockVerificationKey(i));
+        }
+
+        MockSessionIdentifier session = new MockSessionIdentifier("bench");
+        for (int p = phases.length - 1; p >= 0; p--) {
+            for (int i = 1; i <= players; i++) {
+                VerificationKey from = keys.get(i);
+                packets.add(new BenchPacket(
+                        new Message(session, from, null), phases[p], from, me));
+            }
+        }
+    }
+
+    @Benchmark
+    public void receive(Blackhole bh) throws Exception {
+        Mailbox mailbox = new Mailbox(me, keys, new Replay(packets));
+
+        for (Phase phase : phases) {
+            Set<VerificationKey> from = new HashSet<>(keys);
+            bh.consume(mailbox.receiveFromMultiple(from, phase));
+        }
+
+        for (Phase phase : phases) {
+            bh.consume(mailbox.getPacketsByPhase(phase));
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.bench;
+
+import com.shuffle.bitcoin.SigningKey;
+import com.shuffle.bitcoin.Transaction;
+import com.shuffle.bitcoin.VerificationKey;
+import com.shuffle.chan.BasicChan;
+import com.shuffle.chan.Inbox;
+import com.shuffle.chan.Send;
+import com.shuffle.chan.packet.JavaMarshaller;
+import com.shuffle.chan.packet.Marshaller;
+import com.shuffle.chan.packet.Packet;
+import com.shuffle.chan.packet.Signed;
+import com.shuffle.chan.packet.SignedMarshaller;
+import com.shuffle.mock.MockAddress;
+import com.shuffle.mock.MockEncryptionKey;
+import com.shuffle.mock.MockMarshallers;
+import com.shuffle.mock.MockSessionIdentifier;
+import com.shuffle.mock.MockSigningKey;
+import com.shuffle.p2p.Bytestring;
+import com.shuffle.player.BinaryMarshaller;
+import com.shuffle.player.Messages;
+import com.shuffle.player.P;
+import com.shuffle.protocol.message.Message;
+import com.shuffle.protocol.message.Phase;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the JavaMarshaller with the BinaryMarshaller on a shuffle message containing
+ * the given number of encrypted addresses. The whole path that a message takes is measured
+ * as well: encode, sign, verify, and decode.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MarshallerBenchmark {
+
+    @Param({"java", "binary"})
+    public String format;
+
+    @Param({"5", "50"})
+    public int addresses;
+
+    private final SigningKey sk = new MockSigningKey(1);
+    private final VerificationKey vk = sk.VerificationKey();
+
+    private Marshaller<Packet<VerificationKey, P>> packets;
+    private Marshaller<Signed<Packet<VerificationKey, P>>> signed;
+
+    private Signed<Packet<VerificationKey, P>> packet;
+    private Bytestring encoded;
+
+    @Setup
+    public void setup() throws Exception {
+        if (format.equals("binary")) {
+            packets = new BinaryMarshaller(
+                    MockMarshallers.session,
+                    MockMarshallers.verificationKey,
+                    MockMarshallers.address,
+                    MockMarshallers.encryptionKey,
+                    MockMarshallers.decryptionKey,
+                    new JavaMarshaller<Transaction>());
+            signed = new SignedMarshaller<>(packets);
+        } else {
+            packets = new JavaMarshaller<>();
+            signed = new JavaMarshaller<>();
+        }
+
+        Messages messages = new Messages(new MockSessionIdentifier("bench"), sk,
+                new HashMap<VerificationKey, Send<Signed<Packet<VerificationKey, P>>>>(),
+                new BasicChan<Inbox.Envelope<VerificationKey,
+                        Signed<Packet<VerificationKey, P>>>>(),
+                Messages.Settings.defaults.marshaller(packets));
+
+        Message m = messages.make();
+        for (int i = 0; i < addresses; i++) {
+            m = m.attach(new MockEncryptionKey(i).encrypt(new MockAddress(i)));
+        }
+
+        packet = ((Messages.SignedPacket) m.send(Phase.Shuffling, vk)).packet;
+        encoded = signed.marshall(packet);
+    }
+
+    @Benchmark
+    public Bytestring encode() {
+        return signed.marshall(packet);
+    }
+
+    @Benchmark
+    public Signed<Packet<VerificationKey, P>> decode() {
+        return signed.unmarshall(encoded);
+    }
+
+    // Everything that happens to a message between two players.
+    @Benchmark
+    public boolean roundTrip() {
+        Bytestring signature = sk.sign(packets.marshall(packet.message));
+        Signed<Packet<VerificationKey, P>> received = signed.unmarshall(signed.marshall(packet));
+
+        return vk.verify(packets.marshall(received.message), signature);
+    }
+}
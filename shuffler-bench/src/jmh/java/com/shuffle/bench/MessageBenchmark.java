@@ -0,0 +1,75 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.bench;
+
+import com.shuffle.bitcoin.Address;
+import com.shuffle.mock.MockAddress;
+import com.shuffle.mock.MockSessionIdentifier;
+import com.shuffle.mock.MockVerificationKey;
+import com.shuffle.player.Message;
+import com.shuffle.protocol.FormatException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of building a message out of n addresses and of reading it back, as is done
+ * with the shuffle message in phase two. Both should grow linearly in n.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int n;
+
+    private Message empty;
+    private Address[] addrs;
+    private com.shuffle.protocol.message.Message full;
+
+    @Setup
+    public void setup() {
+        empty = new Message(new MockSessionIdentifier("bench"), new MockVerificationKey(1), null);
+
+        addrs = new Address[n];
+        for (int i = 0; i < n; i++) {
+            addrs[i] = new MockAddress(i);
+        }
+
+        full = construct();
+    }
+
+    @Benchmark
+    public com.shuffle.protocol.message.Message construct() {
+        com.shuffle.protocol.message.Message m = empty;
+        for (Address addr : addrs) {
+            m = m.attach(addr);
+        }
+        return m;
+    }
+
+    @Benchmark
+    public void iterate(Blackhole bh) throws FormatException {
+        com.shuffle.protocol.message.Message m = full;
+        while (!m.isEmpty()) {
+            bh.consume(m.readAddress());
+            m = m.rest();
+        }
+    }
+}
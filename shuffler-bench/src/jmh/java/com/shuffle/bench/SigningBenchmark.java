@@ -0,0 +1,126 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.bench;
+
+import com.shuffle.bitcoin.SigningKey;
+import com.shuffle.bitcoin.Transaction;
+import com.shuffle.bitcoin.VerificationKey;
+import com.shuffle.chan.BasicChan;
+import com.shuffle.chan.Inbox;
+import com.shuffle.chan.Send;
+import com.shuffle.chan.packet.JavaMarshaller;
+import com.shuffle.chan.packet.Marshaller;
+import com.shuffle.chan.packet.Packet;
+import com.shuffle.chan.packet.Signed;
+import com.shuffle.chan.packet.SigningSend;
+import com.shuffle.chan.packet.VerifyingSend;
+import com.shuffle.mock.MockAddress;
+import com.shuffle.mock.MockEncryptionKey;
+import com.shuffle.mock.MockMarshallers;
+import com.shuffle.mock.MockSessionIdentifier;
+import com.shuffle.mock.MockSigningKey;
+import com.shuffle.player.BinaryMarshaller;
+import com.shuffle.player.Messages;
+import com.shuffle.player.P;
+import com.shuffle.protocol.message.Message;
+import com.shuffle.protocol.message.Phase;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A packet going through a SigningSend and then a VerifyingSend, which is what happens to
+ * every message between the sender and the receiver, apart from the network.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SigningBenchmark {
+
+    @Param({"java", "binary"})
+    public String format;
+
+    @Param({"5", "50"})
+    public int addresses;
+
+    private final SigningKey sk = new MockSigningKey(1);
+    private final VerificationKey vk = sk.VerificationKey();
+
+    private Packet<VerificationKey, P> packet;
+    private Signed<Packet<VerificationKey, P>> signed;
+
+    private Send<Packet<VerificationKey, P>> signing;
+    private Send<Signed<Packet<VerificationKey, P>>> verifying;
+
+    // Accepts everything and does nothing with it.
+    private static class Sink<X> implements Send<X> {
+        @Override
+        public boolean send(X x) {
+            return true;
+        }
+
+        @Override
+        public void close() {
+
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        Marshaller<Packet<VerificationKey, P>> marshaller;
+        if (format.equals("binary")) {
+            marshaller = new BinaryMarshaller(
+                    MockMarshallers.session,
+                    MockMarshallers.verificationKey,
+                    MockMarshallers.address,
+                    MockMarshallers.encryptionKey,
+                    MockMarshallers.decryptionKey,
+                    new JavaMarshaller<Transaction>());
+        } else {
+            marshaller = new JavaMarshaller<>();
+        }
+
+        Messages messages = new Messages(new MockSessionIdentifier("bench"), sk,
+                new HashMap<VerificationKey, Send<Signed<Packet<VerificationKey, P>>>>(),
+                new BasicChan<Inbox.Envelope<VerificationKey,
+                        Signed<Packet<VerificationKey, P>>>>(),
+                Messages.Settings.defaults.marshaller(marshaller));
+
+        Message m = messages.make();
+        for (int i = 0; i < addresses; i++) {
+            m = m.attach(new MockEncryptionKey(i).encrypt(new MockAddress(i)));
+        }
+
+        signed = ((Messages.SignedPacket) m.send(Phase.Shuffling, vk)).packet;
+        packet = signed.message;
+
+        verifying = new VerifyingSend<>(
+                new Sink<Signed<Packet<VerificationKey, P>>>(), marshaller, vk);
+        signing = new SigningSend<>(verifying, marshaller, sk);
+    }
+
+    @Benchmark
+    public boolean sign() throws InterruptedException {
+        return signing.send(packet);
+    }
+
+    @Benchmark
+    public boolean verify() throws InterruptedException {
+        return verifying.send(signed);
+    }
+}
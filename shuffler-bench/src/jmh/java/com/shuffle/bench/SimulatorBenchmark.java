@@ -0,0 +1,56 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.bench;
+
+import com.shuffle.bitcoin.SigningKey;
+import com.shuffle.bitcoin.Transaction;
+import com.shuffle.mock.InsecureRandom;
+import com.shuffle.mock.MockCrypto;
+import com.shuffle.mock.MockSessionIdentifier;
+import com.shuffle.monad.Either;
+import com.shuffle.protocol.blame.Matrix;
+import com.shuffle.sim.InitialState;
+import com.shuffle.sim.Simulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole successful round of the protocol among N players, all in the same process.
+ * Every run takes long enough that it is timed individually.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SimulatorBenchmark {
+
+    @Param({"5", "20", "50", "100"})
+    public int players;
+
+    private int seed = 0;
+
+    @Benchmark
+    public Map<SigningKey, Either<Transaction, Matrix>> run() {
+        seed++;
+
+        return Simulator.run(InitialState.successful(
+                new MockSessionIdentifier("bench " + seed),
+                17,
+                new MockCrypto(new InsecureRandom(seed)),
+                players));
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.bench;
+
+import com.shuffle.chan.BasicChan;
+import com.shuffle.chan.Send;
+import com.shuffle.p2p.Bytestring;
+import com.shuffle.p2p.Channel;
+import com.shuffle.p2p.Connection;
+import com.shuffle.p2p.Listener;
+import com.shuffle.p2p.NioTcpChannel;
+import com.shuffle.p2p.Session;
+import com.shuffle.p2p.TcpChannel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A message sent over the loopback interface to a peer which sends it straight back.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TcpBenchmark {
+
+    @Param({"tcp", "nio"})
+    public String channel;
+
+    @Param({"64", "4096"})
+    public int size;
+
+    private static final int PORT = 9101;
+
+    private ExecutorService exec;
+    private Connection<InetSocketAddress> client;
+    private Connection<InetSocketAddress> server;
+    private Session<InetSocketAddress, Bytestring> session;
+    private final BasicChan<Bytestring> replies = new BasicChan<>(10);
+    private Bytestring message;
+
+    // Sends every message back to where it came from.
+    private static class Echo implements Listener<InetSocketAddress, Bytestring> {
+        @Override
+        public Send<Bytestring> newSession(final Session<InetSocketAddress, Bytestring> session) {
+            return new Send<Bytestring>() {
+                @Override
+                public boolean send(Bytestring b) throws InterruptedException {
+                    return session.send(b);
+                }
+
+                @Override
+                public void close() {
+
+                }
+            };
+        }
+    }
+
+    // The client never receives new sessions.
+    private static class Refuse implements Listener<InetSocketAddress, Bytestring> {
+        @Override
+        public Send<Bytestring> newSession(Session<InetSocketAddress, Bytestring> session) {
+            return null;
+        }
+    }
+
+    private Channel<InetSocketAddress, Bytestring> make(InetSocketAddress me) {
+        if (channel.equals("nio")) {
+            return new NioTcpChannel(me, 2);
+        }
+
+        return new TcpChannel(me, exec);
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        exec = Executors.newCachedThreadPool();
+
+        InetAddress local = InetAddress.getLoopbackAddress();
+        InetSocketAddress a = new InetSocketAddress(local, PORT);
+        InetSocketAddress b = new InetSocketAddress(local, PORT + 1);
+
+        Channel<InetSocketAddress, Bytestring> ca = make(a);
+        Channel<InetSocketAddress, Bytestring> cb = make(b);
+
+        server = cb.open(new Echo());
+        client = ca.open(new Refuse());
+        if (server == null || client == null) throw new IllegalStateException();
+
+        session = ca.getPeer(b).openSession(replies);
+        if (session == null) throw new IllegalStateException();
+
+        message = new Bytestring(new byte[size]);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        session.close();
+        client.close();
+        server.close();
+        exec.shutdownNow();
+    }
+
+    @Benchmark
+    public Bytestring roundTrip() throws InterruptedException {
+        session.send(message);
+        return replies.receive();
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.protocol;
+
+import com.shuffle.bitcoin.SigningKey;
+import com.shuffle.bitcoin.VerificationKey;
+import com.shuffle.chan.BasicChan;
+import com.shuffle.chan.Inbox;
+import com.shuffle.chan.Send;
+import com.shuffle.chan.packet.Packet;
+import com.shuffle.chan.packet.Signed;
+import com.shuffle.mock.InsecureRandom;
+import com.shuffle.mock.MockAddress;
+import com.shuffle.mock.MockCoin;
+import com.shuffle.mock.MockCrypto;
+import com.shuffle.mock.MockSessionIdentifier;
+import com.shuffle.mock.MockSigningKey;
+import com.shuffle.player.Messages;
+import com.shuffle.player.P;
+import com.shuffle.protocol.message.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CoinShuffle.shuffle on a message of the given number of addresses. This is in the same
+ * package as CoinShuffle because shuffle is not public.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ShuffleBenchmark {
+
+    @Param({"5", "20", "50", "100"})
+    public int addresses;
+
+    private CoinShuffle shuffle;
+    private Message input;
+
+    @Setup
+    public void setup() throws Exception {
+        SigningKey sk = new MockSigningKey(1);
+
+        Messages messages = new Messages(new MockSessionIdentifier("bench"), sk,
+                new HashMap<VerificationKey, Send<Signed<Packet<VerificationKey, P>>>>(),
+                new BasicChan<Inbox.Envelope<VerificationKey,
+                        Signed<Packet<VerificationKey, P>>>>());
+
+        shuffle = new CoinShuffle(
+                messages, new MockCrypto(new InsecureRandom(1)), new MockCoin());
+
+        input = messages.make();
+        for (int i = 0; i < addresses; i++) {
+            input = input.attach(new MockAddress(i));
+        }
+    }
+
+    @Benchmark
+    public Message shuffle() throws FormatException {
+        return shuffle.shuffle(input);
+    }
+}
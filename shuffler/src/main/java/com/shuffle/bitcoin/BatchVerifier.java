@@ -0,0 +1,101 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.bitcoin;
+
+import com.shuffle.monad.ParallelMap;
+import com.shuffle.p2p.Bytestring;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Checks many signatures at once.
+ */
+public interface BatchVerifier {
+
+    // A claim that a payload has been signed by a given key.
+    final class Claim {
+        public final VerificationKey key;
+        public final Bytestring payload;
+        public final Bytestring signature;
+
+        public Claim(VerificationKey key, Bytestring payload, Bytestring signature) {
+            if (key == null || payload == null || signature == null)
+                throw new NullPointerException();
+
+            this.key = key;
+            this.payload = payload;
+            this.signature = signature;
+        }
+
+        public boolean verify() {
+            return key.verify(payload, signature);
+        }
+
+        @Override
+        public String toString() {
+            return "Claim[" + key + ", " + signature + "]";
+        }
+    }
+
+    // Returns the claims whose signatures are invalid, in the order in which they were given.
+    List<Claim> invalid(List<Claim> claims);
+
+    // Checks every signature in the calling thread.
+    BatchVerifier sequential = new BatchVerifier() {
+        @Override
+        public List<Claim> invalid(List<Claim> claims) {
+            List<Claim> invalid = new ArrayList<>();
+
+            for (Claim claim : claims) {
+                if (!claim.verify()) {
+                    invalid.add(claim);
+                }
+            }
+
+            return invalid;
+        }
+    };
+
+    // Splits up the signatures among the threads of a fork-join pool.
+    class Parallel implements BatchVerifier {
+        private final ParallelMap map;
+
+        // Below threshold signatures, a thread does its work without splitting it further.
+        public Parallel(ForkJoinPool pool, int threshold) {
+            map = new ParallelMap(pool, threshold);
+        }
+
+        public Parallel(ForkJoinPool pool) {
+            this(pool, 4);
+        }
+
+        @Override
+        public List<Claim> invalid(List<Claim> claims) {
+            final List<Claim> list = new ArrayList<>(claims);
+            final boolean[] valid = new boolean[list.size()];
+            map.map(list.size(), new ParallelMap.Function() {
+                @Override
+                public void apply(int i) {
+                    valid[i] = list.get(i).verify();
+                }
+            });
+
+            List<Claim> invalid = new ArrayList<>();
+            for (int i = 0; i < valid.length; i++) {
+                if (!valid[i]) {
+                    invalid.add(list.get(i));
+                }
+            }
+
+            return invalid;
+        }
+    }
+}
@@ -13,9 +13,11 @@ package com.shuffle.bitcoin;
  import com.shuffle.bitcoin.Transaction;
  import com.shuffle.bitcoin.VerificationKey;
 
+ import java.util.Collection;
  import java.util.List;
  import java.util.Map;
  import java.util.Queue;
+ import java.util.concurrent.Future;
 
 /**
  *
@@ -35,11 +37,21 @@ public interface Coin {
 
     long valueHeld(Address addr) throws CoinNetworkException;
 
+    // Looks up the values held in many addresses at once. The lookups may run concurrently,
+    // so the caller can do something else until it needs the result. Lookup.get unwraps
+    // any CoinNetworkException thrown along the way.
+    Future<Map<Address, Long>> valuesHeld(Collection<Address> addrs);
+
     // Returns either a transaction that sent from the given address that caused it to have .
     // insufficient funds or a transaction that sent to a given address that caused it to have
     // insufficient funds.
     Transaction getConflictingTransaction(Address addr, long amount);
 
+    // Like getConflictingTransaction for many addresses at once. Addresses for which there
+    // is no conflicting transaction are left out of the map.
+    Future<Map<Address, Transaction>> getConflictingTransactions(
+            Collection<Address> addrs, long amount);
+
     // Whether the given transaction spends the funds in the given address.
     Transaction getSpendingTransaction(Address addr, long amount);
 }
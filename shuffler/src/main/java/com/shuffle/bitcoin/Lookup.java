@@ -0,0 +1,121 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.bitcoin;
+
+import com.shuffle.monad.NaturalSummableFuture;
+import com.shuffle.monad.Summable;
+import com.shuffle.monad.SummableFuture;
+import com.shuffle.monad.SummableFutureZero;
+import com.shuffle.monad.SummableMap;
+import com.shuffle.monad.SummableMaps;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Implementations of the batched queries in Coin in terms of the single queries. Every address
+ * is looked up in a separate task, so the lookups run concurrently if the executor has
+ * more than one thread.
+ */
+public final class Lookup {
+
+    // Cannot be instantiated. Everything here is static!
+    private Lookup() {
+    }
+
+    // Runs every task in the calling thread, so the future is done when it is returned.
+    public static final Executor immediate = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private static <Y> Future<Map<Address, Y>> all(
+            Collection<Address> addrs,
+            Executor exec,
+            final Query<Y> query) {
+
+        SummableFuture<Map<Address, Y>> sum
+                = new SummableFutureZero<>(new SummableMaps<Address, Y>());
+
+        for (final Address addr : addrs) {
+            FutureTask<Summable.SummableElement<Map<Address, Y>>> task = new FutureTask<>(
+                    new Callable<Summable.SummableElement<Map<Address, Y>>>() {
+                        @Override
+                        public Summable.SummableElement<Map<Address, Y>> call()
+                                throws CoinNetworkException {
+
+                            Y y = query.query(addr);
+                            if (y == null) {
+                                return new SummableMap<>(new HashMap<Address, Y>());
+                            }
+
+                            return new SummableMap<>(addr, y);
+                        }
+                    });
+
+            exec.execute(task);
+            sum = sum.plus(new NaturalSummableFuture<>(task));
+        }
+
+        return sum;
+    }
+
+    private interface Query<Y> {
+        Y query(Address addr) throws CoinNetworkException;
+    }
+
+    public static Future<Map<Address, Long>> valuesHeld(
+            final Coin coin,
+            Collection<Address> addrs,
+            Executor exec) {
+
+        return all(addrs, exec, new Query<Long>() {
+            @Override
+            public Long query(Address addr) throws CoinNetworkException {
+                return coin.valueHeld(addr);
+            }
+        });
+    }
+
+    public static Future<Map<Address, Transaction>> conflictingTransactions(
+            final Coin coin,
+            Collection<Address> addrs,
+            final long amount,
+            Executor exec) {
+
+        return all(addrs, exec, new Query<Transaction>() {
+            @Override
+            public Transaction query(Address addr) {
+                return coin.getConflictingTransaction(addr, amount);
+            }
+        });
+    }
+
+    // Wait for the result of a batched query. If any of the lookups failed, the
+    // exception it threw is thrown here.
+    public static <X> X get(Future<X> future) throws CoinNetworkException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CoinNetworkException) {
+                throw (CoinNetworkException) e.getCause();
+            }
+
+            throw new CoinNetworkException();
+        }
+    }
+}
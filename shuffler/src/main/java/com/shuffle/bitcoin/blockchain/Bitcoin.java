@@ -12,22 +12,36 @@ package com.shuffle.bitcoin.blockchain;
 import com.shuffle.bitcoin.Address;
 import com.shuffle.bitcoin.Coin;
 import com.shuffle.bitcoin.CoinNetworkException;
+import com.shuffle.bitcoin.Lookup;
 import com.shuffle.bitcoin.VerificationKey;
 import com.shuffle.p2p.Bytestring;
 
 import org.bitcoinj.core.AddressFormatException;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
 import org.bitcoinj.core.TransactionOutput;
 import org.bitcoinj.net.discovery.DnsDiscovery;
 import org.bitcoinj.store.BlockStoreException;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public abstract class Bitcoin implements Coin {
 
@@ -35,6 +49,49 @@ public abstract class Bitcoin implements Coin {
     final PeerGroup peerGroup;
     final int minPeers;
 
+    // Where lookups of many addresses at once are run.
+    private final Executor lookups;
+
+    // The number of addresses looked up at the same time by default.
+    private static final int LOOKUP_THREADS = 8;
+
+    // The executor used by every Bitcoin object which is not given one of its own. Its
+    // threads are not started until there is something to look up.
+    private static final class SharedLookups implements Executor {
+        private ExecutorService pool = null;
+
+        @Override
+        public synchronized void execute(Runnable runnable) {
+            if (pool == null) {
+                pool = Executors.newFixedThreadPool(LOOKUP_THREADS, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+
+            pool.execute(runnable);
+        }
+
+        synchronized void shutdown() {
+            if (pool == null) return;
+
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    private static final SharedLookups sharedLookups = new SharedLookups();
+
+    // Stops the threads shared by the Bitcoin objects which were not given an executor.
+    // Lookups which have already begun are finished, and a later lookup starts them again.
+    public static void shutdownLookups() {
+        sharedLookups.shutdown();
+    }
+
     /**
      *
      * The constructor takes in a NetworkParameters variable that determines whether we
@@ -44,14 +101,34 @@ public abstract class Bitcoin implements Coin {
      */
 
     public Bitcoin(NetworkParameters netParams, int minPeers) {
+        this(netParams, minPeers, sharedLookups);
+    }
+
+    public Bitcoin(NetworkParameters netParams, int minPeers, Executor lookups) {
+        if (lookups == null) throw new NullPointerException();
+
         this.netParams = netParams;
         this.minPeers = minPeers;
+        this.lookups = lookups;
         peerGroup = new PeerGroup(netParams);
         peerGroup.setMinBroadcastConnections(minPeers);
         peerGroup.addPeerDiscovery(new DnsDiscovery(netParams));
         peerGroup.startAsync();
     }
 
+    // Shares the network connection of another Bitcoin object. Used by decorators.
+    Bitcoin(Bitcoin bitcoin) {
+        this.netParams = bitcoin.netParams;
+        this.minPeers = bitcoin.minPeers;
+        this.lookups = bitcoin.lookups;
+        this.peerGroup = bitcoin.peerGroup;
+    }
+
+    // A transaction found by another Bitcoin object, which looks itself up through this one.
+    Transaction adopt(Transaction tx) {
+        return new Transaction(tx.hash, tx.bitcoinj, tx.canSend);
+    }
+
     public class Transaction implements com.shuffle.bitcoin.Transaction {
         final String hash;
         private org.bitcoinj.core.Transaction bitcoinj;
@@ -120,7 +197,7 @@ public abstract class Bitcoin implements Coin {
      *
      * To calculate the amount in change to send to the "changeAddresses", we first lookup the
      * transaction associated with an address. We only allow one transaction per address that wants
-     * to shuffle their coins.  We then find the transaction output associated with our address,
+     * to shuffle their coins.  We then find the unspent outputs associated with our address,
      * and see how much value was sent to our address.  We then subtract the "amount" from this
      * value and this is the amount to send to the changeAddress.
      *
@@ -138,32 +215,55 @@ public abstract class Bitcoin implements Coin {
 
         // this section adds inputs to the transaction and adds outputs to the change addresses.
         org.bitcoinj.core.Transaction tx = new org.bitcoinj.core.Transaction(netParams);
+
+        // The histories of all players are looked up first so that any transactions which
+        // we only know by hash can be downloaded together.
+        List<List<Bitcoin.Transaction>> histories = new ArrayList<>(from.size());
+        List<Bitcoin.Transaction> all = new ArrayList<>();
         for (VerificationKey key : from) {
             try {
-                String address = key.address().toString();
-                List<Bitcoin.Transaction> transactions = getAddressTransactions(address);
-                if (transactions.size() > 1) return null;
-                org.bitcoinj.core.Transaction tx2 = getTransaction(transactions.get(0).hash);
-                for (TransactionOutput output : tx2.getOutputs()) {
-                    String addressP2pkh = output.getAddressFromP2PKHScript(netParams).toString();
-                    if (address.equals(addressP2pkh)) {
-                        tx.addInput(output);
-                        if (!changeAddresses.containsKey(key) | changeAddresses.get(key) != null) {
-                            try {
-                                tx.addOutput(output.getValue().subtract(
-                                                org.bitcoinj.core.Coin.SATOSHI.multiply(amount)),
-                                        new org.bitcoinj.core.Address(
-                                                netParams, changeAddresses.get(key).toString()));
-                            } catch (AddressFormatException e) {
-                                e.printStackTrace();
-                            }
-                        }
-                    }
-                }
+                List<Bitcoin.Transaction> transactions
+                        = getAddressTransactions(key.address().toString());
+                if (transactions == null || transactions.size() > 1) return null;
+                histories.add(transactions);
+                all.addAll(transactions);
+            } catch (IOException e) {
+                throw new CoinNetworkException();
+            }
+        }
+
+        try {
+            fill(all);
+        } catch (IOException e) {
+            throw new CoinNetworkException();
+        }
 
+        int i = 0;
+        for (VerificationKey key : from) {
+            String address = key.address().toString();
+
+            List<TransactionOutput> unspent;
+            try {
+                unspent = unspentOutputs(address, histories.get(i++));
             } catch (IOException e) {
                 throw new CoinNetworkException();
             }
+
+            org.bitcoinj.core.Coin value = org.bitcoinj.core.Coin.ZERO;
+            for (TransactionOutput output : unspent) {
+                tx.addInput(output);
+                value = value.add(output.getValue());
+            }
+
+            Address change = changeAddresses.get(key);
+            if (change != null) {
+                try {
+                    tx.addOutput(value.subtract(org.bitcoinj.core.Coin.SATOSHI.multiply(amount)),
+                            new org.bitcoinj.core.Address(netParams, change.toString()));
+                } catch (AddressFormatException e) {
+                    e.printStackTrace();
+                }
+            }
         }
 
         for (Address sendto : to) {
@@ -203,8 +303,9 @@ public abstract class Bitcoin implements Coin {
 
     /**
      *
-     * The sumUnspentTxOutputs takes in a list of transactions, sums the UTXOs pertaining to address,
-     * and returns a long value.  This long value represents the balance of a Bitcoin address in Satoshis.
+     * The getAddressBalance method looks up the transactions of an address, sums the UTXOs pertaining
+     * to address, and returns a long value.  This long value represents the balance of a Bitcoin
+     * address in Satoshis.
      *
      */
 
@@ -213,38 +314,102 @@ public abstract class Bitcoin implements Coin {
         List<Bitcoin.Transaction> txList = getAddressTransactions(address);
 
         long sum = 0;
+        for (TransactionOutput output : unspentOutputs(address, txList)) {
+            sum += output.getValue().getValue();
+        }
+
+        return sum;
+    }
+
+    // Identifies an output by the hash of its transaction and its index.
+    private static final class Outpoint {
+        private final byte[] bytes;
+        private final int hash;
+
+        Outpoint(Sha256Hash txid, long index) {
+            byte[] h = txid.getBytes();
+            bytes = Arrays.copyOf(h, h.length + 4);
+            for (int i = 0; i < 4; i++) {
+                bytes[h.length + i] = (byte) (index >>> (8 * i));
+            }
+            hash = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Outpoint && Arrays.equals(bytes, ((Outpoint) o).bytes);
+        }
+    }
+
+    // Download any transactions which we only know by hash, all at once.
+    void fill(List<Bitcoin.Transaction> txList) throws IOException {
+        List<Bitcoin.Transaction> missing = new ArrayList<>();
+        List<String> hashes = new ArrayList<>();
         for (Bitcoin.Transaction tx : txList) {
-            org.bitcoinj.core.Transaction tx2 = tx.bitcoinj;
-            String txhash = tx.hash;
-            boolean usedInput = false;
-
-            // check that txhash hasn't been used as input in any transactions, if it has, we discard.
-            outerloop:
-            for (Bitcoin.Transaction checkTx : txList) {
-                org.bitcoinj.core.Transaction tempTx = checkTx.bitcoinj;
-                for (TransactionInput input : tempTx.getInputs()) {
-                    if (input.getParentTransaction().getHashAsString().equals(txhash)) {
-                        usedInput = true;
-                        break outerloop;
-                    }
-                }
+            if (tx.bitcoinj == null) {
+                missing.add(tx);
+                hashes.add(tx.hash);
             }
+        }
 
-            // else, we find the specific output in the transaction pertaining to our address, and add the value to sum.
+        if (missing.isEmpty()) return;
 
-            if (!usedInput) {
-                for (TransactionOutput output : tx2.getOutputs()) {
-                    String addressP2pkh = output.getAddressFromP2PKHScript(netParams).toString();
-                    if (address.equals(addressP2pkh)) {
-                        sum += output.getValue().getValue();
-                        break;
-                    }
-                }
+        List<org.bitcoinj.core.Transaction> found = getTransactions(hashes);
+        for (int i = 0; i < missing.size(); i++) {
+            org.bitcoinj.core.Transaction tx = found.get(i);
+            if (tx == null) throw new IOException("Could not find transaction " + hashes.get(i));
+            missing.get(i).bitcoinj = tx;
+        }
+    }
+
+    /**
+     *
+     * Finds the outputs in a list of transactions which were sent to the given address and are
+     * not spent by any other transaction in the list. The spent outputs are collected in one
+     * pass over the inputs, so this takes time proportional to the size of the history.
+     *
+     */
+
+    List<TransactionOutput> unspentOutputs(String address, List<Bitcoin.Transaction> txList)
+            throws IOException {
+
+        fill(txList);
+
+        Set<Outpoint> spent = new HashSet<>();
+        for (Bitcoin.Transaction tx : txList) {
+            for (TransactionInput input : tx.bitcoinj.getInputs()) {
+                if (input.isCoinBase()) continue;
+
+                TransactionOutPoint outpoint = input.getOutpoint();
+                spent.add(new Outpoint(outpoint.getHash(), outpoint.getIndex()));
             }
+        }
+
+        List<TransactionOutput> unspent = new LinkedList<>();
+        for (Bitcoin.Transaction tx : txList) {
+            Sha256Hash txid = tx.bitcoinj.getHash();
+            for (TransactionOutput output : tx.bitcoinj.getOutputs()) {
+                org.bitcoinj.core.Address a = output.getAddressFromP2PKHScript(netParams);
+                if (a == null || !address.equals(a.toString())) continue;
 
+                if (!spent.contains(new Outpoint(txid, output.getIndex()))) {
+                    unspent.add(output);
+                }
+            }
         }
 
-        return sum;
+        return unspent;
+    }
+
+    // Each address is a separate query to the server, so they are run concurrently.
+    @Override
+    public Future<Map<Address, Long>> valuesHeld(Collection<Address> addrs) {
+        return Lookup.valuesHeld(this, addrs, lookups);
     }
 
     // TODO
@@ -253,6 +418,13 @@ public abstract class Bitcoin implements Coin {
         return null;
     }
 
+    @Override
+    public Future<Map<Address, com.shuffle.bitcoin.Transaction>> getConflictingTransactions(
+            Collection<Address> addrs, long amount) {
+
+        return Lookup.conflictingTransactions(this, addrs, amount, lookups);
+    }
+
     // TODO
     @Override
     public com.shuffle.bitcoin.Transaction getSpendingTransaction(Address addr, long amount) {
@@ -264,4 +436,16 @@ public abstract class Bitcoin implements Coin {
 
     abstract org.bitcoinj.core.Transaction getTransaction(String transactionHash)
             throws IOException;
+
+    // Look up many transactions at once. Services which can answer several queries in one
+    // request should override this.
+    List<org.bitcoinj.core.Transaction> getTransactions(List<String> transactionHashes)
+            throws IOException {
+
+        List<org.bitcoinj.core.Transaction> txList = new ArrayList<>(transactionHashes.size());
+        for (String hash : transactionHashes) {
+            txList.add(getTransaction(hash));
+        }
+        return txList;
+    }
 }
@@ -15,6 +15,7 @@ import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import javax.xml.bind.annotation.adapters.HexBinaryAdapter;
 import org.bitcoinj.core.Context;
@@ -46,6 +47,11 @@ public final class BlockchainDotInfo extends Bitcoin {
         super(netParams, minPeers);
     }
 
+    // The executor determines how many addresses are looked up at the same time.
+    public BlockchainDotInfo(NetworkParameters netParams, int minPeers, Executor lookups) {
+        super(netParams, minPeers, lookups);
+    }
+
     /**
      *
      * Given a wallet address, this function looks up the address' balance using Blockchain.info's
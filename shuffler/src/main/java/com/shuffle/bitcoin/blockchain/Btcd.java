@@ -10,15 +10,13 @@ package com.shuffle.bitcoin.blockchain;
 
 import com.shuffle.mock.MockCoin;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import javax.xml.bind.annotation.adapters.HexBinaryAdapter;
 
@@ -27,8 +25,6 @@ import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.params.MainNetParams;
 
-import org.apache.commons.codec.binary.Base64;
-
 import org.json.JSONArray;
 import org.json.JSONObject;
 
@@ -52,16 +48,51 @@ import org.json.JSONObject;
  * you can use the two flags in the command line:
  * "./btcd --addrindex --notls"
  *
+ * By default, btcd is expected at http://127.0.0.1:8334. Another endpoint can be given
+ * in the constructor.
+ *
  */
 public class Btcd extends Bitcoin {
 
-    String rpcuser;
-    String rpcpass;
+    private static final URL defaultEndpoint;
+
+    static {
+        try {
+            defaultEndpoint = new URL("http://127.0.0.1:8334");
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private final JsonRpc rpc;
 
     public Btcd(NetworkParameters netParams, int minPeers, String rpcuser, String rpcpass) {
+        this(netParams, minPeers, rpcuser, rpcpass, defaultEndpoint);
+    }
+
+    public Btcd(NetworkParameters netParams, int minPeers, String rpcuser, String rpcpass,
+                URL endpoint) {
         super(netParams, minPeers);
-        this.rpcuser = rpcuser;
-        this.rpcpass = rpcpass;
+        this.rpc = new JsonRpc(endpoint, rpcuser, rpcpass);
+    }
+
+    // The executor determines how many addresses are looked up at the same time.
+    public Btcd(NetworkParameters netParams, int minPeers, String rpcuser, String rpcpass,
+                Executor lookups) {
+        this(netParams, minPeers, rpcuser, rpcpass, defaultEndpoint, lookups);
+    }
+
+    public Btcd(NetworkParameters netParams, int minPeers, String rpcuser, String rpcpass,
+                URL endpoint, Executor lookups) {
+        super(netParams, minPeers, lookups);
+        this.rpc = new JsonRpc(endpoint, rpcuser, rpcpass);
+    }
+
+    private org.bitcoinj.core.Transaction parse(String hex) {
+        HexBinaryAdapter adapter = new HexBinaryAdapter();
+        byte[] bytearray = adapter.unmarshal(hex);
+        Context.getOrCreate(netParams);
+        return new org.bitcoinj.core.Transaction(netParams, bytearray);
     }
 
     /**
@@ -69,48 +100,29 @@ public class Btcd extends Bitcoin {
      */
     public org.bitcoinj.core.Transaction getTransaction(String transactionHash) throws IOException {
 
-        org.bitcoinj.core.Transaction tx = null;
-        String requestBody = "{\"jsonrpc\":\"2.0\",\"id\":\"null\",\"method\":\"getrawtransaction\", \"params\":[\"" + transactionHash + "\"]}";
-        URL url = new URL("http://127.0.0.1:8334");
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setDoOutput(true);
-        connection.setRequestMethod("POST");
-        connection.setRequestProperty("Content-Type", "application/json");
-        connection.setRequestProperty("Accept", "application/json");
-        Base64 b = new Base64();
-        String authString = rpcuser + ":" + rpcpass;
-        String encoding = b.encodeAsString(authString.getBytes());
-        connection.setRequestProperty("Authorization", "Basic " + encoding);
-        connection.setRequestProperty("Content-Length", Integer.toString(requestBody.getBytes().length));
-        connection.setDoInput(true);
-        OutputStream out = connection.getOutputStream();
-        out.write(requestBody.getBytes());
-
-        if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
-            InputStream is = connection.getInputStream();
-            BufferedReader rd = new BufferedReader(new InputStreamReader(is));
-            String line;
-            StringBuffer response = new StringBuffer();
-            while ((line = rd.readLine()) != null) {
-                response.append(line);
-                response.append('\r');
-            }
-            rd.close();
-
-            JSONObject json = new JSONObject(response.toString());
-            String hexTx = (String) json.get("result");
-            HexBinaryAdapter adapter = new HexBinaryAdapter();
-            byte[] bytearray = adapter.unmarshal(hexTx);
-            Context context = Context.getOrCreate(netParams);
-            tx = new org.bitcoinj.core.Transaction(netParams, bytearray);
+        return parse(rpc.call("getrawtransaction", transactionHash).toString());
 
-        }
+    }
+
+    /**
+     * Looks up many transactions with a single request. The result at each index is null if
+     * the transaction with the hash at the same index could not be found.
+     */
+    @Override
+    public List<org.bitcoinj.core.Transaction> getTransactions(List<String> transactionHashes)
+            throws IOException {
 
-        out.flush();
-        out.close();
+        List<JsonRpc.Call> calls = new ArrayList<>(transactionHashes.size());
+        for (String hash : transactionHashes) {
+            calls.add(new JsonRpc.Call("getrawtransaction", hash));
+        }
 
-        return tx;
+        List<org.bitcoinj.core.Transaction> txList = new ArrayList<>(calls.size());
+        for (Object hex : rpc.batch(calls)) {
+            txList.add(hex == null ? null : parse(hex.toString()));
+        }
 
+        return txList;
     }
 
     /**
@@ -119,52 +131,20 @@ public class Btcd extends Bitcoin {
      */
     public List<Transaction> getAddressTransactions(String address) throws IOException {
 
-        List<Transaction> txList = null;
-        String requestBody = "{\"jsonrpc\":\"2.0\",\"id\":\"null\",\"method\":\"searchrawtransactions\", \"params\":[\"" + address + "\"]}";
-        URL url = new URL("http://127.0.0.1:8334");
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setDoOutput(true);
-        connection.setRequestMethod("POST");
-        connection.setRequestProperty("Content-Type", "application/json");
-        connection.setRequestProperty("Accept", "application/json");
-        Base64 b = new Base64();
-        String authString = rpcuser + ":" + rpcpass;
-        String encoding = b.encodeAsString(authString.getBytes());
-        connection.setRequestProperty("Authorization", "Basic " + encoding);
-        connection.setRequestProperty("Content-Length", Integer.toString(requestBody.getBytes().length));
-        connection.setDoInput(true);
-        OutputStream out = connection.getOutputStream();
-        out.write(requestBody.getBytes());
-
-        if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
-            InputStream is = connection.getInputStream();
-            BufferedReader rd = new BufferedReader(new InputStreamReader(is));
-            String line;
-            StringBuffer response = new StringBuffer();
-            while ((line = rd.readLine()) != null) {
-                response.append(line);
-                response.append('\r');
-            }
-            rd.close();
-
-            JSONObject json = new JSONObject(response.toString());
-            JSONArray jsonarray = json.getJSONArray("result");
-            txList = new LinkedList<>();
-            for (int i = 0; i < jsonarray.length(); i++) {
-                JSONObject currentJson = jsonarray.getJSONObject(i);
-                String txid = currentJson.get("txid").toString();
-                HexBinaryAdapter adapter = new HexBinaryAdapter();
-                byte[] bytearray = adapter.unmarshal(currentJson.get("hex").toString());
-                Context context = Context.getOrCreate(netParams);
-                org.bitcoinj.core.Transaction bitTx = new org.bitcoinj.core.Transaction(netParams, bytearray);
-                Transaction tx = new Transaction(txid, bitTx, false);
-                txList.add(tx);
-            }
-
+        Object result = rpc.call("searchrawtransactions", address);
+        if (!(result instanceof JSONArray)) {
+            throw new IOException("Unexpected result " + result);
         }
 
-        out.flush();
-        out.close();
+        JSONArray jsonarray = (JSONArray) result;
+        List<Transaction> txList = new LinkedList<>();
+        for (int i = 0; i < jsonarray.length(); i++) {
+            JSONObject currentJson = jsonarray.getJSONObject(i);
+            String txid = currentJson.get("txid").toString();
+            org.bitcoinj.core.Transaction bitTx = parse(currentJson.get("hex").toString());
+            Transaction tx = new Transaction(txid, bitTx, false);
+            txList.add(tx);
+        }
 
         return txList;
 
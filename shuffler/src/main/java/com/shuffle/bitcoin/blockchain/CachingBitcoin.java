@@ -0,0 +1,194 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.bitcoin.blockchain;
+
+import org.bitcoinj.core.AbstractPeerEventListener;
+import org.bitcoinj.core.InventoryItem;
+import org.bitcoinj.core.InventoryMessage;
+import org.bitcoinj.core.Message;
+import org.bitcoinj.core.Peer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the results of lookups made by another Bitcoin object, so that the same
+ * transactions and address histories are not downloaded over and over.
+ *
+ * A transaction never changes once we know its hash, so transactions are kept until they are
+ * pushed out by newer entries. The history of an address can change whenever a new block is
+ * found, so histories expire after a given time and are all forgotten when one of our peers
+ * announces a new block.
+ */
+public final class CachingBitcoin extends Bitcoin {
+
+    private final Bitcoin bitcoin;
+
+    private final long ttl; // In nanoseconds.
+
+    private static class Entry<X> {
+        final X value;
+        final long expires;
+
+        Entry(X value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    // A map which drops the least recently used entry when it is full.
+    private static class Lru<K, V> extends LinkedHashMap<K, V> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Lru(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    private final Lru<String, org.bitcoinj.core.Transaction> transactions;
+    private final Lru<String, Entry<List<Bitcoin.Transaction>>> histories;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    public CachingBitcoin(Bitcoin bitcoin, int capacity, long ttl, TimeUnit unit) {
+        super(bitcoin);
+
+        if (capacity < 1 || ttl < 0) throw new IllegalArgumentException();
+
+        this.bitcoin = bitcoin;
+        this.ttl = unit.toNanos(ttl);
+        transactions = new Lru<>(capacity);
+        histories = new Lru<>(capacity);
+
+        peerGroup.addEventListener(new AbstractPeerEventListener() {
+            @Override
+            public Message onPreMessageReceived(Peer peer, Message m) {
+                if (m instanceof InventoryMessage) {
+                    for (InventoryItem item : ((InventoryMessage) m).getItems()) {
+                        if (item.type == InventoryItem.Type.Block) {
+                            newBlock();
+                            break;
+                        }
+                    }
+                }
+
+                return m;
+            }
+        });
+    }
+
+    // Called when a new block is found, which may change the history of any address.
+    public synchronized void newBlock() {
+        histories.clear();
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    private synchronized org.bitcoinj.core.Transaction cached(String hash) {
+        org.bitcoinj.core.Transaction tx = transactions.get(hash);
+        if (tx == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return tx;
+    }
+
+    private synchronized void cache(String hash, org.bitcoinj.core.Transaction tx) {
+        if (tx != null) transactions.put(hash, tx);
+    }
+
+    @Override
+    List<Bitcoin.Transaction> getAddressTransactions(String address) throws IOException {
+        synchronized (this) {
+            Entry<List<Bitcoin.Transaction>> e = histories.get(address);
+            if (e != null && e.expires - System.nanoTime() > 0) {
+                hits++;
+                return new ArrayList<>(e.value);
+            }
+
+            if (e != null) histories.remove(address);
+            misses++;
+        }
+
+        List<Bitcoin.Transaction> found = bitcoin.getAddressTransactions(address);
+        if (found == null) return null;
+
+        // The transactions are made over so that they look themselves up through the cache.
+        List<Bitcoin.Transaction> history = new ArrayList<>(found.size());
+        for (Bitcoin.Transaction tx : found) {
+            history.add(adopt(tx));
+        }
+
+        synchronized (this) {
+            histories.put(address, new Entry<List<Bitcoin.Transaction>>(
+                    new ArrayList<>(history), System.nanoTime() + ttl));
+        }
+
+        return history;
+    }
+
+    @Override
+    org.bitcoinj.core.Transaction getTransaction(String transactionHash) throws IOException {
+        org.bitcoinj.core.Transaction tx = cached(transactionHash);
+        if (tx != null) return tx;
+
+        tx = bitcoin.getTransaction(transactionHash);
+        cache(transactionHash, tx);
+        return tx;
+    }
+
+    // Only the transactions which are not already known are looked up.
+    @Override
+    List<org.bitcoinj.core.Transaction> getTransactions(List<String> transactionHashes)
+            throws IOException {
+
+        List<org.bitcoinj.core.Transaction> txList = new ArrayList<>(transactionHashes.size());
+        List<String> missing = new ArrayList<>();
+        for (String hash : transactionHashes) {
+            org.bitcoinj.core.Transaction tx = cached(hash);
+            txList.add(tx);
+            if (tx == null) missing.add(hash);
+        }
+
+        if (missing.isEmpty()) return txList;
+
+        List<org.bitcoinj.core.Transaction> found = bitcoin.getTransactions(missing);
+
+        int j = 0;
+        for (int i = 0; i < txList.size(); i++) {
+            if (txList.get(i) != null) continue;
+
+            org.bitcoinj.core.Transaction tx = found.get(j++);
+            cache(transactionHashes.get(i), tx);
+            txList.set(i, tx);
+        }
+
+        return txList;
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.bitcoin.blockchain;
+
+import org.apache.commons.codec.binary.Base64;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A JSON-RPC client for a server such as btcd.
+ *
+ * Connections are kept alive between calls and reused by later calls to the same endpoint.
+ * Several calls can be sent together in one request as a batch. Responses are parsed directly
+ * from the connection rather than being read into a string first.
+ */
+public class JsonRpc {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final URL endpoint;
+
+    // The value of the Authorization header, which is the same for every request.
+    private final String authorization;
+
+    // A single method call.
+    public static final class Call {
+        public final String method;
+        public final List<Object> params;
+
+        public Call(String method, Object... params) {
+            if (method == null) throw new NullPointerException();
+
+            this.method = method;
+            this.params = Arrays.asList(params);
+        }
+
+        JSONObject json(int id) {
+            JSONObject json = new JSONObject();
+            json.put("jsonrpc", "1.0");
+            json.put("id", id);
+            json.put("method", method);
+            json.put("params", new JSONArray(params));
+            return json;
+        }
+
+        @Override
+        public String toString() {
+            return method + params;
+        }
+    }
+
+    public JsonRpc(URL endpoint, String user, String pass) {
+        if (endpoint == null || user == null || pass == null) throw new NullPointerException();
+
+        this.endpoint = endpoint;
+        this.authorization = "Basic "
+                + new Base64().encodeAsString((user + ":" + pass).getBytes(UTF8));
+    }
+
+    public URL endpoint() {
+        return endpoint;
+    }
+
+    // Reads whatever is left of the stream and closes it, which lets the connection be reused.
+    private static void finish(InputStream in) throws IOException {
+        if (in == null) return;
+
+        byte[] buf = new byte[1024];
+        try {
+            while (in.read(buf) >= 0) {
+                // Discard.
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    // Post a request and parse the response.
+    private Object post(Object request) throws IOException {
+        byte[] body = request.toString().getBytes(UTF8);
+
+        HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+        connection.setDoOutput(true);
+        connection.setDoInput(true);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setRequestProperty("Accept", "application/json");
+        connection.setRequestProperty("Authorization", authorization);
+        connection.setFixedLengthStreamingMode(body.length);
+
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+
+        int code = connection.getResponseCode();
+
+        // btcd answers with a server error when a call fails, but the body still
+        // tells us what went wrong, so we read it either way.
+        InputStream in;
+        if (code == HttpURLConnection.HTTP_OK) {
+            in = connection.getInputStream();
+        } else {
+            in = connection.getErrorStream();
+        }
+
+        if (in == null) {
+            throw new IOException("Response " + code + " from " + endpoint);
+        }
+
+        try {
+            return new JSONTokener(new InputStreamReader(new BufferedInputStream(in), UTF8))
+                    .nextValue();
+        } catch (JSONException e) {
+            throw new IOException("Could not parse response " + code + " from " + endpoint, e);
+        } finally {
+            finish(in);
+        }
+    }
+
+    private static Object result(JSONObject response, Call call) throws IOException {
+        Object error = response.opt("error");
+        if (error != null && error != JSONObject.NULL) {
+            throw new IOException(call + " returned error " + error);
+        }
+
+        if (!response.has("result")) {
+            throw new IOException(call + " returned no result");
+        }
+
+        return response.get("result");
+    }
+
+    // Make a single call and return the result.
+    public Object call(String method, Object... params) throws IOException {
+        Call call = new Call(method, params);
+        Object response = post(call.json(0));
+
+        if (!(response instanceof JSONObject)) {
+            throw new IOException("Unexpected response to " + call);
+        }
+
+        return result((JSONObject) response, call);
+    }
+
+    // Make many calls in a single request. The results are given in the same order as the
+    // calls. A call which returned an error has a null result.
+    public List<Object> batch(List<Call> calls) throws IOException {
+        List<Object> results = new ArrayList<>(calls.size());
+        if (calls.isEmpty()) return results;
+
+        JSONArray request = new JSONArray();
+        for (int i = 0; i < calls.size(); i++) {
+            request.put(calls.get(i).json(i));
+            results.add(null);
+        }
+
+        Object response = post(request);
+        if (!(response instanceof JSONArray)) {
+            throw new IOException("Unexpected response to batch of " + calls.size() + " calls");
+        }
+
+        // The responses may come back in any order, so we match them up by id.
+        JSONArray array = (JSONArray) response;
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject r = array.optJSONObject(i);
+            if (r == null) continue;
+
+            int id = r.optInt("id", -1);
+            if (id < 0 || id >= calls.size()) continue;
+
+            try {
+                results.set(id, result(r, calls.get(id)));
+            } catch (IOException e) {
+                // The result stays null.
+            }
+        }
+
+        return results;
+    }
+}
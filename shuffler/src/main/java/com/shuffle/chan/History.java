@@ -0,0 +1,253 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.chan;
+
+import com.shuffle.chan.packet.Marshaller;
+import com.shuffle.p2p.Bytestring;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A record of messages in the order in which they were sent or received.
+ *
+ * Only the most recent messages are kept in memory. If a log file is given, older messages
+ * are written to it as they leave memory so that the whole history can still be read back;
+ * otherwise they are forgotten. The log is only ever appended to and is mapped into memory,
+ * so reading it back does not take a system call per message.
+ *
+ * The history is read through an iterator rather than by copying it. An iterator returns the
+ * messages which were there when it was made, even if more are added while it is in use.
+ */
+public class History<X> implements Iterable<X> {
+
+    // The log is mapped this many bytes at a time, unless a message is bigger.
+    private static final int REGION = 1 << 20;
+
+    private final int window;
+
+    // Null if older messages are forgotten.
+    private final Marshaller<X> marshaller;
+    private final File file;
+    private final FileChannel log;
+
+    // Each region of the log holds records consisting of a length and then that many bytes,
+    // and counts says how many records are in each region.
+    private final List<MappedByteBuffer> regions = new ArrayList<>();
+    private final List<Integer> counts = new ArrayList<>();
+    private long mapped = 0;
+    private int position = 0;
+
+    // The messages in memory are ring[(head + i) % ring.length] for i < count. Message
+    // number forgotten is the first of them.
+    private Object[] ring;
+    private int head = 0;
+    private int count = 0;
+    private long forgotten = 0;
+
+    private boolean closed = false;
+
+    // Remembers everything in memory.
+    public History() {
+        this(Integer.MAX_VALUE);
+    }
+
+    // Remembers only the given number of messages.
+    public History(int window) {
+        if (window < 1) throw new IllegalArgumentException();
+
+        this.window = window;
+        this.ring = new Object[Math.min(window, 16)];
+        this.marshaller = null;
+        this.file = null;
+        this.log = null;
+    }
+
+    // Keeps the given number of messages in memory and the rest in the log file, which is
+    // created or emptied and then deleted when the history is closed.
+    public History(int window, Marshaller<X> marshaller, File file) throws IOException {
+        if (marshaller == null || file == null) throw new NullPointerException();
+        if (window < 1) throw new IllegalArgumentException();
+
+        this.window = window;
+        this.ring = new Object[Math.min(window, 16)];
+        this.marshaller = marshaller;
+        this.file = file;
+        this.log = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    @SuppressWarnings("unchecked")
+    private X get(int i) {
+        return (X) ring[(head + i) % ring.length];
+    }
+
+    public synchronized void add(X x) {
+        if (x == null) throw new NullPointerException();
+
+        // Nothing is remembered after the history is closed.
+        if (closed) return;
+
+        if (count == window) {
+            spill(get(0));
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+            count--;
+            forgotten++;
+        }
+
+        if (count == ring.length) {
+            Object[] bigger = new Object[(int) Math.min(window, 2L * ring.length)];
+            for (int i = 0; i < count; i++) {
+                bigger[i] = get(i);
+            }
+            ring = bigger;
+            head = 0;
+        }
+
+        ring[(head + count) % ring.length] = x;
+        count++;
+    }
+
+    private void spill(X x) {
+        if (log == null) return;
+
+        Bytestring b = marshaller.marshall(x);
+        if (b == null) throw new IllegalArgumentException("Could not marshall " + x);
+
+        int size = 4 + b.length();
+        int last = regions.size() - 1;
+        if (last < 0 || position + size > regions.get(last).capacity()) {
+            int length = Math.max(REGION, size);
+            try {
+                regions.add(log.map(FileChannel.MapMode.READ_WRITE, mapped, length));
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not extend " + file, e);
+            }
+            counts.add(0);
+            mapped += length;
+            position = 0;
+            last++;
+        }
+
+        ByteBuffer region = regions.get(last).duplicate();
+        region.position(position);
+        region.putInt(b.length());
+        region.put(b.buffer());
+
+        position += size;
+        counts.set(last, counts.get(last) + 1);
+    }
+
+    // The most recent message.
+    public synchronized X last() {
+        if (count == 0) throw new NoSuchElementException();
+
+        return get(count - 1);
+    }
+
+    // The number of messages that have been added, including any that were forgotten.
+    public synchronized long size() {
+        return forgotten + count;
+    }
+
+    private class View implements Iterator<X> {
+        private long next;
+        private final long end;
+
+        // Where the next message to be read from the log is.
+        private int region = 0;
+        private int offset = 0;
+        private int index = 0;
+
+        View() {
+            synchronized (History.this) {
+                next = log == null ? forgotten : 0;
+                end = forgotten + count;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            synchronized (History.this) {
+                // Without a log, messages may be forgotten before we get to them.
+                if (log == null && next < forgotten) next = forgotten;
+
+                return !closed && next < end;
+            }
+        }
+
+        @Override
+        public X next() {
+            synchronized (History.this) {
+                if (!hasNext()) throw new NoSuchElementException();
+
+                X x = next < forgotten ? read() : get((int) (next - forgotten));
+                next++;
+                return x;
+            }
+        }
+
+        private X read() {
+            while (index == counts.get(region)) {
+                region++;
+                offset = 0;
+                index = 0;
+            }
+
+            ByteBuffer r = regions.get(region).duplicate();
+            r.position(offset);
+            byte[] bytes = new byte[r.getInt()];
+            r.get(bytes);
+
+            offset += 4 + bytes.length;
+            index++;
+            return marshaller.unmarshall(new Bytestring(bytes));
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Override
+    public Iterator<X> iterator() {
+        return new View();
+    }
+
+    // Forget everything and delete the log.
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+
+        ring = new Object[0];
+        count = 0;
+        regions.clear();
+        counts.clear();
+
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                // Nothing more can be done with it anyway.
+            }
+            file.delete();
+        }
+    }
+}
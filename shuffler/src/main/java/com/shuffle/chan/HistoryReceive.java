@@ -1,7 +1,5 @@
 package com.shuffle.chan;
 
-import java.util.LinkedList;
-import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -9,10 +7,17 @@ import java.util.concurrent.TimeUnit;
  */
 public class HistoryReceive<X> implements Receive<X> {
     private final Receive<X> chan;
-    private final List<X> history = new LinkedList<>();
+    private final History<X> history;
 
     public HistoryReceive(Receive<X> chan) {
+        this(chan, new History<X>());
+    }
+
+    public HistoryReceive(Receive<X> chan, History<X> history) {
+        if (chan == null || history == null) throw new NullPointerException();
+
         this.chan = chan;
+        this.history = history;
     }
 
     @Override
@@ -38,9 +43,7 @@ public class HistoryReceive<X> implements Receive<X> {
         return chan.closed();
     }
 
-    public List<X> history() {
-        List<X> h = new LinkedList<>();
-        h.addAll(history);
-        return h;
+    public Iterable<X> history() {
+        return history;
     }
 }
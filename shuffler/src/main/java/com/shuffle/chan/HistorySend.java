@@ -1,17 +1,22 @@
 package com.shuffle.chan;
 
-import java.util.LinkedList;
-import java.util.List;
-
 /**
  * Created by Daniel Krawisz on 4/25/16.
  */
 public class HistorySend<X> implements Send<X> {
     private final Send<X> chan;
-    private final LinkedList<X> history = new LinkedList<>();
+    private final History<X> history;
 
     public HistorySend(Send<X> chan) {
+        this(chan, new History<X>());
+    }
+
+    // The history may be shared with other channels.
+    public HistorySend(Send<X> chan, History<X> history) {
+        if (chan == null || history == null) throw new NullPointerException();
+
         this.chan = chan;
+        this.history = history;
     }
 
     @Override
@@ -19,7 +24,7 @@ public class HistorySend<X> implements Send<X> {
         boolean sent = chan.send(x);
 
         if (sent) {
-            history.addLast(x);
+            history.add(x);
         }
 
         return sent;
@@ -30,13 +35,11 @@ public class HistorySend<X> implements Send<X> {
         chan.close();
     }
 
-    public List<X> history() {
-        List<X> h = new LinkedList<X>();
-        h.addAll(history);
-        return h;
+    public Iterable<X> history() {
+        return history;
     }
 
     public X last() {
-        return history.getLast();
+        return history.last();
     }
 }
@@ -15,11 +15,16 @@ public interface Inbox<Address, X extends Serializable> extends Receive<Inbox.En
         public final long received;
 
         Envelope(Address from, X payload) {
+            this(from, payload, System.currentTimeMillis());
+        }
+
+        // For inboxes that keep time by some clock other than the system's.
+        public Envelope(Address from, X payload, long received) {
             if (from == null || payload == null) throw new NullPointerException();
 
             this.from = from;
             this.payload = payload;
-            this.received = System.currentTimeMillis();
+            this.received = received;
         }
 
         @Override
@@ -0,0 +1,201 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.chan;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An inbox for many senders and a single receiver, backed by a fixed array of slots. Senders
+ * claim a slot without taking a lock. The receiver spins for a little while when the inbox is
+ * empty before it goes to sleep.
+ *
+ * Only one thread may receive from this inbox at a time.
+ */
+public class RingInbox<Address, X extends Serializable> implements Inbox<Address, X> {
+
+    // How many times the receiver checks for a new message before it sleeps.
+    private static final int SPINS = 1000;
+
+    private final int mask;
+    private final AtomicReferenceArray<Envelope<Address, X>> slots;
+
+    // The sequence number of a slot says whether it is ready to be written to or read from.
+    private final AtomicLongArray sequence;
+
+    private final AtomicLong tail = new AtomicLong(0); // Where the next message goes.
+    private long head = 0; // Where the next message is read. Only used by the receiver.
+
+    // The receiver, if it is asleep.
+    private volatile Thread waiting = null;
+
+    private volatile boolean closed = false;
+
+    public RingInbox(int cap) {
+        if (cap < 1) throw new IllegalArgumentException();
+
+        int size = Integer.highestOneBit(cap);
+        if (size < cap) size <<= 1;
+
+        mask = size - 1;
+        slots = new AtomicReferenceArray<>(size);
+        sequence = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequence.set(i, i);
+        }
+    }
+
+    private boolean offer(Envelope<Address, X> e) {
+        long pos = tail.get();
+        while (true) {
+            int i = (int) pos & mask;
+            long dif = sequence.get(i) - pos;
+
+            if (dif == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slots.lazySet(i, e);
+                    sequence.set(i, pos + 1);
+                    break;
+                }
+                pos = tail.get();
+            } else if (dif < 0) {
+                return false; // Full.
+            } else {
+                pos = tail.get();
+            }
+        }
+
+        Thread t = waiting;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+
+        return true;
+    }
+
+    private Envelope<Address, X> poll() {
+        int i = (int) head & mask;
+        if (sequence.get(i) != head + 1) return null;
+
+        Envelope<Address, X> e = slots.get(i);
+        slots.lazySet(i, null);
+        sequence.lazySet(i, head + mask + 1);
+        head++;
+        return e;
+    }
+
+    private boolean empty() {
+        return sequence.get((int) head & mask) != head + 1;
+    }
+
+    private class Receiver implements Send<X> {
+        private final Address from;
+        private volatile boolean closed = false;
+
+        private Receiver(Address from) {
+            this.from = from;
+        }
+
+        @Override
+        public boolean send(X x) throws InterruptedException {
+
+            return !(closed || RingInbox.this.closed)
+                    && offer(new Inbox.Envelope<Address, X>(from, x));
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    // A send into the inbox is opened, enabling someone to dump messages in it.
+    @Override
+    public synchronized Send<X> receivesFrom(Address from) {
+        if (from == null) throw new NullPointerException();
+
+        if (closed) return null;
+
+        return new Receiver(from);
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        closed = true;
+
+        Thread t = waiting;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    // Wait for a message until the deadline, or forever if the deadline is zero.
+    private Envelope<Address, X> await(long deadline) throws InterruptedException {
+        int spins = SPINS;
+
+        while (true) {
+            Envelope<Address, X> e = poll();
+            if (e != null) return e;
+
+            // Once the inbox is closed, nothing more can be put in.
+            if (closed && empty()) return null;
+
+            if (Thread.interrupted()) throw new InterruptedException();
+
+            if (spins > 0) {
+                spins--;
+                continue;
+            }
+
+            long remaining = 0;
+            if (deadline != 0) {
+                remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return null;
+            }
+
+            waiting = Thread.currentThread();
+
+            // Check again in case something came in before we registered as waiting.
+            if (empty() && !closed) {
+                if (deadline == 0) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, remaining);
+                }
+            }
+
+            waiting = null;
+        }
+    }
+
+    @Override
+    public Envelope<Address, X> receive() throws InterruptedException {
+        return await(0);
+    }
+
+    @Override
+    public Envelope<Address, X> receive(long l, TimeUnit u) throws InterruptedException {
+        // Avoid a deadline of zero, which means to wait forever.
+        return await((System.nanoTime() + u.toNanos(l)) | 1);
+    }
+
+    @Override
+    public boolean closed() {
+        return closed;
+    }
+
+    @Override
+    public String toString() {
+        return "Inbox[]";
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.chan.packet;
+
+import com.shuffle.p2p.Bytestring;
+
+/**
+ * Remembers the last result of another marshaller, so that a broadcast message, which is
+ * the same object for every recipient, is only marshalled once.
+ *
+ * Only the very same object is recognized, not one that is merely equal to it, so the
+ * objects given to it must not be modified after they are marshalled.
+ */
+public class CachingMarshaller<X> implements Marshaller<X> {
+    private final Marshaller<X> marshaller;
+
+    private static class Last<X> {
+        final X x;
+        final Bytestring bytes;
+
+        Last(X x, Bytestring bytes) {
+            this.x = x;
+            this.bytes = bytes;
+        }
+    }
+
+    private volatile Last<X> last = null;
+
+    public CachingMarshaller(Marshaller<X> marshaller) {
+        if (marshaller == null) throw new NullPointerException();
+
+        this.marshaller = marshaller;
+    }
+
+    @Override
+    public Bytestring marshall(X x) {
+        Last<X> l = last;
+        if (l != null && l.x == x) return l.bytes;
+
+        Bytestring bytes = marshaller.marshall(x);
+        if (bytes != null) last = new Last<>(x, bytes);
+        return bytes;
+    }
+
+    @Override
+    public X unmarshall(Bytestring string) {
+        return marshaller.unmarshall(string);
+    }
+}
@@ -6,7 +6,8 @@ import java.io.Serializable;
 
 /**
  * IncomingPacketSend checks incoming packets to see that they have the correct
- * values for from, to, session, and sequenceNumber
+ * values for from, to, session, and sequenceNumber. Broadcast packets are numbered
+ * separately from those addressed to us alone.
  *
  * Created by Daniel Krawisz on 5/24/16.
  */
@@ -17,6 +18,7 @@ public class IncomingPacketSend<Address extends Serializable, X extends Serializ
     private final Address from, to;
 
     int sequenceNumber = 0;
+    int broadcastSequenceNumber = 0;
     boolean closed = false;
 
     public IncomingPacketSend(Send<Packet<Address, X>> send, SessionIdentifier session, Address from, Address to) {
@@ -32,15 +34,20 @@ public class IncomingPacketSend<Address extends Serializable, X extends Serializ
     public boolean send(Packet<Address, X> x) throws InterruptedException {
         if (closed) return false;
 
-        if (!session.equals(x.session) || !from.equals(x.from)
-                || !to.equals(x.to) || sequenceNumber != x.sequenceNumber) {
+        if (!session.equals(x.session) || !from.equals(x.from)) return false;
 
+        if (x.broadcast()) {
+            if (broadcastSequenceNumber != x.sequenceNumber) return false;
+        } else if (!to.equals(x.to) || sequenceNumber != x.sequenceNumber) {
             return false;
         }
 
         boolean sent = send.send(x);
 
-        if (sent) sequenceNumber ++;
+        if (sent) {
+            if (x.broadcast()) broadcastSequenceNumber ++;
+            else sequenceNumber ++;
+        }
 
         return sent;
     }
@@ -39,7 +39,7 @@ public class JavaMarshaller<X extends Serializable> implements
     @Override
     public X unmarshall(Bytestring string) {
 
-        ByteArrayInputStream b = new ByteArrayInputStream(string.bytes);
+        ByteArrayInputStream b = new ByteArrayInputStream(string.bytes());
         Object obj = null;
         try {
             ObjectInputStream o = new ObjectInputStream(b);
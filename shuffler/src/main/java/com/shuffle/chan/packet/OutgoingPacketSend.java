@@ -19,12 +19,22 @@ public class OutgoingPacketSend<Address extends Serializable, X extends Serializ
     boolean closed = false;
 
     public OutgoingPacketSend(Send<Packet<Address, X>> send, SessionIdentifier session, Address from, Address to) {
+        this(send, session, from, to, 0);
+    }
+
+    // Packets are numbered from the given number, in case some were sent before.
+    public OutgoingPacketSend(
+            Send<Packet<Address, X>> send, SessionIdentifier session, Address from, Address to,
+            int sequenceNumber) {
+
         if (send == null || session == null || from == null || to == null) throw new NullPointerException();
+        if (sequenceNumber < 0) throw new IllegalArgumentException();
 
         this.send = send;
         this.session = session;
         this.from = from;
         this.to = to;
+        this.sequenceNumber = sequenceNumber;
     }
 
     @Override
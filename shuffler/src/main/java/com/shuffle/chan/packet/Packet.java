@@ -3,6 +3,9 @@ package com.shuffle.chan.packet;
 import java.io.Serializable;
 
 /**
+ * A packet is addressed either to a single recipient or, if to is null, to every player in
+ * the session. A broadcast packet is signed once and the same bytes go to everyone.
+ *
  * Created by Daniel Krawisz on 5/24/16.
  */
 public class Packet<Address extends Serializable, X extends Serializable> implements Serializable {
@@ -13,7 +16,7 @@ public class Packet<Address extends Serializable, X extends Serializable> implem
     public final X payload;
 
     public Packet(SessionIdentifier session, Address from, Address to, int sequenceNumber, X payload) {
-        if (session == null || from == null || to == null || payload == null) throw new NullPointerException();
+        if (session == null || from == null || payload == null) throw new NullPointerException();
 
         this.session = session;
         this.from = from;
@@ -22,14 +25,18 @@ public class Packet<Address extends Serializable, X extends Serializable> implem
         this.payload = payload;
     }
 
+    public boolean broadcast() {
+        return to == null;
+    }
+
     @Override
     public String toString() {
-        return "{" + session + " " + from + " -> " + to + " " + sequenceNumber + " : " + payload + "}";
+        return "{" + session + " " + from + " -> " + (to == null ? "*" : to) + " " + sequenceNumber + " : " + payload + "}";
     }
 
     @Override
     public int hashCode() {
-        return session.hashCode() + 17 * (from.hashCode() + 17 * (to.hashCode() + 17 * (sequenceNumber + 17 * payload.hashCode())));
+        return session.hashCode() + 17 * (from.hashCode() + 17 * ((to == null ? 0 : to.hashCode()) + 17 * (sequenceNumber + 17 * payload.hashCode())));
     }
 
     @Override
@@ -38,7 +45,8 @@ public class Packet<Address extends Serializable, X extends Serializable> implem
 
         Packet p = (Packet)o;
 
-        return session.equals(p.session) && from.equals(p.from) && to.equals(p.to)
+        return session.equals(p.session) && from.equals(p.from)
+                && (to == null ? p.to == null : to.equals(p.to))
                 && sequenceNumber == p.sequenceNumber && payload.equals(p.payload);
     }
 }
@@ -0,0 +1,288 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.chan.packet;
+
+import com.shuffle.chan.BasicInbox;
+import com.shuffle.chan.Inbox;
+import com.shuffle.chan.Receive;
+import com.shuffle.chan.Send;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * Allows several rounds of the protocol to be run at the same time over the same set of
+ * connections. Everything that comes in over the connections is put into one inbox. The
+ * multiplexer reads from that inbox and sorts the packets by session, so that each round
+ * gets an inbox of its own.
+ *
+ * The inbox of a session which is open has no limit, so a packet is never dropped because
+ * the round it belongs to is slow to read it. Dropping one would make the round time out
+ * and blame a player who did nothing wrong. A round only ever gets a few packets from each
+ * player, so the inbox cannot grow without bound unless someone misbehaves, and then the
+ * round fails soon anyway.
+ *
+ * Packets may arrive for a session before it has been opened here, since other players
+ * might start earlier. These are kept until the session is opened, but since anyone can
+ * make up a session, only a limited number are kept for a limited number of sessions. When
+ * packets arrive for one session too many, the session that was heard of first is forgotten.
+ *
+ * Packets for a session which has been closed are dropped. Only the most recently closed
+ * sessions are remembered, so a packet for a session closed long ago is treated like one for
+ * a session which has not been opened.
+ */
+public class SessionMultiplexer<Address extends Serializable, X extends Serializable>
+        implements Runnable {
+
+    private static final Logger log = LogManager.getLogger(SessionMultiplexer.class);
+
+    // Sends to another player which can be closed without closing the underlying connection,
+    // which is shared with all the other sessions.
+    private static class Shared<Y> implements Send<Y> {
+        private final Send<Y> send;
+        private volatile boolean closed = false;
+
+        private Shared(Send<Y> send) {
+            this.send = send;
+        }
+
+        @Override
+        public boolean send(Y y) throws InterruptedException {
+            return !closed && send.send(y);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    // Everything that one round of the protocol needs in order to talk to the other players.
+    public final class Mix {
+        public final SessionIdentifier session;
+        public final Map<Address, Send<Signed<Packet<Address, X>>>> connected;
+        public final Inbox<Address, Signed<Packet<Address, X>>> inbox;
+
+        // Guarded by the multiplexer.
+        private final Map<Address, Send<Signed<Packet<Address, X>>>> senders = new HashMap<>();
+
+        private Mix(SessionIdentifier session) {
+            this.session = session;
+            inbox = new BasicInbox<>(Integer.MAX_VALUE);
+
+            Map<Address, Send<Signed<Packet<Address, X>>>> connected = new HashMap<>();
+            for (Map.Entry<Address, Send<Signed<Packet<Address, X>>>> e : net.entrySet()) {
+                connected.put(e.getKey(), new Shared<>(e.getValue()));
+            }
+            this.connected = Collections.unmodifiableMap(connected);
+        }
+
+        private boolean deliver(Address from, Signed<Packet<Address, X>> packet)
+                throws InterruptedException {
+
+            Send<Signed<Packet<Address, X>>> send = senders.get(from);
+            if (send == null) {
+                send = inbox.receivesFrom(from);
+                if (send == null) return false;
+
+                senders.put(from, send);
+            }
+
+            return send.send(packet);
+        }
+
+        // Stop receiving messages for this session. The connections stay open.
+        public void close() throws InterruptedException {
+            finish(this);
+
+            for (Send<Signed<Packet<Address, X>>> send : connected.values()) {
+                send.close();
+            }
+
+            inbox.close();
+        }
+
+        @Override
+        public String toString() {
+            return "Mix[" + session + "]";
+        }
+    }
+
+    private final Receive<Inbox.Envelope<Address, Signed<Packet<Address, X>>>> in;
+    private final Map<Address, Send<Signed<Packet<Address, X>>>> net;
+
+    // The number of sessions which have not been opened yet that packets are kept for.
+    public static final int DEFAULT_SESSIONS = 16;
+
+    // The number of closed sessions which are remembered.
+    private static final int FINISHED = 1024;
+
+    // The number of packets that are kept for each session which has not been opened yet.
+    private final int capacity;
+
+    // The number of sessions which have not been opened yet that packets are kept for.
+    private final int sessions;
+
+    private final Map<SessionIdentifier, Mix> mixes = new HashMap<>();
+
+    // Packets for sessions that have not been opened yet, oldest session first. At most
+    // capacity packets are kept for at most sessions sessions.
+    private final Map<SessionIdentifier, Queue<Inbox.Envelope<Address, Signed<Packet<Address, X>>>>>
+            early = new LinkedHashMap<>();
+
+    // The sessions which have been closed, oldest first. At most FINISHED are remembered.
+    private final Set<SessionIdentifier> finished = new LinkedHashSet<>();
+
+    private boolean closed = false;
+
+    public SessionMultiplexer(
+            Receive<Inbox.Envelope<Address, Signed<Packet<Address, X>>>> in,
+            Map<Address, Send<Signed<Packet<Address, X>>>> net,
+            int capacity) {
+
+        this(in, net, capacity, DEFAULT_SESSIONS);
+    }
+
+    public SessionMultiplexer(
+            Receive<Inbox.Envelope<Address, Signed<Packet<Address, X>>>> in,
+            Map<Address, Send<Signed<Packet<Address, X>>>> net,
+            int capacity,
+            int sessions) {
+
+        if (in == null || net == null) throw new NullPointerException();
+        if (capacity < 1 || sessions < 1) throw new IllegalArgumentException();
+
+        this.in = in;
+        this.net = net;
+        this.capacity = capacity;
+        this.sessions = sessions;
+    }
+
+    // Start receiving messages for a new session. Returns null if the session is
+    // already open or if the multiplexer has stopped.
+    public synchronized Mix open(SessionIdentifier session) throws InterruptedException {
+        if (session == null) throw new NullPointerException();
+
+        if (closed || mixes.containsKey(session) || finished.contains(session)) return null;
+
+        Mix mix = new Mix(session);
+        mixes.put(session, mix);
+
+        // Deliver anything that came in before this session was opened.
+        Queue<Inbox.Envelope<Address, Signed<Packet<Address, X>>>> q = early.remove(session);
+        if (q != null) {
+            for (Inbox.Envelope<Address, Signed<Packet<Address, X>>> e : q) {
+                mix.deliver(e.from, e.payload);
+            }
+        }
+
+        return mix;
+    }
+
+    private synchronized void finish(Mix mix) {
+        if (mixes.get(mix.session) != mix) return;
+
+        mixes.remove(mix.session);
+        finished.add(mix.session);
+        if (finished.size() > FINISHED) {
+            Iterator<SessionIdentifier> i = finished.iterator();
+            i.next();
+            i.remove();
+        }
+    }
+
+    private synchronized void deliver(Inbox.Envelope<Address, Signed<Packet<Address, X>>> e)
+            throws InterruptedException {
+
+        SessionIdentifier session = e.payload.message.session;
+        if (finished.contains(session)) return;
+
+        Mix mix = mixes.get(session);
+
+        if (mix == null) {
+            Queue<Inbox.Envelope<Address, Signed<Packet<Address, X>>>> q = early.get(session);
+            if (q == null) {
+                q = new ArrayDeque<>();
+                early.put(session, q);
+                if (early.size() > sessions) forget();
+            }
+
+            if (q.size() < capacity) {
+                q.add(e);
+            } else {
+                log.warn("Dropping packet for unknown session " + session);
+            }
+            return;
+        }
+
+        // This only fails once the session has been closed.
+        if (!mix.deliver(e.from, e.payload)) {
+            log.debug("Dropping packet for closed session " + session + " from " + e.from);
+        }
+    }
+
+    // Forget the session which was heard of first among those which have not been opened.
+    private void forget() {
+        Iterator<Map.Entry<SessionIdentifier,
+                Queue<Inbox.Envelope<Address, Signed<Packet<Address, X>>>>>> i
+                = early.entrySet().iterator();
+        Map.Entry<SessionIdentifier, Queue<Inbox.Envelope<Address, Signed<Packet<Address, X>>>>> e
+                = i.next();
+
+        log.warn("Forgetting " + e.getValue().size()
+                + " packets for unknown session " + e.getKey());
+        i.remove();
+    }
+
+    // Sort incoming packets until the connections are closed.
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Inbox.Envelope<Address, Signed<Packet<Address, X>>> e = in.receive();
+                if (e == null) break;
+
+                deliver(e);
+            }
+        } catch (InterruptedException ignored) {
+
+        } finally {
+            stop();
+        }
+    }
+
+    // Once the connections are closed, every session is closed too.
+    private synchronized void stop() {
+        closed = true;
+
+        for (Mix mix : mixes.values()) {
+            try {
+                mix.inbox.close();
+            } catch (InterruptedException ignored) {
+
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SessionMultiplexer" + mixes.keySet();
+    }
+}
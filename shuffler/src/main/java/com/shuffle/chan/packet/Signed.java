@@ -11,11 +11,16 @@ public class Signed<X> implements Serializable {
     public final X message;
     public final Bytestring signature;
 
-    Signed(X message, Bytestring signature) {
+    // How many bytes the message and the signature came to when the message was
+    // marshalled, so that traffic can be counted without marshalling it again.
+    public final int size;
+
+    Signed(X message, Bytestring signature, int length) {
         if (message == null || signature == null) throw new NullPointerException();
 
         this.message = message;
         this.signature = signature;
+        this.size = length + signature.length();
     }
 
     @Override
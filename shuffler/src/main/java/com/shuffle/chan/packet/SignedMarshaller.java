@@ -0,0 +1,54 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.chan.packet;
+
+import com.shuffle.p2p.Bytestring;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Marshalls a signed message as the length of the message, the message as given by
+ * another marshaller, and then the signature.
+ */
+public class SignedMarshaller<X> implements Marshaller<Signed<X>> {
+    private final Marshaller<X> marshaller;
+
+    public SignedMarshaller(Marshaller<X> marshaller) {
+        if (marshaller == null) throw new NullPointerException();
+
+        this.marshaller = marshaller;
+    }
+
+    @Override
+    public Bytestring marshall(Signed<X> x) {
+        Bytestring m = marshaller.marshall(x.message);
+        if (m == null) return null;
+
+        ByteBuffer b = ByteBuffer.allocate(4 + m.length() + x.signature.length());
+        b.putInt(m.length());
+        b.put(m.buffer());
+        b.put(x.signature.buffer());
+
+        return new Bytestring(b.array());
+    }
+
+    @Override
+    public Signed<X> unmarshall(Bytestring string) {
+        if (string == null || string.length() < 4) return null;
+
+        int length = string.buffer().getInt();
+        if (length < 0 || length > string.length() - 4) return null;
+
+        // The message and the signature are views of the string rather than copies.
+        X x = marshaller.unmarshall(string.slice(4, 4 + length));
+        if (x == null) return null;
+
+        return new Signed<>(x, string.slice(4 + length, string.length()), length);
+    }
+}
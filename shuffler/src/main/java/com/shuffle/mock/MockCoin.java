@@ -11,18 +11,21 @@ package com.shuffle.mock;
 import com.shuffle.bitcoin.Address;
 import com.shuffle.bitcoin.Coin;
 import com.shuffle.bitcoin.CoinNetworkException;
+import com.shuffle.bitcoin.Lookup;
 import com.shuffle.bitcoin.Transaction;
 import com.shuffle.bitcoin.VerificationKey;
 import com.shuffle.p2p.Bytestring;
 import com.shuffle.protocol.InvalidImplementationError;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 
 /**
  * Simulation of a cryptocurrency network for testing purposes.
@@ -289,6 +292,19 @@ public class MockCoin implements com.shuffle.sim.MockCoin {
         return sent.get(output);
     }
 
+    // The mock blockchain is in memory, so there is no point in doing anything concurrently.
+    @Override
+    public Future<Map<Address, Long>> valuesHeld(Collection<Address> addrs) {
+        return Lookup.valuesHeld(this, addrs, Lookup.immediate);
+    }
+
+    @Override
+    public Future<Map<Address, Transaction>> getConflictingTransactions(
+            Collection<Address> addrs, long amount) {
+
+        return Lookup.conflictingTransactions(this, addrs, amount, Lookup.immediate);
+    }
+
     @Override
     public Transaction getSpendingTransaction(Address addr, long amount) {
         Output output = blockchain.get(addr);
@@ -0,0 +1,201 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.mock;
+
+import com.shuffle.bitcoin.Address;
+import com.shuffle.bitcoin.DecryptionKey;
+import com.shuffle.bitcoin.EncryptionKey;
+import com.shuffle.bitcoin.VerificationKey;
+import com.shuffle.chan.packet.Marshaller;
+import com.shuffle.chan.packet.SessionIdentifier;
+import com.shuffle.p2p.Bytestring;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Compact marshallers for the mock implementations of keys, addresses, and session
+ * identifiers, for use with the BinaryMarshaller.
+ */
+public final class MockMarshallers {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Tags for the different kinds of mock addresses.
+    private static final byte PLAIN = 0;
+    private static final byte ENCRYPTED = 1;
+    private static final byte DECRYPTED = 2;
+
+    private MockMarshallers() {}
+
+    private static Bytestring index(int index) {
+        return new Bytestring(ByteBuffer.allocate(4).putInt(index).array());
+    }
+
+    private static Integer index(Bytestring string) {
+        if (string.length() != 4) return null;
+
+        return ByteBuffer.wrap(string.bytes()).getInt();
+    }
+
+    public static final Marshaller<SessionIdentifier> session = new Marshaller<SessionIdentifier>() {
+        @Override
+        public Bytestring marshall(SessionIdentifier s) {
+            if (!(s instanceof MockSessionIdentifier)) return null;
+
+            return new Bytestring(((MockSessionIdentifier) s).id.getBytes(UTF8));
+        }
+
+        @Override
+        public SessionIdentifier unmarshall(Bytestring string) {
+            return new MockSessionIdentifier(new String(string.bytes(), UTF8));
+        }
+    };
+
+    public static final Marshaller<VerificationKey> verificationKey = new Marshaller<VerificationKey>() {
+        @Override
+        public Bytestring marshall(VerificationKey vk) {
+            if (!(vk instanceof MockVerificationKey)) return null;
+
+            return index(((MockVerificationKey) vk).index);
+        }
+
+        @Override
+        public VerificationKey unmarshall(Bytestring string) {
+            Integer i = index(string);
+            if (i == null) return null;
+
+            return new MockVerificationKey(i);
+        }
+    };
+
+    public static final Marshaller<EncryptionKey> encryptionKey = new Marshaller<EncryptionKey>() {
+        @Override
+        public Bytestring marshall(EncryptionKey ek) {
+            if (!(ek instanceof MockEncryptionKey)) return null;
+
+            return index(((MockEncryptionKey) ek).index);
+        }
+
+        @Override
+        public EncryptionKey unmarshall(Bytestring string) {
+            Integer i = index(string);
+            if (i == null) return null;
+
+            return new MockEncryptionKey(i);
+        }
+    };
+
+    public static final Marshaller<DecryptionKey> decryptionKey = new Marshaller<DecryptionKey>() {
+        @Override
+        public Bytestring marshall(DecryptionKey dk) {
+            if (!(dk instanceof MockDecryptionKey)) return null;
+
+            return index(((MockDecryptionKey) dk).index);
+        }
+
+        @Override
+        public DecryptionKey unmarshall(Bytestring string) {
+            Integer i = index(string);
+            if (i == null) return null;
+
+            return new MockDecryptionKey(i);
+        }
+    };
+
+    // Encrypted and decrypted addresses are written as a tag, the index of the key,
+    // and then the address inside.
+    public static final Marshaller<Address> address = new Marshaller<Address>() {
+
+        private int size(Address addr) {
+            if (addr instanceof MockAddress) return 5;
+
+            if (addr instanceof MockEncryptedAddress) {
+                int inner = size(((MockEncryptedAddress) addr).encrypted);
+                return inner < 0 ? -1 : inner + 5;
+            }
+
+            if (addr instanceof MockDecryptedAddress) {
+                int inner = size(((MockDecryptedAddress) addr).decrypted);
+                return inner < 0 ? -1 : inner + 5;
+            }
+
+            return -1;
+        }
+
+        private boolean write(ByteBuffer b, Address addr) {
+            if (addr instanceof MockAddress) {
+                b.put(PLAIN).putInt(((MockAddress) addr).index);
+                return true;
+            }
+
+            EncryptionKey key;
+            Address inner;
+            if (addr instanceof MockEncryptedAddress) {
+                b.put(ENCRYPTED);
+                key = ((MockEncryptedAddress) addr).key;
+                inner = ((MockEncryptedAddress) addr).encrypted;
+            } else {
+                b.put(DECRYPTED);
+                key = ((MockDecryptedAddress) addr).key;
+                inner = ((MockDecryptedAddress) addr).decrypted;
+            }
+
+            if (!(key instanceof MockEncryptionKey)) return false;
+
+            b.putInt(((MockEncryptionKey) key).index);
+            return write(b, inner);
+        }
+
+        private Address read(ByteBuffer b) {
+            byte tag = b.get();
+            int index = b.getInt();
+
+            switch (tag) {
+                case PLAIN:
+                    return new MockAddress(index);
+                case ENCRYPTED: {
+                    Address inner = read(b);
+                    return inner == null ? null
+                            : new MockEncryptedAddress(inner, new MockEncryptionKey(index));
+                }
+                case DECRYPTED: {
+                    Address inner = read(b);
+                    return inner == null ? null
+                            : new MockDecryptedAddress(inner, new MockEncryptionKey(index));
+                }
+                default:
+                    return null;
+            }
+        }
+
+        @Override
+        public Bytestring marshall(Address addr) {
+            int size = size(addr);
+            if (size < 0) return null;
+
+            ByteBuffer b = ByteBuffer.allocate(size);
+            if (!write(b, addr)) return null;
+
+            return new Bytestring(b.array());
+        }
+
+        @Override
+        public Address unmarshall(Bytestring string) {
+            ByteBuffer b = ByteBuffer.wrap(string.bytes());
+
+            try {
+                Address addr = read(b);
+                return b.hasRemaining() ? null : addr;
+            } catch (BufferUnderflowException e) {
+                return null;
+            }
+        }
+    };
+}
@@ -38,6 +38,11 @@ public class MockSessionIdentifier implements SessionIdentifier, Serializable {
         return this == s || id.equals(s.id);
     }
 
+    @Override
+    public int hashCode() {
+        return id.hashCode();
+    }
+
     @Override
     public String toString() {
         return "session[" + id + "]";
@@ -13,7 +13,6 @@ import com.shuffle.bitcoin.VerificationKey;
 import com.shuffle.p2p.Bytestring;
 
 import java.io.Serializable;
-import java.util.Arrays;
 
 /**
  * A mock implementation of a VerificationKey.
@@ -29,7 +28,7 @@ public class MockVerificationKey implements VerificationKey, Serializable {
 
     @Override
     public boolean verify(Bytestring payload, Bytestring signature) {
-        return Arrays.equals(signature.bytes, new MockSigningKey(index).sign(payload).bytes);
+        return signature.equals(new MockSigningKey(index).sign(payload));
     }
 
     @Override
@@ -14,9 +14,11 @@ import com.shuffle.bitcoin.CoinNetworkException;
 import com.shuffle.bitcoin.Transaction;
 import com.shuffle.bitcoin.VerificationKey;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.Future;
 
 /**
  * Created by Daniel Krawisz on 3/9/16.
@@ -47,11 +49,23 @@ public class TransactionMutator implements Coin {
         return coin.valueHeld(addr);
     }
 
+    @Override
+    public Future<Map<Address, Long>> valuesHeld(Collection<Address> addrs) {
+        return coin.valuesHeld(addrs);
+    }
+
     @Override
     public Transaction getConflictingTransaction(Address addr, long amount) {
         return coin.getConflictingTransaction(addr, amount);
     }
 
+    @Override
+    public Future<Map<Address, Transaction>> getConflictingTransactions(
+            Collection<Address> addrs, long amount) {
+
+        return coin.getConflictingTransactions(addrs, amount);
+    }
+
     @Override
     public Transaction getSpendingTransaction(Address addr, long amount) {
         return coin.getSpendingTransaction(addr, amount);
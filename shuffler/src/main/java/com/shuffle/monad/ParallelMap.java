@@ -0,0 +1,71 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.monad;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Does the same thing at every index of an array, splitting the indices among the threads
+ * of a fork-join pool. The thing done at each index should only touch that index.
+ */
+public class ParallelMap {
+
+    // What is done at a single index.
+    public interface Function {
+        void apply(int i);
+    }
+
+    private final ForkJoinPool pool;
+
+    // Below this number of indices, a task does its work without splitting.
+    private final int threshold;
+
+    public ParallelMap(ForkJoinPool pool, int threshold) {
+        if (pool == null) throw new NullPointerException();
+        if (threshold < 1) throw new IllegalArgumentException();
+
+        this.pool = pool;
+        this.threshold = threshold;
+    }
+
+    // Returns after f has been applied to every index from 0 up to size.
+    public void map(int size, Function f) {
+        if (f == null) throw new NullPointerException();
+
+        pool.invoke(new Task(f, 0, size));
+    }
+
+    private class Task extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Function f;
+        private final int begin;
+        private final int end;
+
+        Task(Function f, int begin, int end) {
+            this.f = f;
+            this.begin = begin;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - begin <= threshold) {
+                for (int i = begin; i < end; i++) {
+                    f.apply(i);
+                }
+                return;
+            }
+
+            int middle = (begin + end) >>> 1;
+            invokeAll(new Task(f, begin, middle), new Task(f, middle, end));
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.monitor;
+
+import com.shuffle.protocol.message.Phase;
+
+/**
+ * Receives measurements from a running round of the protocol. Implementations must be safe
+ * to call from many threads at once and should return quickly, since they are called on
+ * the protocol thread and on the network threads.
+ *
+ * All durations are in nanoseconds.
+ */
+public interface Metrics {
+
+    // The kinds of cryptographic operations that are measured.
+    enum Operation {
+        Sign,
+        Verify,
+        Encrypt,
+        Decrypt
+    }
+
+    // The protocol spent the given time in a phase. Each time the Blame phase
+    // is reported is one round of blame.
+    void phase(Phase phase, long nanos);
+
+    // A packet was sent to or received from a peer. Messages reports each packet under the
+    // VerificationKey of the player, and a channel reports the bytes it carries under whatever
+    // address it knows the peer by. The same Metrics should only be given to one of them, or
+    // the traffic is counted twice and split between two kinds of key.
+    void sent(Object peer, long bytes);
+
+    void received(Object peer, long bytes);
+
+    // A number of cryptographic operations of the same kind were done together.
+    void operation(Operation op, int count, long nanos);
+
+    // The number of packets which have arrived but which the protocol has not yet looked at.
+    void queueDepth(int depth);
+
+    // Measures nothing.
+    Metrics none = new Metrics() {
+        @Override
+        public void phase(Phase phase, long nanos) {
+
+        }
+
+        @Override
+        public void sent(Object peer, long bytes) {
+
+        }
+
+        @Override
+        public void received(Object peer, long bytes) {
+
+        }
+
+        @Override
+        public void operation(Operation op, int count, long nanos) {
+
+        }
+
+        @Override
+        public void queueDepth(int depth) {
+
+        }
+    };
+}
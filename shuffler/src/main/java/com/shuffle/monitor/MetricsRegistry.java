@@ -0,0 +1,199 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.monitor;
+
+import com.shuffle.protocol.message.Phase;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps totals of everything it is told in memory. The totals can be read at any time
+ * and can be written to the log periodically.
+ */
+public class MetricsRegistry implements Metrics {
+    private static final Logger log = LogManager.getLogger(MetricsRegistry.class);
+
+    // A number of events and the total time or size of all of them.
+    public static final class Total {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+
+        void add(long count, long sum) {
+            this.count.addAndGet(count);
+            this.sum.addAndGet(sum);
+        }
+
+        public long count() {
+            return count.get();
+        }
+
+        public long sum() {
+            return sum.get();
+        }
+
+        @Override
+        public String toString() {
+            return count.get() + " / " + sum.get();
+        }
+    }
+
+    // Packets and bytes exchanged with one peer.
+    public static final class Traffic {
+        public final Total sent = new Total();
+        public final Total received = new Total();
+
+        @Override
+        public String toString() {
+            return "sent " + sent + ", received " + received;
+        }
+    }
+
+    private final Map<Phase, Total> phases = new EnumMap<>(Phase.class);
+    private final Map<Operation, Total> operations = new EnumMap<>(Operation.class);
+    private final ConcurrentHashMap<Object, Traffic> traffic = new ConcurrentHashMap<>();
+
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicInteger maxDepth = new AtomicInteger();
+
+    public MetricsRegistry() {
+        // The maps are filled in completely at the start so that they never change afterwards
+        // and can be read without locking.
+        for (Phase phase : Phase.values()) {
+            phases.put(phase, new Total());
+        }
+
+        for (Operation op : Operation.values()) {
+            operations.put(op, new Total());
+        }
+    }
+
+    private Traffic open(Object peer) {
+        Traffic t = traffic.get(peer);
+        if (t != null) return t;
+
+        t = new Traffic();
+        Traffic old = traffic.putIfAbsent(peer, t);
+        return old == null ? t : old;
+    }
+
+    @Override
+    public void phase(Phase phase, long nanos) {
+        phases.get(phase).add(1, nanos);
+    }
+
+    @Override
+    public void sent(Object peer, long bytes) {
+        open(peer).sent.add(1, bytes);
+    }
+
+    @Override
+    public void received(Object peer, long bytes) {
+        open(peer).received.add(1, bytes);
+    }
+
+    @Override
+    public void operation(Operation op, int count, long nanos) {
+        operations.get(op).add(count, nanos);
+    }
+
+    @Override
+    public void queueDepth(int depth) {
+        this.depth.set(depth);
+
+        int max;
+        do {
+            max = maxDepth.get();
+        } while (depth > max && !maxDepth.compareAndSet(max, depth));
+    }
+
+    // How many times a phase was entered and the total time spent in it.
+    public Total phase(Phase phase) {
+        return phases.get(phase);
+    }
+
+    public Total operation(Operation op) {
+        return operations.get(op);
+    }
+
+    // Returns null if nothing has been exchanged with the peer.
+    public Traffic traffic(Object peer) {
+        return traffic.get(peer);
+    }
+
+    // Everything exchanged with all peers together.
+    public Traffic total() {
+        Traffic total = new Traffic();
+        for (Traffic t : traffic.values()) {
+            total.sent.add(t.sent.count(), t.sent.sum());
+            total.received.add(t.received.count(), t.received.sum());
+        }
+
+        return total;
+    }
+
+    public int queueDepth() {
+        return depth.get();
+    }
+
+    public int maxQueueDepth() {
+        return maxDepth.get();
+    }
+
+    // The number of times that the protocol has entered the blame phase.
+    public long blameRounds() {
+        return phases.get(Phase.Blame).count();
+    }
+
+    // Write the totals to the log at a fixed rate until the returned future is cancelled.
+    public ScheduledFuture<?> dump(ScheduledExecutorService exec, long period, TimeUnit unit) {
+        return exec.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                log.info(MetricsRegistry.this.toString());
+            }
+        }, period, period, unit);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder("Metrics[");
+
+        str.append("\n  phases (count / ns):");
+        for (Map.Entry<Phase, Total> e : phases.entrySet()) {
+            if (e.getValue().count() == 0) continue;
+            str.append("\n    ").append(e.getKey()).append(": ").append(e.getValue());
+        }
+
+        str.append("\n  operations (count / ns):");
+        for (Map.Entry<Operation, Total> e : operations.entrySet()) {
+            if (e.getValue().count() == 0) continue;
+            str.append("\n    ").append(e.getKey()).append(": ").append(e.getValue());
+        }
+
+        str.append("\n  traffic (packets / bytes):");
+        for (Map.Entry<Object, Traffic> e : traffic.entrySet()) {
+            str.append("\n    ").append(e.getKey()).append(": ").append(e.getValue());
+        }
+
+        str.append("\n  queue depth: ").append(depth.get())
+                .append(" (max ").append(maxDepth.get()).append(")");
+
+        return str.append("\n]").toString();
+    }
+}
@@ -0,0 +1,14 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ * This package is for measuring where a round of the protocol spends its time: how long
+ * each phase takes, how much is sent to and received from each peer, and how much time
+ * goes into cryptography.
+ *
+ * Nothing is measured unless an implementation of Metrics other than Metrics.none is
+ * given to the objects which are to be measured.
+ */
+package com.shuffle.monitor;
@@ -8,121 +8,264 @@
 
 package com.shuffle.p2p;
 
-/**
- * A simple wrapper for []byte.
- *
- * Created by Daniel Krawisz on 1/19/16.
- */
-
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamException;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.LinkedList;
 import java.util.List;
 
 /**
- * A wrapper for []byte.
+ * An immutable string of bytes.
+ *
+ * A Bytestring may be a view of part of an array which is shared with other Bytestrings,
+ * so that taking a piece of one does not copy anything. Joining two Bytestrings does not
+ * copy anything either until the bytes of the result are actually needed.
+ *
+ * Arrays given to or returned by a Bytestring must not be modified.
  *
  * Created by Daniel Krawisz on 12/19/15.
  */
 public class Bytestring implements Serializable {
-    public final byte[] bytes;
+    // The serialized form is an array, an offset and a length, rather than the whole array
+    // as it was before.
+    private static final long serialVersionUID = 2L;
+
+    // The bytes are array[offset, offset + length). If this Bytestring was made by joining
+    // two others, array is null and the two halves are kept until the bytes are needed.
+    private volatile byte[] array;
+    private final int offset;
+    private final int length;
+
+    private transient Bytestring first;
+    private transient Bytestring second;
+
+    // Zero if not yet computed.
+    private transient int hash = 0;
 
     public Bytestring(byte[] bytes) {
-        this.bytes = bytes;
+        this(bytes, 0, bytes.length);
+    }
+
+    // A view of part of an array.
+    public Bytestring(byte[] bytes, int offset, int length) {
+        if (bytes == null) throw new NullPointerException();
+        if (offset < 0 || length < 0 || offset + length > bytes.length || offset + length < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        this.array = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    private Bytestring(Bytestring first, Bytestring second) {
+        this.offset = 0;
+        this.length = first.length + second.length;
+        this.first = first;
+        this.second = second;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    // Write the bytes of the two halves into the given array, without recursion so that a
+    // long chain of joins cannot overflow the stack.
+    private static void flatten(Bytestring b, byte[] target) {
+        Deque<Bytestring> stack = new ArrayDeque<>();
+        stack.push(b);
+        int pos = 0;
+
+        while (!stack.isEmpty()) {
+            Bytestring next = stack.pop();
+            byte[] a = next.array;
+            if (a == null) {
+                // The halves may have been joined by another thread since we looked.
+                synchronized (next) {
+                    a = next.array;
+                    if (a == null) {
+                        stack.push(next.second);
+                        stack.push(next.first);
+                        continue;
+                    }
+                }
+            }
+
+            System.arraycopy(a, next.offset, target, pos, next.length);
+            pos += next.length;
+        }
+    }
+
+    // The array that holds the bytes, starting at offset.
+    private byte[] array() {
+        byte[] a = array;
+        if (a != null) return a;
+
+        synchronized (this) {
+            if (array == null) {
+                a = new byte[length];
+                flatten(this, a);
+                array = a;
+                first = null;
+                second = null;
+            }
+            return array;
+        }
+    }
+
+    // The bytes as an array of exactly the right size. This is only a copy if the
+    // Bytestring is a view of part of a larger array.
+    public byte[] bytes() {
+        byte[] a = array();
+        if (offset == 0 && length == a.length) return a;
+
+        return Arrays.copyOfRange(a, offset, offset + length);
+    }
+
+    // A read-only buffer containing the bytes, without copying them.
+    public ByteBuffer buffer() {
+        return ByteBuffer.wrap(array(), offset, length).slice().asReadOnlyBuffer();
+    }
+
+    public byte get(int i) {
+        if (i < 0 || i >= length) throw new IndexOutOfBoundsException();
+
+        return array()[offset + i];
+    }
+
+    // The bytes from begin up to but not including end, without copying them.
+    public Bytestring slice(int begin, int end) {
+        if (begin < 0 || end > length || begin > end) throw new IndexOutOfBoundsException();
+
+        if (begin == 0 && end == length) return this;
+
+        return new Bytestring(array(), offset + begin, end - begin);
     }
 
     public Bytestring prepend(Bytestring pre) {
-        ByteBuffer target = ByteBuffer.wrap(new byte[bytes.length + pre.bytes.length]);
-        target.put(pre.bytes);
-        target.put(bytes);
-        return new Bytestring(target.array());
+        if (pre.length == 0) return this;
+        if (length == 0) return pre;
+
+        return new Bytestring(pre, this);
     }
 
     public Bytestring append(Bytestring post) {
         return post.prepend(this);
     }
 
-    private Bytestring cp9(int last, int next) {
-        return new Bytestring(Arrays.copyOfRange(bytes, last, next));
-    }
-
     public Bytestring[] chop(int[] where) {
 
         List<Bytestring> l = new LinkedList<>();
         int last = 0;
-        int i = 0;
 
         for (int next : where) {
             if (next <= last) {
                 throw new IllegalArgumentException("chop locations have to be positive and increasing");
             }
 
-            if (next >= bytes.length) {
+            if (next >= length) {
                 throw new IllegalArgumentException("trying to chop beyond the end?");
             }
 
-            Bytestring section = cp9(last, next);
-            l.add(section);
-            i += section.bytes.length;
+            l.add(slice(last, next));
 
             last = next;
         }
 
-        if (i < bytes.length) {
-            l.add(cp9(last, bytes.length));
+        if (last < length) {
+            l.add(slice(last, length));
         }
 
         return l.toArray(new Bytestring[l.size()]);
     }
 
     public Bytestring xor(Bytestring b) {
-        if (bytes.length != b.bytes.length) {
+        if (length != b.length) {
             throw new IllegalArgumentException("different length not allowed");
         }
 
-        byte[] newBytes = new byte[bytes.length];
+        byte[] x = array();
+        byte[] y = b.array();
+        byte[] newBytes = new byte[length];
 
-        for (int i = 0; i < bytes.length; i++) {
-            newBytes[i] = (byte)(bytes[i] ^ b.bytes[i]);
+        for (int i = 0; i < length; i++) {
+            newBytes[i] = (byte)(x[offset + i] ^ y[b.offset + i]);
         }
 
         return new Bytestring(newBytes);
     }
 
+    // The time taken depends only on the length, so that comparing a
+    // signature does not reveal how much of it was right.
     @Override
     public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+
         if (!(o instanceof Bytestring)) {
             return false;
         }
 
         Bytestring b = (Bytestring)o;
 
-        if (b.bytes.length != bytes.length) {
+        if (b.length != length) {
             return false;
         }
 
-        for (int i = 0; i < bytes.length; i ++) {
-            if (bytes[i] != b.bytes[i]) {
-                return false;
-            }
+        byte[] x = array();
+        byte[] y = b.array();
+        int dif = 0;
+        for (int i = 0; i < length; i ++) {
+            dif |= x[offset + i] ^ y[b.offset + i];
         }
 
-        return true;
+        return dif == 0;
     }
 
     @Override
     public int hashCode() {
-        int code = 0;
-        for (int i : bytes) {
-            code += i;
+        int h = hash;
+        if (h == 0) {
+            byte[] a = array();
+            h = 1;
+            for (int i = offset; i < offset + length; i++) {
+                h = 31 * h + a[i];
+            }
+            hash = h;
         }
 
-        return code;
+        return h;
+    }
+
+    // Only the bytes themselves are serialized, not the array they are part of.
+    private Object writeReplace() throws ObjectStreamException {
+        byte[] a = array();
+        if (offset == 0 && length == a.length) return this;
+
+        return new Bytestring(bytes());
+    }
+
+    // A Bytestring may come from the network, so make sure that it is one that could
+    // have been made by the constructor.
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+
+        if (array == null) throw new InvalidObjectException("No bytes");
+        if (offset < 0 || length < 0 || offset + length > array.length
+                || offset + length < 0) {
+            throw new InvalidObjectException("Bytes out of range");
+        }
     }
 
     @Override
     public String toString() {
-        return Arrays.toString(bytes);
+        return Arrays.toString(bytes());
     }
 }
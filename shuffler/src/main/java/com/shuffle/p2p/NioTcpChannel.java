@@ -0,0 +1,729 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.p2p;
+
+import com.shuffle.chan.Send;
+import com.shuffle.monitor.Metrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A manager for tcp connections which uses non-blocking sockets. Unlike TcpChannel, which
+ * requires a thread for every open session, a small fixed number of event loops services
+ * every session, so it is suitable for a node which talks to many peers at once.
+ *
+ * Messages are framed with the same Header as TcpChannel. Every session has its own queue
+ * of outgoing messages. If a peer reads too slowly and the queue grows beyond the capacity
+ * given in the constructor, send returns false instead of blocking the caller. A peer which
+ * announces a message longer than MAX_FRAME is disconnected.
+ *
+ * Opening a session does not wait for the connection to be made. The session can be used
+ * at once, and messages sent on it wait in its queue until the event loop has connected.
+ * If the connection cannot be made, the session is closed, as though the peer had closed it.
+ *
+ * Messages received are passed on from the event loop threads, so the Send objects given
+ * to this channel should not block.
+ */
+public class NioTcpChannel implements Channel<InetSocketAddress, Bytestring> {
+
+    // The default number of bytes allowed to wait in a session's outgoing queue.
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+
+    // The longest message that may be sent or received, so that a peer cannot make us
+    // allocate as much as they like just by sending a header.
+    public static final int MAX_FRAME = 1 << 24;
+
+    // A particular header format that is used for this particular channel.
+    private final TcpChannel.Header header;
+
+    private final InetSocketAddress me;
+
+    // The number of event loops to run.
+    private final int threads;
+
+    // The maximum number of bytes which may wait to be written for a single session.
+    private final int capacity;
+
+    // Only one object representing each peer is allowed at a time.
+    private final Map<InetSocketAddress, NioPeer> peers = new HashMap<>();
+
+    // The sessions which are currently open.
+    private final ConcurrentMap<InetSocketAddress, NioPeer.NioSession> openSessions
+            = new ConcurrentHashMap<>();
+
+    private final Object lock = new Object();
+
+    private boolean running = false;
+    private ServerSocketChannel server = null;
+    private EventLoop[] loops = null;
+    private ExecutorService executor = null;
+    private int next = 0;
+
+    private final Metrics metrics;
+
+    public NioTcpChannel(
+            TcpChannel.Header header,
+            InetSocketAddress me,
+            int threads,
+            int capacity,
+            Metrics metrics) {
+
+        if (header == null || me == null || metrics == null) throw new NullPointerException();
+
+        if (threads < 1 || capacity < 1) throw new IllegalArgumentException();
+
+        this.header = header;
+        this.me = me;
+        this.threads = threads;
+        this.capacity = capacity;
+        this.metrics = metrics;
+    }
+
+    public NioTcpChannel(
+            TcpChannel.Header header,
+            InetSocketAddress me,
+            int threads,
+            int capacity) {
+
+        this(header, me, threads, capacity, Metrics.none);
+    }
+
+    public NioTcpChannel(InetSocketAddress me, int threads) {
+        this(TcpChannel.defaultHeader(), me, threads, DEFAULT_CAPACITY);
+    }
+
+    // A single thread which waits on a selector and services all the sockets registered to it.
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+
+        // Tasks which must be run on this thread, such as registering new sockets.
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        private volatile boolean stopped = false;
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void stop() {
+            stopped = true;
+            selector.wakeup();
+        }
+
+        void register(final NioPeer.NioSession session) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        session.key = session.socket.register(
+                                selector, session.interest(), session);
+                    } catch (IOException e) {
+                        session.close();
+                        return;
+                    }
+
+                    // Anything which could not be written before now.
+                    session.flush();
+                }
+            });
+        }
+
+        void listen(final ServerSocketChannel server, final Acceptor acceptor) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        server.register(selector, SelectionKey.OP_ACCEPT, acceptor);
+                    } catch (IOException ignored) {
+
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    break;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+                while (i.hasNext()) {
+                    SelectionKey key = i.next();
+                    i.remove();
+
+                    if (!key.isValid()) continue;
+
+                    Object attachment = key.attachment();
+                    if (attachment instanceof Acceptor) {
+                        ((Acceptor) attachment).accept();
+                    } else {
+                        ((NioPeer.NioSession) attachment).ready(key);
+                    }
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioPeer.NioSession) {
+                    ((NioPeer.NioSession) key.attachment()).close();
+                }
+            }
+
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+
+            }
+        }
+    }
+
+    // Returns null if the channel is not open.
+    private EventLoop nextLoop() {
+        synchronized (lock) {
+            if (!running) return null;
+
+            EventLoop loop = loops[next];
+            next = (next + 1) % loops.length;
+            return loop;
+        }
+    }
+
+    private NioPeer peer(InetSocketAddress identity) {
+        synchronized (peers) {
+            NioPeer peer = peers.get(identity);
+            if (peer == null) {
+                peer = new NioPeer(identity);
+                peers.put(identity, peer);
+            }
+
+            return peer;
+        }
+    }
+
+    // Class definition for representation of a particular peer.
+    private class NioPeer extends FundamentalPeer<InetSocketAddress, Bytestring> {
+
+        NioPeer(InetSocketAddress identity) {
+            super(identity);
+        }
+
+        @Override
+        public synchronized Session<InetSocketAddress, Bytestring> openSession(
+                Send<Bytestring> send
+        ) throws InterruptedException {
+
+            if (send == null) throw new NullPointerException();
+
+            if (open()) return null;
+
+            InetSocketAddress identity = identity();
+
+            if (identity.getAddress() == null) return null;
+
+            EventLoop loop = nextLoop();
+            if (loop == null) return null;
+
+            // The connection is finished by the event loop, so we don't wait for it here.
+            SocketChannel socket = null;
+            boolean connected;
+            try {
+                socket = SocketChannel.open();
+                socket.configureBlocking(false);
+                connected = socket.connect(identity);
+            } catch (IOException e) {
+                try {
+                    if (socket != null) socket.close();
+                } catch (IOException ignored) {
+
+                }
+                return null;
+            }
+
+            NioSession session = new NioSession(socket, loop, connected);
+            session.receiver = send;
+
+            if (openSessions.putIfAbsent(identity, session) != null) {
+                session.close();
+                return null;
+            }
+
+            currentSession = session;
+            loop.register(session);
+
+            return session;
+        }
+
+        // Encapsulates a particular tcp session.
+        private class NioSession implements Session<InetSocketAddress, Bytestring> {
+            final SocketChannel socket;
+            final EventLoop loop;
+
+            // Only set by the event loop.
+            volatile SelectionKey key = null;
+
+            // Where incoming messages go. Set before the session is registered.
+            volatile Send<Bytestring> receiver = null;
+
+            // Frames waiting to be written and the number of bytes in them.
+            private final Queue<ByteBuffer> outgoing = new LinkedList<>();
+            private int queued = 0;
+
+            // False until the event loop has finished connecting.
+            private boolean connected;
+
+            private boolean closed = false;
+
+            // The frame being read.
+            private final ByteBuffer head = ByteBuffer.allocate(header.headerLength());
+            private ByteBuffer body = null;
+
+            private final Runnable flush = new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            };
+
+            NioSession(SocketChannel socket, EventLoop loop, boolean connected) {
+                this.socket = socket;
+                this.loop = loop;
+                this.connected = connected;
+            }
+
+            // What the event loop should wait for first.
+            synchronized int interest() {
+                return connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT;
+            }
+
+            @Override
+            public boolean send(Bytestring message) {
+                if (message == null) throw new NullPointerException();
+
+                // The other side would not accept it.
+                if (message.length() > MAX_FRAME) return false;
+
+                ByteBuffer frame;
+                try {
+                    byte[] h = header.makeHeader(message.length()).bytes();
+                    frame = ByteBuffer.allocate(h.length + message.length());
+                    frame.put(h).put(message.buffer());
+                    frame.flip();
+                } catch (IOException e) {
+                    return false;
+                }
+
+                synchronized (this) {
+                    if (closed) return false;
+
+                    if (!connected || !outgoing.isEmpty()) {
+                        // Too much is waiting already, so the peer must be falling behind.
+                        if (!outgoing.isEmpty() && queued + frame.remaining() > capacity) {
+                            return false;
+                        }
+
+                        // A write or the connection is already pending, so the event loop
+                        // will get to this one.
+                        outgoing.add(frame);
+                        queued += frame.remaining();
+                        metrics.sent(NioPeer.this.identity(), message.length());
+                        return true;
+                    }
+
+                    // Try to write the whole thing right away.
+                    try {
+                        socket.write(frame);
+                    } catch (IOException e) {
+                        closed = true;
+                    }
+
+                    if (!closed) {
+                        metrics.sent(NioPeer.this.identity(), message.length());
+
+                        if (!frame.hasRemaining()) return true;
+
+                        outgoing.add(frame);
+                        queued += frame.remaining();
+                    }
+                }
+
+                if (closed) {
+                    shutdown();
+                    return false;
+                }
+
+                loop.execute(flush);
+                return true;
+            }
+
+            // Write as much as possible from the outgoing queue. Only called by the event loop.
+            void flush() {
+                synchronized (this) {
+                    if (closed || !connected) return;
+
+                    SelectionKey key = this.key;
+                    if (key == null || !key.isValid()) return;
+
+                    try {
+                        while (!outgoing.isEmpty()) {
+                            ByteBuffer frame = outgoing.peek();
+                            queued -= socket.write(frame);
+
+                            if (frame.hasRemaining()) break;
+
+                            outgoing.remove();
+                        }
+
+                        key.interestOps(outgoing.isEmpty()
+                                ? SelectionKey.OP_READ
+                                : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    } catch (IOException e) {
+                        closed = true;
+                    }
+                }
+
+                shutdown();
+            }
+
+            // Read whatever is available. Only called by the event loop.
+            private void read() throws IOException, InterruptedException {
+                while (true) {
+                    if (body == null) {
+                        if (head.hasRemaining()) {
+                            if (socket.read(head) < 0) throw new IOException();
+
+                            if (head.hasRemaining()) return;
+                        }
+
+                        int length = header.payloadLength(head.array());
+
+                        if (length < 0 || length == 0 && head.capacity() == 0) {
+                            throw new IOException();
+                        }
+
+                        if (length > MAX_FRAME) {
+                            throw new IOException("Frame of " + length + " bytes is too long");
+                        }
+
+                        body = ByteBuffer.allocate(length);
+                    }
+
+                    if (body.hasRemaining()) {
+                        if (socket.read(body) < 0) throw new IOException();
+
+                        if (body.hasRemaining()) return;
+                    }
+
+                    Bytestring message = new Bytestring(body.array());
+                    body = null;
+                    head.clear();
+
+                    metrics.received(NioPeer.this.identity(), message.length());
+
+                    receiver.send(message);
+                }
+            }
+
+            // Finish connecting and write whatever has been waiting for the connection. Only
+            // called by the event loop.
+            private void connect() throws IOException {
+                if (!socket.finishConnect()) return;
+
+                synchronized (this) {
+                    connected = true;
+                }
+
+                flush();
+            }
+
+            void ready(SelectionKey key) {
+                try {
+                    if (key.isValid() && key.isConnectable()) {
+                        connect();
+                    }
+
+                    if (key.isValid() && key.isReadable()) {
+                        read();
+                    }
+
+                    if (key.isValid() && key.isWritable()) {
+                        flush();
+                    }
+                } catch (IOException | InterruptedException e) {
+                    close();
+                }
+            }
+
+            @Override
+            public void close() {
+                synchronized (this) {
+                    if (closed) return;
+
+                    closed = true;
+                }
+
+                shutdown();
+            }
+
+            // Release everything associated with this session once it has been marked closed.
+            private void shutdown() {
+                synchronized (this) {
+                    outgoing.clear();
+                    queued = 0;
+                }
+
+                SelectionKey key = this.key;
+                if (key != null) {
+                    key.cancel();
+                }
+
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+
+                }
+
+                openSessions.remove(identity(), this);
+
+                synchronized (NioPeer.this) {
+                    if (currentSession == this) {
+                        currentSession = null;
+                    }
+                }
+
+                Send<Bytestring> r = receiver;
+                receiver = null;
+                if (r != null) {
+                    try {
+                        r.close();
+                    } catch (InterruptedException ignored) {
+
+                    }
+                }
+            }
+
+            @Override
+            public synchronized boolean closed() {
+                return closed;
+            }
+
+            @Override
+            public Peer<InetSocketAddress, Bytestring> peer() {
+                return NioPeer.this;
+            }
+
+            @Override
+            public String toString() {
+                return "NioSession[" + identity() + "]";
+            }
+        }
+    }
+
+    // Accepts new connections initiated by remote peers. Only called by the first event loop.
+    private class Acceptor {
+        final Listener<InetSocketAddress, Bytestring> listener;
+        final ServerSocketChannel server;
+
+        private Acceptor(Listener<InetSocketAddress, Bytestring> listener,
+                         ServerSocketChannel server) {
+
+            this.listener = listener;
+            this.server = server;
+        }
+
+        void accept() {
+            SocketChannel client;
+            InetSocketAddress identity;
+            try {
+                client = server.accept();
+                if (client == null) return;
+
+                identity = (InetSocketAddress) client.getRemoteAddress();
+                client.configureBlocking(false);
+            } catch (IOException e) {
+                return;
+            }
+
+            EventLoop loop = nextLoop();
+            NioPeer peer = peer(identity);
+            NioPeer.NioSession session = null;
+
+            if (loop != null) {
+                synchronized (peer) {
+                    try {
+                        if (!peer.open()) {
+                            session = peer.new NioSession(client, loop, true);
+
+                            if (openSessions.putIfAbsent(identity, session) == null) {
+                                peer.currentSession = session;
+                            } else {
+                                session = null;
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        session = null;
+                    }
+                }
+            }
+
+            if (session == null) {
+                try {
+                    client.close();
+                } catch (IOException ignored) {
+
+                }
+                return;
+            }
+
+            Send<Bytestring> receiver;
+            try {
+                receiver = listener.newSession(session);
+            } catch (InterruptedException e) {
+                receiver = null;
+            }
+
+            if (receiver == null) {
+                session.close();
+                return;
+            }
+
+            session.receiver = receiver;
+            loop.register(session);
+        }
+    }
+
+    private class NioConnection implements Connection<InetSocketAddress> {
+        private boolean closed = false;
+
+        @Override
+        public InetSocketAddress identity() {
+            return me;
+        }
+
+        @Override
+        public void close() {
+            synchronized (lock) {
+                if (closed) return;
+
+                closed = true;
+                running = false;
+
+                try {
+                    server.close();
+                } catch (IOException ignored) {
+
+                }
+                server = null;
+
+                for (NioPeer.NioSession session : openSessions.values()) {
+                    session.close();
+                }
+
+                for (EventLoop loop : loops) {
+                    loop.stop();
+                }
+                loops = null;
+
+                executor.shutdown();
+                executor = null;
+            }
+        }
+
+        @Override
+        public boolean closed() {
+            synchronized (lock) {
+                return closed;
+            }
+        }
+    }
+
+    @Override
+    public Connection<InetSocketAddress> open(
+            Listener<InetSocketAddress, Bytestring> listener
+    ) {
+        if (listener == null) throw new NullPointerException();
+
+        synchronized (lock) {
+            if (running) return null;
+
+            EventLoop[] loops = new EventLoop[threads];
+            try {
+                server = ServerSocketChannel.open();
+                server.bind(new InetSocketAddress(me.getPort()));
+                server.configureBlocking(false);
+
+                for (int i = 0; i < threads; i++) {
+                    loops[i] = new EventLoop();
+                }
+            } catch (IOException e) {
+                try {
+                    if (server != null) server.close();
+                } catch (IOException ignored) {
+
+                }
+                server = null;
+                return null;
+            }
+
+            this.loops = loops;
+            next = 0;
+            executor = Executors.newFixedThreadPool(threads);
+            for (EventLoop loop : loops) {
+                executor.execute(loop);
+            }
+
+            loops[0].listen(server, new Acceptor(listener, server));
+
+            running = true;
+            return new NioConnection();
+        }
+    }
+
+    @Override
+    public InetSocketAddress identity() {
+        return me;
+    }
+
+    @Override
+    public Peer<InetSocketAddress, Bytestring> getPeer(InetSocketAddress you) {
+
+        if (you.equals(me)) return null;
+
+        return peer(you);
+    }
+}
@@ -1,14 +1,16 @@
 package com.shuffle.p2p;
 
 import com.shuffle.chan.Send;
+import com.shuffle.monitor.Metrics;
 
-import java.io.InputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -17,6 +19,12 @@ import java.util.concurrent.Executor;
 /**
  * A manager for a bunch of tcp connections.
  *
+ * Each session has its own thread which reads whole frames from a blocking socket. A frame
+ * is a header followed by the payload, and both are written with a single gathering write.
+ * The payload is read straight into the array which backs the Bytestring that is passed on,
+ * so it is never copied. Nagle's algorithm is turned off, since the protocol sends small
+ * messages and waits for the replies.
+ *
  * Created by Daniel Krawisz on 1/25/16.
  */
 public class TcpChannel implements Channel<InetSocketAddress, Bytestring> {
@@ -110,7 +118,7 @@ public class TcpChannel implements Channel<InetSocketAddress, Bytestring> {
         // This is for creating a session that was initiated by a remote peer.
         public synchronized TcpPeer.TcpSession putOpenSession(
                 InetSocketAddress identity,
-                Socket client
+                SocketChannel client
         ) {
             TcpPeer.TcpSession openSession = openSessions.get(identity);
             if (openSession != null) {
@@ -169,7 +177,7 @@ public class TcpChannel implements Channel<InetSocketAddress, Bytestring> {
             this.currentSession = session;
         }
 
-        private TcpPeer setSession(Socket socket) throws IOException {
+        private TcpPeer setSession(SocketChannel socket) throws IOException {
             currentSession = new TcpSession(socket);
             return this;
         }
@@ -185,9 +193,7 @@ public class TcpChannel implements Channel<InetSocketAddress, Bytestring> {
 
             try {
 
-                Socket socket = new Socket(identity.getAddress(), identity.getPort());
-
-                return new TcpSession(socket);
+                return new TcpSession(SocketChannel.open(identity));
             } catch (IOException e) {
                 return null;
             }
@@ -221,16 +227,20 @@ public class TcpChannel implements Channel<InetSocketAddress, Bytestring> {
 
         // Encapsulates a particular tcp session.
         private class TcpSession implements Session<InetSocketAddress, Bytestring> {
+            final SocketChannel channel;
             Socket socket;
-            InputStream in;
 
-            TcpSession(Socket socket) throws IOException {
-                if (socket == null) {
+            // The header and payload of the frame being written.
+            private final ByteBuffer[] frame = new ByteBuffer[2];
+
+            TcpSession(SocketChannel channel) throws IOException {
+                if (channel == null) {
                     throw new NullPointerException();
                 }
 
-                this.socket = socket;
-                in = socket.getInputStream();
+                this.channel = channel;
+                socket = channel.socket();
+                socket.setTcpNoDelay(true);
             }
 
             @Override
@@ -243,8 +253,15 @@ public class TcpChannel implements Channel<InetSocketAddress, Bytestring> {
                 }
 
                 try {
-                    socket.getOutputStream().write(header.makeHeader(message.bytes.length).bytes);
-                    socket.getOutputStream().write(message.bytes);
+                    frame[0] = ByteBuffer.wrap(header.makeHeader(message.length()).bytes());
+                    frame[1] = message.buffer();
+
+                    // A blocking channel writes everything at once, but it is not promised.
+                    while (frame[1].hasRemaining()) {
+                        channel.write(frame);
+                    }
+
+                    metrics.sent(TcpPeer.this.identity(), message.length());
                 } catch (IOException e) {
                     // socket should be closed by throwing an exception.
                     socket = null;
@@ -261,12 +278,11 @@ public class TcpChannel implements Channel<InetSocketAddress, Bytestring> {
                 }
 
                 try {
-                    socket.close();
+                    channel.close();
                 } catch (IOException ignored) {
 
                 }
                 socket = null;
-                in = null;
                 TcpPeer.this.currentSession = null;
                 openSessions.remove(TcpPeer.this.identity());
             }
@@ -285,30 +301,39 @@ public class TcpChannel implements Channel<InetSocketAddress, Bytestring> {
 
     private class TcpReceiver implements Runnable {
         final TcpPeer.TcpSession session;
-        final InputStream in;
+        final SocketChannel in;
         final Send<Bytestring> send;
 
+        // The same buffer is used for every header.
+        private final ByteBuffer head = ByteBuffer.allocate(header.headerLength());
+
         private TcpReceiver(TcpPeer.TcpSession session, Send<Bytestring> send) {
             this.session = session;
-            this.in = session.in;
+            this.in = session.channel;
             this.send = send;
         }
 
+        // A single read may return only part of a frame, so we keep reading until it is full.
+        private void readFully(ByteBuffer b) throws IOException {
+            while (b.hasRemaining()) {
+                if (in.read(b) < 0) throw new EOFException();
+            }
+        }
+
         @Override
         public void run() {
             while (true) {
                 try {
-                    byte[] head = new byte[header.headerLength()];
-                    in.read(head);
+                    head.clear();
+                    readFully(head);
 
-                    byte[] msg = new byte[header.payloadLength(head)];
-                    int total = in.read(msg);
+                    int length = header.payloadLength(head.array());
+                    if (length < 0) throw new IOException("Negative payload length " + length);
 
-                    if (total < msg.length) {
-                        session.close();
-                        break;
-                    }
+                    byte[] msg = new byte[length];
+                    readFully(ByteBuffer.wrap(msg));
 
+                    metrics.received(session.peer().identity(), msg.length);
                     send.send(new Bytestring(msg));
 
                 } catch (IOException | InterruptedException e) {
@@ -328,9 +353,11 @@ public class TcpChannel implements Channel<InetSocketAddress, Bytestring> {
     // This contains the function that listens for new tcp connections.
     private class TcpListener implements Runnable {
         final Listener<InetSocketAddress, Bytestring> listener;
-        final ServerSocket server;
+        final ServerSocketChannel server;
 
-        private TcpListener(Listener<InetSocketAddress, Bytestring> listener, ServerSocket server) {
+        private TcpListener(
+                Listener<InetSocketAddress, Bytestring> listener,
+                ServerSocketChannel server) {
             this.listener = listener;
             this.server = server;
         }
@@ -340,11 +367,12 @@ public class TcpChannel implements Channel<InetSocketAddress, Bytestring> {
             while (true) {
                 try {
                     // New connection found.
-                    Socket client = server.accept();
+                    SocketChannel client = server.accept();
 
                     // Determine the identity of this connection.
+                    Socket socket = client.socket();
                     InetSocketAddress identity =
-                            new InetSocketAddress(client.getInetAddress(), client.getPort());
+                            new InetSocketAddress(socket.getInetAddress(), socket.getPort());
 
                     TcpPeer.TcpSession session = openSessions.putOpenSession(identity, client);
 
@@ -370,18 +398,21 @@ public class TcpChannel implements Channel<InetSocketAddress, Bytestring> {
     private final int port;
     private final InetSocketAddress me;
 
-    private ServerSocket server;
+    private ServerSocketChannel server;
     private boolean running = false;
     private final Executor executor;
 
     private final Object lock = new Object();
 
+    private final Metrics metrics;
+
     public TcpChannel(
             Header header,
             InetSocketAddress me,
-            Executor executor) {
+            Executor executor,
+            Metrics metrics) {
 
-        if (executor == null || header == null || me == null) {
+        if (executor == null || header == null || me == null || metrics == null) {
             throw new NullPointerException();
         }
 
@@ -389,6 +420,15 @@ public class TcpChannel implements Channel<InetSocketAddress, Bytestring> {
         this.header = header;
         this.executor = executor;
         this.port = me.getPort();
+        this.metrics = metrics;
+    }
+
+    public TcpChannel(
+            Header header,
+            InetSocketAddress me,
+            Executor executor) {
+
+        this(header, me, executor, Metrics.none);
     }
 
     public TcpChannel(InetSocketAddress me, Executor executor) {
@@ -442,7 +482,14 @@ public class TcpChannel implements Channel<InetSocketAddress, Bytestring> {
 
             if (server == null) {
                 try {
-                    server = new ServerSocket(port);
+                    ServerSocketChannel s = ServerSocketChannel.open();
+                    try {
+                        s.bind(new InetSocketAddress(port));
+                    } catch (IOException e) {
+                        s.close();
+                        throw e;
+                    }
+                    server = s;
                 } catch (IOException e) {
                     return null;
                 }
@@ -253,7 +253,7 @@ public class WebsocketServerChannel implements Channel<InetAddress, Bytestring>
 
                 try {
                     // MUST sendBinary rather than sendText to receive byte[] messages
-                    ByteBuffer buf = ByteBuffer.wrap(message.bytes);
+                    ByteBuffer buf = ByteBuffer.wrap(message.bytes());
                     session.getBasicRemote().sendBinary(buf);
                 } catch (IOException e) {
                     return false;
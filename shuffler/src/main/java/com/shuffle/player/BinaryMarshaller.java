@@ -0,0 +1,454 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.player;
+
+import com.shuffle.bitcoin.Address;
+import com.shuffle.bitcoin.DecryptionKey;
+import com.shuffle.bitcoin.EncryptionKey;
+import com.shuffle.bitcoin.Transaction;
+import com.shuffle.bitcoin.VerificationKey;
+import com.shuffle.chan.packet.JavaMarshaller;
+import com.shuffle.chan.packet.Marshaller;
+import com.shuffle.chan.packet.Packet;
+import com.shuffle.chan.packet.SessionIdentifier;
+import com.shuffle.chan.packet.SignedMarshaller;
+import com.shuffle.p2p.Bytestring;
+import com.shuffle.protocol.FormatException;
+import com.shuffle.protocol.blame.Blame;
+import com.shuffle.protocol.blame.Reason;
+import com.shuffle.protocol.message.Phase;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Queue;
+
+/**
+ * A compact binary format for CoinShuffle packets. Unlike the JavaMarshaller, no class
+ * descriptors are written. Every packet begins with a version byte and everything of variable
+ * size is prefixed by its length.
+ *
+ * The objects which depend on the particular cryptography and cryptocurrency in use, such as
+ * keys and addresses, are written by marshallers provided in the constructor. By default
+ * these are written with java serialization.
+ */
+public class BinaryMarshaller implements Marshaller<Packet<VerificationKey, P>> {
+    private static final Logger log = LogManager.getLogger(BinaryMarshaller.class);
+
+    public static final byte VERSION = 1;
+
+    // Tags for the different kinds of atoms.
+    private static final byte ADDRESS = 1;
+    private static final byte ENCRYPTION_KEY = 2;
+    private static final byte SIGNATURE = 3;
+    // 4 was for hashes, which are now sent as plain bytes.
+    private static final byte BLAME = 5;
+    private static final byte TRANSACTION = 6;
+    private static final byte PACKET = 7;
+
+    // Flags which indicate that a message has a different session or sender from its packet.
+    private static final byte OTHER_SESSION = 1;
+    private static final byte OTHER_SENDER = 2;
+
+    private static final Phase[] phases = Phase.values();
+    private static final Reason[] reasons = Reason.values();
+
+    private final Marshaller<SessionIdentifier> session;
+    private final Marshaller<VerificationKey> vk;
+    private final Marshaller<Address> address;
+    private final Marshaller<EncryptionKey> ek;
+    private final Marshaller<DecryptionKey> dk;
+    private final Marshaller<Transaction> transaction;
+
+    // Used for packets that are nested inside of messages.
+    private final SignedMarshaller<Packet<VerificationKey, P>> signed;
+
+    public BinaryMarshaller(
+            Marshaller<SessionIdentifier> session,
+            Marshaller<VerificationKey> vk,
+            Marshaller<Address> address,
+            Marshaller<EncryptionKey> ek,
+            Marshaller<DecryptionKey> dk,
+            Marshaller<Transaction> transaction) {
+
+        if (session == null || vk == null || address == null
+                || ek == null || dk == null || transaction == null)
+            throw new NullPointerException();
+
+        this.session = session;
+        this.vk = vk;
+        this.address = address;
+        this.ek = ek;
+        this.dk = dk;
+        this.transaction = transaction;
+        signed = new SignedMarshaller<>(this);
+    }
+
+    public BinaryMarshaller() {
+        this(new Serialized<>(SessionIdentifier.class), new Serialized<>(VerificationKey.class),
+                new Serialized<>(Address.class), new Serialized<>(EncryptionKey.class),
+                new Serialized<>(DecryptionKey.class), new Serialized<>(Transaction.class));
+    }
+
+    // Writes an object with java serialization. Used for types that we know nothing about.
+    private static class Serialized<X> implements Marshaller<X> {
+        private final JavaMarshaller<Serializable> java = new JavaMarshaller<>();
+
+        // What is read back is checked against this, since it could be anything.
+        private final Class<X> type;
+
+        private Serialized(Class<X> type) {
+            this.type = type;
+        }
+
+        @Override
+        public Bytestring marshall(X x) {
+            if (!(x instanceof Serializable)) return null;
+
+            return java.marshall((Serializable) x);
+        }
+
+        @Override
+        public X unmarshall(Bytestring string) {
+            Serializable x = java.unmarshall(string);
+            return type.isInstance(x) ? type.cast(x) : null;
+        }
+    }
+
+    // A growable byte array to write to.
+    private static class Writer {
+        private byte[] buf = new byte[256];
+        private int pos = 0;
+
+        private void ensure(int n) {
+            if (pos + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        // Unsigned LEB128.
+        void writeVarInt(int n) {
+            ensure(5);
+            while ((n & ~0x7F) != 0) {
+                buf[pos++] = (byte) ((n & 0x7F) | 0x80);
+                n >>>= 7;
+            }
+            buf[pos++] = (byte) n;
+        }
+
+        void writeBytes(byte[] b) {
+            writeVarInt(b.length);
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, pos, b.length);
+            pos += b.length;
+        }
+
+        Bytestring bytestring() {
+            return new Bytestring(Arrays.copyOf(buf, pos));
+        }
+    }
+
+    private static class Reader {
+        private final byte[] buf;
+        private int pos = 0;
+
+        Reader(byte[] buf) {
+            this.buf = buf;
+        }
+
+        int readByte() throws FormatException {
+            if (pos >= buf.length) throw new FormatException();
+
+            return buf[pos++] & 0xFF;
+        }
+
+        int readVarInt() throws FormatException {
+            int n = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = readByte();
+                n |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return n;
+            }
+
+            throw new FormatException();
+        }
+
+        byte[] readBytes() throws FormatException {
+            int length = readVarInt();
+            if (length < 0 || length > buf.length - pos) {
+                throw new FormatException();
+            }
+
+            byte[] b = Arrays.copyOfRange(buf, pos, pos + length);
+            pos += length;
+            return b;
+        }
+
+        boolean done() {
+            return pos == buf.length;
+        }
+    }
+
+    private static <X> void write(Writer w, Marshaller<X> m, X x) {
+        Bytestring b = m.marshall(x);
+        if (b == null) throw new IllegalArgumentException("Could not marshall " + x);
+
+        w.writeBytes(b.bytes());
+    }
+
+    private static <X> X read(Reader r, Marshaller<X> m) throws FormatException {
+        X x = m.unmarshall(new Bytestring(r.readBytes()));
+        if (x == null) throw new FormatException();
+
+        return x;
+    }
+
+    private void writePacket(Writer w, Packet<VerificationKey, P> p) {
+        write(w, session, p.session);
+        write(w, vk, p.from);
+
+        // A broadcast packet has no recipient, which is written as an empty string.
+        if (p.broadcast()) {
+            w.writeVarInt(0);
+        } else {
+            write(w, vk, p.to);
+        }
+        w.writeVarInt(p.sequenceNumber);
+        w.writeByte(p.payload.phase.ordinal());
+
+        Message m = p.payload.message;
+        int flags = (m.session.equals(p.session) ? 0 : OTHER_SESSION)
+                | (m.from.equals(p.from) ? 0 : OTHER_SENDER);
+        w.writeByte(flags);
+        if ((flags & OTHER_SESSION) != 0) write(w, session, m.session);
+        if ((flags & OTHER_SENDER) != 0) write(w, vk, m.from);
+
+        writeAtoms(w, m);
+    }
+
+    private Packet<VerificationKey, P> readPacket(Reader r) throws FormatException {
+        SessionIdentifier s = read(r, session);
+        VerificationKey from = read(r, vk);
+        byte[] t = r.readBytes();
+        VerificationKey to = null;
+        if (t.length != 0) {
+            to = vk.unmarshall(new Bytestring(t));
+            if (to == null) throw new FormatException();
+        }
+        int sequenceNumber = r.readVarInt();
+        Phase phase = readEnum(r, phases);
+
+        int flags = r.readByte();
+        SessionIdentifier ms = (flags & OTHER_SESSION) != 0 ? read(r, session) : s;
+        VerificationKey mfrom = (flags & OTHER_SENDER) != 0 ? read(r, vk) : from;
+
+        return new Packet<>(s, from, to, sequenceNumber,
+                new P(readAtoms(r, new Message(ms, mfrom, null)), phase));
+    }
+
+    private void writeAtoms(Writer w, Message m) {
+        int size = m.size();
+
+        w.writeVarInt(size);
+        for (int i = 0; i < size; i++) {
+            Object a = m.get(i);
+            if (a instanceof Address) {
+                w.writeByte(ADDRESS);
+                write(w, address, (Address) a);
+            } else if (a instanceof EncryptionKey) {
+                w.writeByte(ENCRYPTION_KEY);
+                write(w, ek, (EncryptionKey) a);
+            } else if (a instanceof Bytestring) {
+                w.writeByte(SIGNATURE);
+                w.writeBytes(((Bytestring) a).bytes());
+            } else if (a instanceof Blame) {
+                w.writeByte(BLAME);
+                writeBlame(w, (Blame) a);
+            } else if (a instanceof Transaction) {
+                w.writeByte(TRANSACTION);
+                write(w, transaction, (Transaction) a);
+            } else if (a instanceof com.shuffle.protocol.message.Packet) {
+                w.writeByte(PACKET);
+                writeNested(w, (com.shuffle.protocol.message.Packet) a);
+            } else {
+                throw new IllegalArgumentException();
+            }
+        }
+    }
+
+    private Message readAtoms(Reader r, Message m) throws FormatException {
+        int count = r.readVarInt();
+        if (count < 0) throw new FormatException();
+
+        for (int i = 0; i < count; i++) {
+            switch (r.readByte()) {
+                case ADDRESS:
+                    m = m.attachAtom(read(r, address));
+                    break;
+                case ENCRYPTION_KEY:
+                    m = m.attachAtom(read(r, ek));
+                    break;
+                case SIGNATURE:
+                    m = m.attachAtom(new Bytestring(r.readBytes()));
+                    break;
+                case BLAME:
+                    m = m.attachAtom(readBlame(r));
+                    break;
+                case TRANSACTION:
+                    m = m.attachAtom(read(r, transaction));
+                    break;
+                case PACKET:
+                    m = m.attachAtom(readNested(r));
+                    break;
+                default:
+                    throw new FormatException();
+            }
+        }
+
+        return m;
+    }
+
+    private void writeNested(Writer w, com.shuffle.protocol.message.Packet packet) {
+        if (!(packet instanceof Messages.SignedPacket)) {
+            throw new IllegalArgumentException("Cannot marshall packet " + packet);
+        }
+
+        write(w, signed, ((Messages.SignedPacket) packet).packet);
+    }
+
+    private Messages.SignedPacket readNested(Reader r) throws FormatException {
+        return new Messages.SignedPacket(read(r, signed));
+    }
+
+    private void writeBlame(Writer w, Blame blame) {
+        w.writeByte(blame.reason.ordinal());
+
+        switch (blame.reason) {
+            case InsufficientFunds:
+            case DoubleSpend:
+                write(w, vk, blame.accused);
+                write(w, transaction, blame.t);
+                break;
+            case NoFundsAtAll:
+            case ShuffleFailure:
+            case MissingOutput:
+                write(w, vk, blame.accused);
+                break;
+            case InvalidSignature:
+                write(w, vk, blame.accused);
+                w.writeBytes(blame.invalid.bytes());
+                break;
+            case ShuffleAndEquivocationFailure:
+                write(w, dk, blame.privateKey);
+                writePackets(w, blame.packets);
+                break;
+            case EquivocationFailure:
+                writePackets(w, blame.packets);
+                break;
+            default:
+                throw new IllegalArgumentException("Cannot marshall blame " + blame);
+        }
+    }
+
+    private void writePackets(Writer w, Queue<com.shuffle.protocol.message.Packet> packets) {
+        w.writeVarInt(packets.size());
+        for (com.shuffle.protocol.message.Packet packet : packets) {
+            writeNested(w, packet);
+        }
+    }
+
+    private Blame readBlame(Reader r) throws FormatException {
+        switch (readEnum(r, reasons)) {
+            case InsufficientFunds:
+                return Blame.InsufficientFunds(read(r, vk), read(r, transaction));
+            case DoubleSpend:
+                return Blame.DoubleSpend(read(r, vk), read(r, transaction));
+            case NoFundsAtAll:
+                return Blame.NoFundsAtAll(read(r, vk));
+            case ShuffleFailure:
+                return Blame.ShuffleFailure(read(r, vk));
+            case MissingOutput:
+                return Blame.MissingOutput(read(r, vk));
+            case InvalidSignature:
+                return Blame.InvalidSignature(read(r, vk), new Bytestring(r.readBytes()));
+            case EquivocationFailure:
+                return Blame.EquivocationFailure(readPackets(r));
+            case ShuffleAndEquivocationFailure: {
+                DecryptionKey key = read(r, dk);
+                return Blame.ShuffleAndEquivocationFailure(key, readPackets(r));
+            }
+            default:
+                throw new FormatException();
+        }
+    }
+
+    private Queue<com.shuffle.protocol.message.Packet> readPackets(Reader r)
+            throws FormatException {
+
+        int count = r.readVarInt();
+        if (count < 0) throw new FormatException();
+
+        Queue<com.shuffle.protocol.message.Packet> packets = new LinkedList<>();
+        for (int i = 0; i < count; i++) {
+            packets.add(readNested(r));
+        }
+
+        return packets;
+    }
+
+    private static <E extends Enum<E>> E readEnum(Reader r, E[] values) throws FormatException {
+        int i = r.readByte();
+        if (i >= values.length) throw new FormatException();
+
+        return values[i];
+    }
+
+    @Override
+    public Bytestring marshall(Packet<VerificationKey, P> p) {
+        Writer w = new Writer();
+        w.writeByte(VERSION);
+
+        try {
+            writePacket(w, p);
+        } catch (IllegalArgumentException e) {
+            log.error("Could not marshall packet " + p + " got error " + e);
+            return null;
+        }
+
+        return w.bytestring();
+    }
+
+    @Override
+    public Packet<VerificationKey, P> unmarshall(Bytestring string) {
+        Reader r = new Reader(string.bytes());
+
+        try {
+            int version = r.readByte();
+            if (version != VERSION) {
+                throw new FormatException();
+            }
+
+            Packet<VerificationKey, P> p = readPacket(r);
+            if (!r.done()) throw new FormatException();
+
+            return p;
+        } catch (FormatException | IllegalArgumentException | NullPointerException e) {
+            log.error("Could not unmarshall " + string + " got error " + e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.player;
+
+import com.shuffle.bitcoin.Crypto;
+import com.shuffle.bitcoin.DecryptionKey;
+import com.shuffle.bitcoin.SigningKey;
+import com.shuffle.bitcoin.VerificationKey;
+import com.shuffle.chan.Send;
+import com.shuffle.chan.packet.Marshaller;
+import com.shuffle.chan.packet.Packet;
+import com.shuffle.chan.packet.Signed;
+import com.shuffle.chan.packet.SignedMarshaller;
+import com.shuffle.p2p.Bytestring;
+import com.shuffle.protocol.message.Phase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * A journal of a round of the protocol, so that a player whose process stops in the middle
+ * of a round can take it up again instead of making everyone start a new one.
+ *
+ * The journal is a file which is only ever appended to. It records the packets that the
+ * player sends and receives, the phases they go through, and the random choices they make.
+ * To resume, the round is run again from the beginning with the same journal. Packets that
+ * were received before are read from the journal instead of the network, random choices come
+ * out the same way, and packets that were sent before are sent again exactly as they were,
+ * so that the player cannot be accused of equivocating. Once the journal runs out, the round
+ * carries on over the network from the phase that it had reached.
+ *
+ * A packet is on disk before it is sent and before it is given to the round, so the player
+ * never sends anything that they could not send again and never acts on a packet that no one
+ * would send them again. The phases and random choices are not forced to disk by themselves
+ * but go along with the next packet, since until then nothing depends on them.
+ *
+ * The journal holds the decryption key of the round as it is, so the file can be read only by
+ * its owner, and it should be deleted once the round is over. Anyone who can read it while
+ * the round is still going can take the new addresses of the players after this one off
+ * their onions.
+ *
+ * To use it, give the journal to Messages, give crypto() to CoinShuffle, and give phases()
+ * to runProtocol. The decryption keys made by the crypto must be Serializable.
+ */
+public class Journal {
+
+    // The kinds of record. Each record is a kind, a length, a checksum, and then the bytes.
+    private static final byte PHASE = 1;
+    private static final byte SENT = 2;
+    private static final byte RECEIVED = 3;
+    private static final byte RANDOM = 4;
+    private static final byte KEY = 5;
+
+    private static final int HEADER = 9;
+
+    private final Marshaller<Signed<Packet<VerificationKey, P>>> marshaller;
+    private final Path path;
+    private final FileChannel file;
+
+    // Records which have not been written yet.
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(buffer);
+    private int pending = 0;
+
+    // What was read from the file and has not been replayed yet.
+    private final Deque<Phase> phases = new ArrayDeque<>();
+    private final Deque<Signed<Packet<VerificationKey, P>>> sent = new ArrayDeque<>();
+    private final Deque<Signed<Packet<VerificationKey, P>>> received = new ArrayDeque<>();
+    private final Deque<Integer> randoms = new ArrayDeque<>();
+    private final Deque<Bytestring> keys = new ArrayDeque<>();
+
+    // The last phase in the file when it was opened.
+    private final Phase phase;
+
+    // Only the owner of the file may read or write it.
+    private static final Set<PosixFilePermission> permissions
+            = EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE);
+
+    // If the file already exists, it is read so that the round can be resumed. Anything at
+    // the end of it which was not completely written is thrown away.
+    public Journal(File file, Marshaller<Packet<VerificationKey, P>> marshaller)
+            throws IOException {
+
+        if (file == null || marshaller == null) throw new NullPointerException();
+
+        this.marshaller = new SignedMarshaller<>(marshaller);
+        this.path = file.toPath();
+
+        Set<StandardOpenOption> options = EnumSet.of(StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean posix = Files.getFileStore(path.toAbsolutePath().getParent())
+                .supportsFileAttributeView(PosixFileAttributeView.class);
+        if (posix) {
+            this.file = FileChannel.open(
+                    path, options, PosixFilePermissions.asFileAttribute(permissions));
+
+            // In case the file was already there.
+            Files.setPosixFilePermissions(path, permissions);
+        } else {
+            this.file = FileChannel.open(path, options);
+        }
+
+        ByteBuffer b = ByteBuffer.allocate((int) this.file.size());
+        while (b.hasRemaining() && this.file.read(b) >= 0) {
+            // Keep reading.
+        }
+        b.flip();
+
+        Phase last = Phase.Uninitiated;
+        int end = 0;
+        while (b.remaining() >= HEADER) {
+            byte kind = b.get();
+            int length = b.getInt();
+            int checksum = b.getInt();
+            if (length < 0 || length > b.remaining()) break;
+
+            byte[] bytes = new byte[length];
+            b.get(bytes);
+            if (checksum(bytes) != checksum || !read(kind, new Bytestring(bytes))) break;
+
+            if (kind == PHASE) last = phases.peekLast();
+            end = b.position();
+        }
+        phase = last;
+
+        this.file.truncate(end);
+        this.file.position(end);
+    }
+
+    private static int checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    private boolean read(byte kind, Bytestring bytes) {
+        switch (kind) {
+            case PHASE: {
+                try {
+                    phases.add(Phase.valueOf(new String(bytes.bytes(), StandardCharsets.UTF_8)));
+                } catch (IllegalArgumentException e) {
+                    return false;
+                }
+                return true;
+            }
+            case SENT:
+            case RECEIVED: {
+                Signed<Packet<VerificationKey, P>> packet = marshaller.unmarshall(bytes);
+                if (packet == null) return false;
+
+                (kind == SENT ? sent : received).add(packet);
+                return true;
+            }
+            case RANDOM: {
+                if (bytes.length() != 4) return false;
+
+                randoms.add(bytes.buffer().getInt());
+                return true;
+            }
+            case KEY: {
+                keys.add(bytes);
+                return true;
+            }
+            default:
+                return false;
+        }
+    }
+
+    // The phase that the round had reached when the journal was opened. A round which is
+    // resumed takes up again from here.
+    public Phase phase() {
+        return phase;
+    }
+
+    // Whether there is anything from before which the round has not yet gone through again.
+    public synchronized boolean replaying() {
+        return !(phases.isEmpty() && sent.isEmpty() && received.isEmpty()
+                && randoms.isEmpty() && keys.isEmpty());
+    }
+
+    private void append(byte kind, byte[] bytes) {
+        try {
+            out.writeByte(kind);
+            out.writeInt(bytes.length);
+            out.writeInt(checksum(bytes));
+            out.write(bytes);
+        } catch (IOException e) {
+            // Writing to an array does not fail.
+            throw new IllegalStateException(e);
+        }
+        pending++;
+    }
+
+    private void append(byte kind, Signed<Packet<VerificationKey, P>> packet) {
+        Bytestring b = marshaller.marshall(packet);
+        if (b == null) throw new IllegalArgumentException("Could not marshall " + packet);
+
+        append(kind, b.bytes());
+    }
+
+    // Write everything which is waiting and force it to disk.
+    public synchronized void flush() throws IOException {
+        if (pending == 0) return;
+
+        ByteBuffer b = ByteBuffer.wrap(buffer.toByteArray());
+        while (b.hasRemaining()) {
+            file.write(b);
+        }
+        file.force(false);
+
+        buffer.reset();
+        pending = 0;
+    }
+
+    // The number of packets which are to be sent again to the given player, or which were
+    // broadcast if the player is null.
+    synchronized int resends(VerificationKey to) {
+        int n = 0;
+        for (Signed<Packet<VerificationKey, P>> packet : sent) {
+            if (to == null ? packet.message.to == null : to.equals(packet.message.to)) n++;
+        }
+        return n;
+    }
+
+    // The next packet to be sent again, or null if there are no more.
+    synchronized Signed<Packet<VerificationKey, P>> resend() {
+        return sent.poll();
+    }
+
+    // The next packet to be received again, or null if there are no more.
+    synchronized Signed<Packet<VerificationKey, P>> receiveAgain() {
+        return received.poll();
+    }
+
+    // Must be called before the packet is sent.
+    synchronized void sent(Signed<Packet<VerificationKey, P>> packet) throws IOException {
+        append(SENT, packet);
+        flush();
+    }
+
+    // Must be called before the packet is given to the round.
+    synchronized void received(Signed<Packet<VerificationKey, P>> packet) throws IOException {
+        append(RECEIVED, packet);
+        flush();
+    }
+
+    // Random choices made by the given crypto are journaled, and those that were made before
+    // are made the same way again.
+    public Crypto crypto(final Crypto crypto) {
+        if (crypto == null) throw new NullPointerException();
+
+        return new Crypto() {
+            @Override
+            public SigningKey makeSigningKey() {
+                return crypto.makeSigningKey();
+            }
+
+            @Override
+            public DecryptionKey makeDecryptionKey() {
+                synchronized (Journal.this) {
+                    Bytestring again = keys.poll();
+                    if (again != null) {
+                        try {
+                            return (DecryptionKey) new ObjectInputStream(
+                                    new ByteArrayInputStream(again.bytes())).readObject();
+                        } catch (IOException | ClassNotFoundException e) {
+                            throw new IllegalStateException("Could not read key from journal", e);
+                        }
+                    }
+
+                    DecryptionKey dk = crypto.makeDecryptionKey();
+                    if (!(dk instanceof Serializable)) {
+                        throw new IllegalArgumentException("Cannot journal " + dk);
+                    }
+
+                    ByteArrayOutputStream b = new ByteArrayOutputStream();
+                    try {
+                        ObjectOutputStream o = new ObjectOutputStream(b);
+                        o.writeObject(dk);
+                        o.close();
+                    } catch (IOException e) {
+                        throw new IllegalArgumentException("Cannot journal " + dk, e);
+                    }
+
+                    append(KEY, b.toByteArray());
+                    return dk;
+                }
+            }
+
+            @Override
+            public int getRandom(int n) {
+                synchronized (Journal.this) {
+                    Integer again = randoms.poll();
+                    if (again != null) return again;
+
+                    int r = crypto.getRandom(n);
+                    append(RANDOM, ByteBuffer.allocate(4).putInt(r).array());
+                    return r;
+                }
+            }
+        };
+    }
+
+    // Records each phase that the round enters and passes it on to the given channel, which
+    // may be null.
+    public Send<Phase> phases(final Send<Phase> chan) {
+        return new Send<Phase>() {
+            @Override
+            public boolean send(Phase phase) throws InterruptedException {
+                synchronized (Journal.this) {
+                    if (phases.poll() == null) {
+                        append(PHASE, phase.name().getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+
+                return chan == null || chan.send(phase);
+            }
+
+            @Override
+            public void close() throws InterruptedException {
+                if (chan != null) chan.close();
+            }
+        };
+    }
+
+    public synchronized void close() throws IOException {
+        if (!file.isOpen()) return;
+
+        try {
+            flush();
+        } finally {
+            file.close();
+        }
+    }
+
+    // Once the round is over, there is nothing to resume and the key should not be kept.
+    public synchronized void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+}
@@ -7,233 +7,76 @@ import com.shuffle.bitcoin.VerificationKey;
 import com.shuffle.chan.packet.SessionIdentifier;
 import com.shuffle.p2p.Bytestring;
 import com.shuffle.protocol.FormatException;
-import com.shuffle.protocol.InvalidImplementationError;
 import com.shuffle.protocol.blame.Blame;
 import com.shuffle.protocol.message.Phase;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Deque;
-import java.util.Iterator;
 
 /**
  * Implementation of coin shuffle messages.
  *
+ * A message is a range of an array of atoms which may be shared with other messages.
+ * Attaching to a message appends to the array in place if nothing has been attached to it
+ * already, so building a message takes time linear in its length, and reading it with
+ * rest() does not copy anything.
+ *
  * Created by Daniel Krawisz on 5/26/16.
  */
 public class Message implements com.shuffle.protocol.message.Message, Serializable {
 
-    public static class SecureHash implements Serializable {
-        public final Atom hashed;
-
-        public SecureHash(Atom toHash) {
-            hashed = toHash;
-        }
-
-        public SecureHash(com.shuffle.protocol.message.Message message) {
-            if (!(message instanceof Message)) {
-                throw new InvalidImplementationError();
-            }
-
-            hashed = ((Message) message).atoms;
-        }
+    // Atoms are only ever added to the end of a buffer, so the part of it that
+    // has already been filled in never changes and can be shared.
+    private static final class Buffer {
+        private volatile Object[] atoms;
+        private int size = 0;
 
-        public String toString() {
-            return "hashed[" + hashed + "]";
+        Buffer(int capacity) {
+            atoms = new Object[Math.max(capacity, 4)];
         }
 
-        public boolean equals(Object o) {
-            if (o == null) {
-                return false;
-            }
+        // Returns false if something else has already been appended at this position.
+        synchronized boolean append(int position, Object atom) {
+            if (position != size) return false;
 
-            if (!(o instanceof SecureHash)) {
-                return false;
+            Object[] a = atoms;
+            if (size == a.length) {
+                a = Arrays.copyOf(a, size * 2);
             }
 
-            SecureHash mockHashed = (SecureHash) o;
-
-            return hashed.equals(mockHashed.hashed);
+            a[size++] = atom;
+            atoms = a;
+            return true;
         }
     }
 
-    private static class Atom implements Serializable {
-        public final Address addr;
-        public final EncryptionKey ek;
-        public final Bytestring sig;
-        public final SecureHash secureHash;
-        public final Blame blame;
-
-        public final Transaction t;
-        // Sometimes, we have to send whole packets that we previously received.
-        public final com.shuffle.protocol.message.Packet packet;
-
-        public final Atom next;
-
-        private Atom(
-                Address addr,
-                EncryptionKey ek,
-                Bytestring sig,
-                SecureHash secureHash,
-                Blame blame,
-                Transaction t,
-                com.shuffle.protocol.message.Packet packet,
-                Atom next
-        ) {
-            // Enforce the correct format.
-            format:
-            {
-                if (addr != null) {
-                    if (ek != null || sig != null || secureHash != null || blame != null || t != null) {
-                        throw new IllegalArgumentException();
-                    }
-                    break format;
-                }
-
-                if (ek != null) {
-                    if (sig != null || secureHash != null || blame != null || t != null) {
-                        throw new IllegalArgumentException();
-                    }
-                    break format;
-                }
-
-                if (sig != null) {
-                    if (secureHash != null || blame != null || t != null) {
-                        throw new IllegalArgumentException();
-                    }
-                    break format;
-                }
-
-                if (secureHash != null) {
-                    if (blame != null || t != null) {
-                        throw new IllegalArgumentException();
-                    }
-                    break format;
-                }
-
-                if (blame != null) {
-                    if (t != null) {
-                        throw new IllegalArgumentException();
-                    }
-                    break format;
-                }
-
-                if (t != null) {
-                    break format;
-                }
-
-                throw new IllegalArgumentException();
-            }
-
-            this.addr = addr;
-            this.ek = ek;
-            this.sig = sig;
-            this.secureHash = secureHash;
-            this.blame = blame;
-            this.t = t;
-            this.packet = packet;
-            this.next = next;
-        }
-
-        public static Atom make(Object o, Atom next) {
-            if (o instanceof Address) {
-                return new Atom((Address) o, null, null, null, null, null, null, next);
-            }
-            if (o instanceof EncryptionKey) {
-                return new Atom(null, (EncryptionKey) o, null, null, null, null, null, next);
-            }
-            if (o instanceof Bytestring) {
-                return new Atom(null, null, (Bytestring) o, null, null, null, null, next);
-            }
-            if (o instanceof SecureHash) {
-                return new Atom(null, null, null, (SecureHash) o, null, null, null, next);
-            }
-            if (o instanceof Blame) {
-                return new Atom(null, null, null, null, (Blame) o, null, null, next);
-            }
-            if (o instanceof Transaction) {
-                return new Atom(null, null, null, null, null, (Transaction) o, null, next);
-            }
-            if (o instanceof com.shuffle.protocol.message.Packet) {
-                return new Atom(null, null, null, null, null, null, (com.shuffle.protocol.message.Packet) o, next);
-            }
-
-            throw new IllegalArgumentException();
-        }
-
-        private static Atom make(Object o) {
-            return make(o, null);
+    private static Object checkAtom(Object o) {
+        if (o instanceof Address
+                || o instanceof EncryptionKey
+                || o instanceof Bytestring
+                || o instanceof Blame
+                || o instanceof Transaction
+                || o instanceof com.shuffle.protocol.message.Packet) {
+            return o;
         }
 
-        private static Atom attach(Atom a, Atom o) {
-            if (a == null) {
-                return o;
-            }
-
-            return new Atom(a.addr, a.ek, a.sig, a.secureHash, a.blame, a.t, a.packet, attach(a.next, o));
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (o == null) {
-                return false;
-            }
-
-            if (!(o instanceof Atom)) {
-                return false;
-            }
-
-            Atom a = (Atom) o;
-
-            return this == a || a.sig == sig
-                    && (a.ek == null && ek == null || ek != null && ek.equals(a.ek))
-                    && (a.addr == null && addr == null || addr != null && addr.equals(a.addr))
-                    && (a.t == null && t == null || t != null && t.equals(a.t))
-                    && (a.packet == null && packet == null
-                    || packet != null && packet.equals(a.packet))
-                    && (a.blame == null && blame == null || blame != null && blame.equals(a.blame))
-                    && (a.secureHash == null && secureHash == null || secureHash != null && secureHash.equals(a.secureHash))
-                    && (a.next == null && next == null || next != null && next.equals(a.next));
-        }
-
-        @Override
-        public int hashCode() {
-            int hash = addr == null ? 0 : addr.hashCode();
-            hash = hash * 15 + (ek == null ? 0 : ek.hashCode());
-            hash = hash * 15 + (sig == null ? 0 : sig.hashCode());
-            hash = hash * 15 + (this.secureHash == null ? 0 : this.secureHash.hashCode());
-            hash = hash * 15 + (blame == null ? 0 : blame.hashCode());
-            hash = hash * 15 + (next == null ? 0 : next.hashCode());
-            return hash;
-        }
-
-        @Override
-        public String toString() {
-            String str = "";
-
-            if (addr != null) str += addr.toString();
-
-            if (ek != null) str += ek.toString();
-
-            if (sig != null) str += sig.toString();
-
-            if (secureHash != null) str += secureHash.toString();
-
-            if (t != null) str += t.toString();
-
-            if (packet != null) str += packet.toString();
-
-            if (blame != null) str += blame.toString();
-
-            if (next != null) str += "⊕" + next.toString();
-
-            return str;
-        }
+        throw new IllegalArgumentException();
     }
 
     public final SessionIdentifier session;
-    public final Atom atoms;
     public final VerificationKey from;
 
+    // The atoms of this message are buffer[start, end). These are not final
+    // because they are restored in readObject.
+    private transient Buffer buffer;
+    private transient int start;
+    private transient int end;
+
     // If this message can be sent, then this is the network by
     // which it is sent. Otherwise, it's null.
     final transient Messages messages;
@@ -245,23 +88,27 @@ public class Message implements com.shuffle.protocol.message.Message, Serializab
 
         if (from == null || session == null) throw new NullPointerException();
 
-        atoms = null;
         this.session = session;
         this.from = from;
         this.messages = messages;
+        buffer = new Buffer(0);
+        start = 0;
+        end = 0;
     }
 
     private Message(
             SessionIdentifier session,
             VerificationKey from,
-            Atom atom,
+            Buffer buffer,
+            int start,
+            int end,
             Messages messages) {
 
-        if (session == null || from == null) throw new NullPointerException();
-
-        this.from = from;
-        atoms = atom;
         this.session = session;
+        this.from = from;
+        this.buffer = buffer;
+        this.start = start;
+        this.end = end;
         this.messages = messages;
     }
 
@@ -272,111 +119,174 @@ public class Message implements com.shuffle.protocol.message.Message, Serializab
 
         if (session == null || from == null || atoms == null) throw new NullPointerException();
 
-        Atom atom = null;
+        this.session = session;
+        this.from = from;
+        this.messages = messages;
+        buffer = new Buffer(atoms.size());
+        start = 0;
+        end = 0;
+
+        for (Object atom : atoms) {
+            buffer.append(end, checkAtom(atom));
+            end++;
+        }
+    }
+
+    // The number of atoms in this message.
+    int size() {
+        return end - start;
+    }
 
-        Iterator i = atoms.descendingIterator();
+    Object get(int i) {
+        if (i < 0 || i >= end - start) throw new IndexOutOfBoundsException();
 
-        while (i.hasNext()) {
-            atom = Atom.make(i.next(), atom);
+        return buffer.atoms[start + i];
+    }
+
+    Message attachAtom(Object atom) {
+        checkAtom(atom);
+
+        if (buffer.append(end, atom)) {
+            return new Message(session, from, buffer, start, end + 1, messages);
         }
 
-        this.atoms = atom;
-        this.session = session;
-        this.from = from;
-        this.messages = messages;
+        // Someone else has already attached something to this message, so we have to copy.
+        int size = end - start;
+        Buffer b = new Buffer(2 * (size + 1));
+        System.arraycopy(buffer.atoms, start, b.atoms, 0, size);
+        b.size = size;
+        b.append(size, atom);
+
+        return new Message(session, from, b, 0, size + 1, messages);
     }
 
     @Override
     public boolean isEmpty() {
-        return atoms == null;
+        return start == end;
     }
 
     public com.shuffle.protocol.message.Message attachAddrs(Deque<Address> addrs) {
         if (addrs == null) throw new NullPointerException();
 
-        Message m = new Message(session, from, addrs, messages);
+        Message m = this;
+        for (Address addr : addrs) {
+            m = m.attachAtom(addr);
+        }
 
-        return new Message(session, from, Atom.attach(atoms, m.atoms), messages);
+        return m;
     }
 
     @Override
     public com.shuffle.protocol.message.Message attach(EncryptionKey ek) {
         if (ek == null) throw new NullPointerException();
 
-        return new Message(session, from, Atom.attach(atoms, Atom.make(ek)), messages);
+        return attachAtom(ek);
     }
 
     @Override
     public com.shuffle.protocol.message.Message attach(Address addr) {
         if (addr == null) throw new NullPointerException();
 
-        return new Message(session, from, Atom.attach(atoms, Atom.make(addr)), messages);
+        return attachAtom(addr);
     }
 
     @Override
     public com.shuffle.protocol.message.Message attach(Bytestring sig) {
         if (sig == null) throw new NullPointerException();
 
-        return new Message(session, from, Atom.attach(atoms, Atom.make(sig)), messages);
+        return attachAtom(sig);
     }
 
     @Override
     public com.shuffle.protocol.message.Message attach(Blame blame) {
         if (blame == null) throw new NullPointerException();
 
-        return new Message(session, from, Atom.attach(atoms, Atom.make(blame)), messages);
+        return attachAtom(blame);
     }
 
-    public com.shuffle.protocol.message.Message hashed() {
-
-        return new Message(session, from, Atom.make(new SecureHash(this)), messages);
+    private Object first() {
+        return start == end ? null : buffer.atoms[start];
     }
 
     @Override
     public EncryptionKey readEncryptionKey() throws FormatException {
-        if (atoms == null || atoms.ek == null) throw new FormatException();
+        Object atom = first();
+        if (!(atom instanceof EncryptionKey)) throw new FormatException();
 
-        return atoms.ek;
+        return (EncryptionKey) atom;
     }
 
     @Override
     public Address readAddress() throws FormatException {
-        if (atoms == null || atoms.addr == null) throw new FormatException();
+        Object atom = first();
+        if (!(atom instanceof Address)) throw new FormatException();
 
-        return atoms.addr;
+        return (Address) atom;
     }
 
     @Override
     public Blame readBlame() throws FormatException {
-        if (atoms == null || atoms.blame == null) throw new FormatException();
+        Object atom = first();
+        if (!(atom instanceof Blame)) throw new FormatException();
 
-        return atoms.blame;
+        return (Blame) atom;
     }
 
     @Override
     public Bytestring readSignature() throws FormatException {
-        if (atoms == null || atoms.sig == null) throw new FormatException();
+        Object atom = first();
+        if (!(atom instanceof Bytestring)) throw new FormatException();
 
-        return atoms.sig;
+        return (Bytestring) atom;
     }
 
     @Override
     public com.shuffle.protocol.message.Message rest() throws FormatException {
 
-        if (atoms == null) throw new FormatException();
+        if (start == end) throw new FormatException();
 
-        return new Message(session, from, atoms.next, messages);
+        return new Message(session, from, buffer, start + 1, end, messages);
     }
 
     @Override
     public com.shuffle.protocol.message.Packet send(Phase phase, VerificationKey to)
-            throws InterruptedException {
+            throws InterruptedException, IOException {
 
         if (messages == null) return null;
 
         return messages.send(this, phase, to);
     }
 
+    @Override
+    public com.shuffle.protocol.message.Packet broadcast(
+            Phase phase, Collection<VerificationKey> to) throws InterruptedException, IOException {
+
+        if (messages == null) return null;
+
+        return messages.broadcast(this, phase, to);
+    }
+
+    boolean sameAtoms(Message m) {
+        if (end - start != m.end - m.start) return false;
+
+        Object[] a = buffer.atoms;
+        Object[] b = m.buffer.atoms;
+        for (int i = 0; i < end - start; i++) {
+            if (!a[start + i].equals(b[m.start + i])) return false;
+        }
+
+        return true;
+    }
+
+    int atomsHashCode() {
+        Object[] a = buffer.atoms;
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = hash * 15 + a[i].hashCode();
+        }
+        return hash;
+    }
+
     @Override
     public boolean equals(Object o) {
 
@@ -386,23 +296,56 @@ public class Message implements com.shuffle.protocol.message.Message, Serializab
 
         Message mock = (Message) o;
 
-        return session.equals(mock.session)
-                && ((atoms == null && mock.atoms == null)
-                || (atoms != null && atoms.equals(mock.atoms)));
+        return session.equals(mock.session) && sameAtoms(mock);
     }
 
     @Override
     public int hashCode() {
         int hash = 0;
         hash = hash * 15 + session.hashCode();
-        hash = hash * 15 + atoms.hashCode();
+        hash = hash * 15 + atomsHashCode();
         return hash;
     }
 
     @Override
     public String toString() {
-        if (atoms == null) return "[]";
+        if (start == end) return "[]";
+
+        Object[] a = buffer.atoms;
+        StringBuilder str = new StringBuilder(a[start].toString());
+        for (int i = start + 1; i < end; i++) {
+            str.append("⊕").append(a[i]);
+        }
+
+        return str.toString();
+    }
+
+    // Only the atoms which belong to this message are written.
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(end - start);
 
-        return atoms.toString();
+        Object[] a = buffer.atoms;
+        for (int i = start; i < end; i++) {
+            out.writeObject(a[i]);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int size = in.readInt();
+        if (size < 0) throw new IOException("Invalid message size " + size);
+
+        buffer = new Buffer(Math.min(size, 64));
+        start = 0;
+        end = 0;
+        for (int i = 0; i < size; i++) {
+            try {
+                buffer.append(end, checkAtom(in.readObject()));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid atom.");
+            }
+            end++;
+        }
     }
 }
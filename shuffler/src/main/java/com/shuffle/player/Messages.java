@@ -10,27 +10,33 @@ package com.shuffle.player;
 
 import com.shuffle.bitcoin.SigningKey;
 import com.shuffle.bitcoin.VerificationKey;
-import com.shuffle.chan.HistoryReceive;
+import com.shuffle.chan.History;
 import com.shuffle.chan.HistorySend;
 import com.shuffle.chan.IgnoreSend;
 import com.shuffle.chan.Receive;
 import com.shuffle.chan.Send;
 import com.shuffle.chan.packet.JavaMarshaller;
+import com.shuffle.chan.packet.Marshaller;
 import com.shuffle.chan.packet.OutgoingPacketSend;
 import com.shuffle.chan.packet.Packet;
 import com.shuffle.chan.packet.Signed;
 import com.shuffle.chan.packet.SessionIdentifier;
+import com.shuffle.chan.packet.SignedMarshaller;
 import com.shuffle.chan.packet.SigningSend;
+import com.shuffle.monitor.Metrics;
 import com.shuffle.p2p.Bytestring;
 import com.shuffle.chan.Inbox;
 import com.shuffle.protocol.message.MessageFactory;
 import com.shuffle.protocol.message.Phase;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.List;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -113,36 +119,119 @@ public class Messages implements MessageFactory {
 
     private class Outgoing {
         public final Send<P> out;
-        private final HistorySend<Signed<Packet<VerificationKey, P>>> h;
 
-        Outgoing(Send<P> out, HistorySend<Signed<Packet<VerificationKey, P>>> h, VerificationKey k) {
+        // The channel underneath, which does not record what is sent.
+        private final Send<Signed<Packet<VerificationKey, P>>> chan;
 
-            if (k == null || out == null || h == null) throw new NullPointerException();
+        Outgoing(Send<P> out, Send<Signed<Packet<VerificationKey, P>>> chan, VerificationKey k) {
 
-            this.out = out;
-            this.h = h;
-        }
-
-        public List<Signed<Packet<VerificationKey, P>>> history() {
-            return h.history();
-        }
+            if (k == null || out == null || chan == null) throw new NullPointerException();
 
-        public Signed<com.shuffle.chan.packet.Packet<VerificationKey, P>> last() {
-            return h.last();
+            this.out = out;
+            this.chan = chan;
         }
     }
 
     // Outgoing channels.
     final Map<VerificationKey, Outgoing> net = new HashMap<>();
 
-    // Where new messages come in. All messages are logged and have their signature
-    // checked as they come in.
+    // Where new messages come in.
     private final Receive<Inbox.Envelope<VerificationKey,
             Signed<com.shuffle.chan.packet.Packet<VerificationKey, P>>>> receive;
 
+    // Every packet sent or received in this session, in order, so that they can be given
+    // as evidence in the blame phase. A broadcast packet is only recorded once.
+    private final History<Signed<Packet<VerificationKey, P>>> sent;
+    private final History<Signed<Packet<VerificationKey, P>>> received;
+
+    // If not null, packets are written here before they are sent and after they are
+    // received, and any that are in it from before are sent or received again first.
+    private final Journal journal;
+
+    // Why the last packet could not be journaled, if it could not be.
+    private IOException failure = null;
+
     final SessionIdentifier session;
     final SigningKey me;
 
+    private final Metrics metrics;
+
+    // How long receive() waits for a message, in milliseconds.
+    private static final long DEFAULT_TIMEOUT = 1000;
+
+    // Used to sign every packet.
+    private final Marshaller<Packet<VerificationKey, P>> marshaller;
+
+    // Broadcast packets are numbered separately from those sent to a single player.
+    private int broadcastSequenceNumber = 0;
+
+    /**
+     * How packets are marshalled, measured and kept.
+     *
+     * Settings are immutable. Start from defaults, and each method returns a copy with one
+     * thing changed.
+     */
+    public static final class Settings {
+
+        // The format of the messages which are signed.
+        public final Marshaller<Packet<VerificationKey, P>> marshaller;
+
+        public final Metrics metrics;
+
+        // If not zero, only this many packets sent and this many received are kept in memory.
+        // Older ones are written to files in the directory, which are deleted when the session
+        // is closed. If the directory is null, the default temporary directory is used.
+        public final int window;
+        public final File directory;
+
+        // If not null, the session recorded in the journal is resumed, if there is anything
+        // in it, and the rest of the session is recorded there too.
+        public final Journal journal;
+
+        public static final Settings defaults = new Settings(
+                new JavaMarshaller<Packet<VerificationKey, P>>(), Metrics.none, 0, null, null);
+
+        private Settings(Marshaller<Packet<VerificationKey, P>> marshaller, Metrics metrics,
+                         int window, File directory, Journal journal) {
+
+            if (marshaller == null || metrics == null) throw new NullPointerException();
+            if (window < 0) throw new IllegalArgumentException();
+
+            this.marshaller = marshaller;
+            this.metrics = metrics;
+            this.window = window;
+            this.directory = directory;
+            this.journal = journal;
+        }
+
+        public Settings marshaller(Marshaller<Packet<VerificationKey, P>> marshaller) {
+            return new Settings(marshaller, metrics, window, directory, journal);
+        }
+
+        public Settings metrics(Metrics metrics) {
+            return new Settings(marshaller, metrics, window, directory, journal);
+        }
+
+        public Settings history(int window, File directory) {
+            if (window < 1) throw new IllegalArgumentException();
+
+            return new Settings(marshaller, metrics, window, directory, journal);
+        }
+
+        public Settings journal(Journal journal) {
+            if (journal == null) throw new NullPointerException();
+
+            return new Settings(marshaller, metrics, window, directory, journal);
+        }
+
+        History<Signed<Packet<VerificationKey, P>>> history(String name) throws IOException {
+            if (window == 0) return new History<>();
+
+            return new History<>(window, new SignedMarshaller<>(marshaller),
+                    File.createTempFile(name, ".log", directory));
+        }
+    }
+
     public Messages(SessionIdentifier session,
                     SigningKey me,
                     Map<VerificationKey,
@@ -150,14 +239,48 @@ public class Messages implements MessageFactory {
                     Receive<Inbox.Envelope<VerificationKey,
                             Signed<Packet<VerificationKey, P>>>> receive) {
 
+        this(session, me, net, receive, Settings.defaults,
+                new History<Signed<Packet<VerificationKey, P>>>(),
+                new History<Signed<Packet<VerificationKey, P>>>());
+    }
+
+    // Only fails if the settings say to keep the history in files and they cannot be made.
+    public Messages(SessionIdentifier session,
+                    SigningKey me,
+                    Map<VerificationKey,
+                            Send<Signed<Packet<VerificationKey, P>>>> net,
+                    Receive<Inbox.Envelope<VerificationKey,
+                            Signed<Packet<VerificationKey, P>>>> receive,
+                    Settings settings) throws IOException {
+
+        this(session, me, net, receive, settings,
+                settings.history("sent"), settings.history("received"));
+    }
+
+    private Messages(SessionIdentifier session,
+                     SigningKey me,
+                     Map<VerificationKey,
+                             Send<Signed<Packet<VerificationKey, P>>>> net,
+                     Receive<Inbox.Envelope<VerificationKey,
+                             Signed<Packet<VerificationKey, P>>>> receive,
+                     Settings settings,
+                     History<Signed<Packet<VerificationKey, P>>> sent,
+                     History<Signed<Packet<VerificationKey, P>>> received) {
+
         if (session == null || me == null || net == null || receive == null)
             throw new NullPointerException();
 
         this.session = session;
         this.me = me;
-        this.receive = new HistoryReceive<>(receive);
+        this.metrics = settings.metrics;
+        this.marshaller = settings.marshaller;
+        this.receive = receive;
+        this.sent = sent;
+        this.received = received;
+        this.journal = settings.journal;
+
+        if (journal != null) broadcastSequenceNumber = journal.resends(null);
 
-        JavaMarshaller<Packet<VerificationKey, P>> jj = new JavaMarshaller<>();
         VerificationKey vk = me.VerificationKey();
 
         for (Map.Entry<VerificationKey, Send<Signed<Packet<VerificationKey, P>>>> z : net.entrySet()) {
@@ -165,19 +288,79 @@ public class Messages implements MessageFactory {
             VerificationKey k = z.getKey();
             if (vk.equals(k)) continue;
 
-            HistorySend<Signed<Packet<VerificationKey, P>>> h = new HistorySend<>(z.getValue());
-            Send<Packet<VerificationKey, P>> signer = new SigningSend<>(h, jj, me);
-            Send<P> p = new OutgoingPacketSend<>(signer, session, vk, k);
+            Send<Signed<Packet<VerificationKey, P>>> chan = z.getValue();
+            Send<Packet<VerificationKey, P>> signer = new SigningSend<>(
+                    journaled(new HistorySend<>(chan, sent)), this.marshaller, me);
+            Send<P> p = new OutgoingPacketSend<>(
+                    signer, session, vk, k, journal == null ? 0 : journal.resends(k));
 
-            this.net.put(k, new Outgoing(p, h, vk));
+            this.net.put(k, new Outgoing(p, chan, vk));
         }
 
         // We have a special channel for sending messages to ourselves.
-        HistorySend<Signed<Packet<VerificationKey, P>>> h = new HistorySend<>(
-                new IgnoreSend<Signed<Packet<VerificationKey, P>>>());
+        Send<Signed<Packet<VerificationKey, P>>> chan
+                = new IgnoreSend<Signed<Packet<VerificationKey, P>>>();
 
-        Send<P> p = new OutgoingPacketSend<>(new SigningSend<>(h, jj, me), session, vk, vk);
-        this.net.put(vk, new Outgoing(p, h, vk));
+        Send<P> p = new OutgoingPacketSend<>(
+                new SigningSend<>(journaled(new HistorySend<>(chan, sent)), this.marshaller, me),
+                session, vk, vk, journal == null ? 0 : journal.resends(vk));
+        this.net.put(vk, new Outgoing(p, chan, vk));
+    }
+
+    // Writes each packet to the journal before it goes any further. A packet which
+    // cannot be written is not sent.
+    private Send<Signed<Packet<VerificationKey, P>>> journaled(
+            final Send<Signed<Packet<VerificationKey, P>>> chan) {
+
+        if (journal == null) return chan;
+
+        return new Send<Signed<Packet<VerificationKey, P>>>() {
+            @Override
+            public boolean send(Signed<Packet<VerificationKey, P>> x)
+                    throws InterruptedException {
+
+                return journal(x) && chan.send(x);
+            }
+
+            @Override
+            public void close() throws InterruptedException {
+                chan.close();
+            }
+        };
+    }
+
+    private boolean journal(Signed<Packet<VerificationKey, P>> x) {
+        if (journal == null) return true;
+
+        try {
+            journal.sent(x);
+            return true;
+        } catch (IOException e) {
+            failure = e;
+            return false;
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        IOException e = failure;
+        failure = null;
+        if (e != null) throw e;
+    }
+
+    // The next packet to be sent again from the journal, if any. It must be the one that the
+    // round is about to send, or else the round has not gone as it did before.
+    private Signed<Packet<VerificationKey, P>> resend(Phase phase, VerificationKey to) {
+        if (journal == null) return null;
+
+        Signed<Packet<VerificationKey, P>> again = journal.resend();
+        if (again == null) return null;
+
+        Packet<VerificationKey, P> p = again.message;
+        if (p.payload.phase != phase || (to == null ? p.to != null : !to.equals(p.to))) {
+            throw new IllegalStateException("The round has not gone as the journal says.");
+        }
+
+        return again;
     }
 
     @Override
@@ -187,21 +370,93 @@ public class Messages implements MessageFactory {
 
     @Override
     public com.shuffle.protocol.message.Packet receive() throws InterruptedException, IOException {
+        return receive(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
 
-        // TODO make this a parameter.
-        Inbox.Envelope<VerificationKey,
-                Signed<com.shuffle.chan.packet.Packet<VerificationKey, P>>> e
-                = receive.receive(1000, TimeUnit.MILLISECONDS);
+    @Override
+    public com.shuffle.protocol.message.Packet receive(long timeout, TimeUnit unit)
+            throws InterruptedException, IOException {
+
+        Signed<Packet<VerificationKey, P>> packet = journal == null ? null : journal.receiveAgain();
+        VerificationKey from;
+        if (packet != null) {
+            from = packet.message.from;
+        } else {
+            Inbox.Envelope<VerificationKey, Signed<Packet<VerificationKey, P>>> e
+                    = receive.receive(timeout, unit);
+
+            if (e == null) return null;
+
+            packet = e.payload;
+            from = e.from;
+            if (journal != null) journal.received(packet);
+        }
+
+        received.add(packet);
 
-        if (e == null) return null;
+        // The size was taken from the bytes the packet was read from.
+        metrics.received(from, packet.size);
 
-        return new SignedPacket(e.payload);
+        return new SignedPacket(packet);
     }
 
     public VerificationKey identity() {
         return me.VerificationKey();
     }
 
+    // The packets of a given phase which were sent or received in this session, in order.
+    // They are read from the history as they are needed rather than copied.
+    public Iterable<SignedPacket> sent(Phase phase) {
+        return inPhase(sent, phase);
+    }
+
+    public Iterable<SignedPacket> received(Phase phase) {
+        return inPhase(received, phase);
+    }
+
+    private static Iterable<SignedPacket> inPhase(
+            final Iterable<Signed<Packet<VerificationKey, P>>> history, final Phase phase) {
+
+        if (phase == null) throw new NullPointerException();
+
+        return new Iterable<SignedPacket>() {
+            @Override
+            public Iterator<SignedPacket> iterator() {
+                final Iterator<Signed<Packet<VerificationKey, P>>> i = history.iterator();
+
+                return new Iterator<SignedPacket>() {
+                    private SignedPacket next = null;
+
+                    @Override
+                    public boolean hasNext() {
+                        while (next == null && i.hasNext()) {
+                            Signed<Packet<VerificationKey, P>> s = i.next();
+                            if (s != null && s.message.payload.phase == phase) {
+                                next = new SignedPacket(s);
+                            }
+                        }
+
+                        return next != null;
+                    }
+
+                    @Override
+                    public SignedPacket next() {
+                        if (!hasNext()) throw new NoSuchElementException();
+
+                        SignedPacket p = next;
+                        next = null;
+                        return p;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
     // Some cleanup after we're done.
     public void close() throws InterruptedException {
         for (Outgoing p : net.values()) {
@@ -209,19 +464,102 @@ public class Messages implements MessageFactory {
         }
 
         net.clear();
+        sent.close();
+        received.close();
     }
 
-    public SignedPacket send(Message m, Phase phase, VerificationKey to) throws InterruptedException {
+    public SignedPacket send(Message m, Phase phase, VerificationKey to)
+            throws InterruptedException, IOException {
 
         Outgoing x = m.messages.net.get(to);
 
         if (x == null) return null;
 
-        // About to send message.
+        Signed<Packet<VerificationKey, P>> again = resend(phase, to);
+        if (again != null) {
+            if (!x.chan.send(again)) return null;
+
+            sent.add(again);
+            metrics.sent(to, again.size);
+            return new SignedPacket(again);
+        }
+
+        // About to send message. This is where it is marshalled and signed.
+        long start = System.nanoTime();
         if (!x.out.send(new P(m, phase))) {
+            checkFailure();
             return null;
         }
+        metrics.operation(Metrics.Operation.Sign, 1, System.nanoTime() - start);
+
+        Signed<Packet<VerificationKey, P>> signed = sent.last();
+        metrics.sent(to, signed.size);
+
+        return new SignedPacket(signed);
+    }
+
+    // Gives the same signed packet to each of a set of players.
+    private class Broadcast implements Send<Signed<Packet<VerificationKey, P>>> {
+        private final Collection<VerificationKey> to;
+        private Signed<Packet<VerificationKey, P>> signed = null;
+
+        Broadcast(Collection<VerificationKey> to) {
+            this.to = to;
+        }
+
+        @Override
+        public boolean send(Signed<Packet<VerificationKey, P>> x) throws InterruptedException {
+            if (!journal(x)) return false;
+
+            deliver(x);
+            return true;
+        }
+
+        void deliver(Signed<Packet<VerificationKey, P>> x) throws InterruptedException {
+            signed = x;
+
+            for (VerificationKey k : to) {
+                Outgoing o = net.get(k);
+                if (o == null) continue;
+
+                if (o.chan.send(x)) {
+                    metrics.sent(k, x.size);
+                }
+            }
+
+            sent.add(x);
+        }
+
+        @Override
+        public void close() {
+
+        }
+    }
+
+    // The packet is marshalled and signed once and the same signed packet is given to
+    // every recipient, rather than making a separate packet for each of them.
+    public SignedPacket broadcast(Message m, Phase phase, Collection<VerificationKey> to)
+            throws InterruptedException, IOException {
+
+        Broadcast b = new Broadcast(to);
+
+        Signed<Packet<VerificationKey, P>> again = resend(phase, null);
+        if (again != null) {
+            b.deliver(again);
+            return new SignedPacket(again);
+        }
+
+        long start = System.nanoTime();
+        if (!new SigningSend<>(b, marshaller, me).send(new Packet<>(
+                session, me.VerificationKey(), null, broadcastSequenceNumber, new P(m, phase)))) {
+
+            checkFailure();
+            return null;
+        }
+        metrics.operation(Metrics.Operation.Sign, 1, System.nanoTime() - start);
+
+        broadcastSequenceNumber++;
 
-        return new SignedPacket(x.last());
+        return new SignedPacket(b.signed);
     }
 }
@@ -20,6 +20,7 @@ import com.shuffle.p2p.Bytestring;
 import com.shuffle.p2p.Channel;
 import com.shuffle.protocol.CoinShuffle;
 import com.shuffle.protocol.Mailbox;
+import com.shuffle.protocol.Timeouts;
 import com.shuffle.protocol.message.MessageFactory;
 import com.shuffle.protocol.message.Phase;
 import com.shuffle.protocol.blame.Matrix;
@@ -54,6 +55,8 @@ class Player<Identity> {
         final Address change;
         final int minPlayers;
         final int maxRetries;
+        // How long to wait for each phase, in milliseconds, before we have learned how
+        // long the other players take, or zero for the default for the number of players.
         final int timeout;
 
         public Settings(
@@ -125,7 +128,14 @@ class Player<Identity> {
         // which all blame him and none of whom blame one another.
         SortedSet<VerificationKey> eliminated = new TreeSet<>();
 
-        CoinShuffle shuffle = new CoinShuffle(messages, crypto, coin);
+        // How long the other players take is remembered from one attempt to the next, so
+        // that a slow player is given more time in the next round rather than being
+        // eliminated for it.
+        CoinShuffle.Settings shuffleSettings = CoinShuffle.Settings.defaults
+                .timeouts(new Timeouts.Adaptive(settings.timeout > 0
+                        ? settings.timeout : Mailbox.defaultTimeout(players.size())));
+
+        CoinShuffle shuffle = new CoinShuffle(messages, crypto, coin, shuffleSettings);
 
         while (true) {
 
@@ -144,7 +154,8 @@ class Player<Identity> {
             }
 
             // Make an inbox for the next round.
-            Mailbox mailbox = new Mailbox(sk.VerificationKey(), validPlayers, messages);
+            Mailbox mailbox = new Mailbox(
+                    sk.VerificationKey(), validPlayers, messages, shuffleSettings);
 
             // Send an introductory message and make sure all players agree on who is in
             // this round of the protocol.
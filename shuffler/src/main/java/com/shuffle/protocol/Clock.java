@@ -0,0 +1,28 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.protocol;
+
+/**
+ * Tells the time for the purpose of deciding when to stop waiting for messages.
+ *
+ * In a real round this is just the system clock. A simulation may run on a clock of its own
+ * so that waiting takes no real time at all.
+ */
+public interface Clock {
+
+    // The current time in nanoseconds. Only differences between two readings mean anything.
+    long nanoTime();
+
+    Clock system = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+}
@@ -9,15 +9,19 @@
 package com.shuffle.protocol;
 
 import com.shuffle.bitcoin.Address;
+import com.shuffle.bitcoin.BatchVerifier;
 import com.shuffle.bitcoin.Coin;
 import com.shuffle.bitcoin.CoinNetworkException;
 import com.shuffle.bitcoin.Crypto;
 import com.shuffle.bitcoin.DecryptionKey;
 import com.shuffle.bitcoin.EncryptionKey;
+import com.shuffle.bitcoin.Lookup;
 import com.shuffle.bitcoin.SigningKey;
 import com.shuffle.bitcoin.Transaction;
 import com.shuffle.bitcoin.VerificationKey;
 import com.shuffle.chan.Send;
+import com.shuffle.chan.packet.Marshaller;
+import com.shuffle.monitor.Metrics;
 import com.shuffle.p2p.Bytestring;
 import com.shuffle.protocol.blame.Blame;
 import com.shuffle.protocol.blame.BlameException;
@@ -33,6 +37,9 @@ import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -65,6 +72,119 @@ public class CoinShuffle {
 
     final MessageFactory messages;
 
+    /**
+     * The parts of the protocol which can be changed but which have sensible defaults.
+     *
+     * Settings are immutable. Start from defaults, and each method returns a copy with one
+     * thing changed, so the same settings can be given to many rounds.
+     */
+    public static final class Settings {
+
+        // How to do the many decryptions in the shuffle and blame phases.
+        public final Decryption decryption;
+
+        // How to check everyone's signatures to the transaction.
+        public final BatchVerifier verifier;
+
+        // Where to report what the protocol is doing.
+        public final Metrics metrics;
+
+        // How long to wait for each player's messages in each phase. This is shared by every
+        // round, so that what is learned about the other players in one round is used in the
+        // next. If null, each round waits Mailbox.defaultTimeout for its number of players.
+        public final Timeouts timeouts;
+
+        // What the timeouts are measured by. This is only something other than the system
+        // clock in simulations.
+        public final Clock clock;
+
+        // How keys and addresses are written for the equivocation check. Every player must
+        // write them the same way, so these should be the marshallers with which they are
+        // sent over the network.
+        public final Marshaller<EncryptionKey> encryptionKeys;
+        public final Marshaller<Address> addresses;
+
+        public static final Settings defaults = new Settings(
+                Decryption.sequential, BatchVerifier.sequential, Metrics.none, null, Clock.system,
+                EquivocationHash.javaKeys, EquivocationHash.javaAddresses);
+
+        private Settings(Decryption decryption, BatchVerifier verifier, Metrics metrics,
+                         Timeouts timeouts, Clock clock,
+                         Marshaller<EncryptionKey> encryptionKeys, Marshaller<Address> addresses) {
+
+            if (decryption == null || verifier == null || metrics == null || clock == null
+                    || encryptionKeys == null || addresses == null) {
+                throw new NullPointerException();
+            }
+
+            this.decryption = decryption;
+            this.verifier = verifier;
+            this.metrics = metrics;
+            this.timeouts = timeouts;
+            this.clock = clock;
+            this.encryptionKeys = encryptionKeys;
+            this.addresses = addresses;
+        }
+
+        public Settings decryption(Decryption decryption) {
+            return new Settings(
+                    decryption, verifier, metrics, timeouts, clock, encryptionKeys, addresses);
+        }
+
+        public Settings verifier(BatchVerifier verifier) {
+            return new Settings(
+                    decryption, verifier, metrics, timeouts, clock, encryptionKeys, addresses);
+        }
+
+        public Settings metrics(Metrics metrics) {
+            return new Settings(
+                    decryption, verifier, metrics, timeouts, clock, encryptionKeys, addresses);
+        }
+
+        // Null for the default, which depends on the number of players.
+        public Settings timeouts(Timeouts timeouts) {
+            return new Settings(
+                    decryption, verifier, metrics, timeouts, clock, encryptionKeys, addresses);
+        }
+
+        // Wait the same time for every phase, in milliseconds, however many players there
+        // are. Zero is for the default.
+        public Settings timeout(long timeout) {
+            if (timeout < 0) throw new IllegalArgumentException();
+
+            return timeouts(timeout == 0 ? null : new Timeouts.Fixed(timeout));
+        }
+
+        public Settings clock(Clock clock) {
+            return new Settings(
+                    decryption, verifier, metrics, timeouts, clock, encryptionKeys, addresses);
+        }
+
+        public Settings encoding(
+                Marshaller<EncryptionKey> encryptionKeys, Marshaller<Address> addresses) {
+
+            return new Settings(
+                    decryption, verifier, metrics, timeouts, clock, encryptionKeys, addresses);
+        }
+
+        EquivocationHash equivocationHash() {
+            return new EquivocationHash(encryptionKeys, addresses);
+        }
+
+        // The timeouts for a round with the given number of players.
+        Timeouts timeouts(int players) {
+            return timeouts != null
+                    ? timeouts : new Timeouts.Fixed(Mailbox.defaultTimeout(players));
+        }
+    }
+
+    final Settings settings;
+
+    // The settings which the rounds use most often.
+    final Decryption decryption;
+    final BatchVerifier verifier;
+    final Metrics metrics;
+
     // A single round of the protocol. It is possible that the players may go through
     // several failed rounds until they have eliminated malicious players.
     class Round {
@@ -90,6 +210,10 @@ public class CoinShuffle {
         // The set of new addresses into which the coins will be deposited.
         public Queue<Address> newAddresses = null;
 
+        // A digest of the keys and addresses we have received, for the equivocation check.
+        // They are added to it as soon as we have them.
+        final EquivocationHash received = settings.equivocationHash();
+
         public final Address addrNew;
 
         public final Address change; // My change address. (may be null).
@@ -133,6 +257,7 @@ public class CoinShuffle {
             }
 
             readAnnouncements(announcement, encryptionKeys, changeAddresses);
+            received.keys(players, encryptionKeys);
 
             // Phase 2: Shuffle
             // In the shuffle phase, players go in order and reorder the addresses they have been
@@ -142,6 +267,10 @@ public class CoinShuffle {
             phase.set(Phase.Shuffling);
 
             try {
+                // Our own encrypted address does not depend on anything from the previous
+                // player, so we make it while we are waiting for them.
+                onion(addrNew);
+
                 // Player one begins the cycle and encrypts its new address with everyone's
                 // public encryption key, in order.
                 // Each subsequent player reorders the cycle and removes one layer of encryption.
@@ -169,7 +298,7 @@ public class CoinShuffle {
                 // In this phase, the last player just broadcasts the transaction to everyone else.
                 phase.set(Phase.BroadcastOutput);
 
-                newAddresses = readAndBroadcastNewAddresses(shuffled);
+                receivedNewAddresses(readAndBroadcastNewAddresses(shuffled));
             } catch (BlameException e) {
                 switch (e.packet.payload().readBlame().reason) {
                     case MissingOutput: {
@@ -177,8 +306,8 @@ public class CoinShuffle {
                         // were sent out by the last player, which means that we need to receive
                         // the new addresses before proceeding.
                         if (newAddresses == null) {
-                            newAddresses = readNewAddresses(mailbox.receiveFromBlameless(
-                                    players.get(N), phase.get()));
+                            receivedNewAddresses(readNewAddresses(mailbox.receiveFromBlameless(
+                                    players.get(N), phase.get())));
                         }
                         // Continue on to next case.
                     }
@@ -206,7 +335,7 @@ public class CoinShuffle {
             // encryption keys to different players.
             phase.set(Phase.EquivocationCheck);
 
-            equivocationCheck(encryptionKeys, newAddresses, false);
+            equivocationCheck(false);
 
             // Phase 5: verification and submission.
             // Everyone creates a Bitcoin transaction and signs it, then broadcasts the signature.
@@ -222,7 +351,12 @@ public class CoinShuffle {
             
             checkDoubleSpending(t);
 
-            mailbox.broadcast(messages.make().attach(sk.sign(t.serialize())), phase.get());
+            // Serialize the transaction once to sign it and to check the other signatures.
+            Bytestring serialized = t.serialize();
+            long start = System.nanoTime();
+            Bytestring mySignature = sk.sign(serialized);
+            metrics.operation(Metrics.Operation.Sign, 1, System.nanoTime() - start);
+            mailbox.broadcast(messages.make().attach(mySignature), phase.get());
 
             Map<VerificationKey, Message> signatureMessages = null;
             boolean invalidClaim = false;
@@ -248,14 +382,20 @@ public class CoinShuffle {
             }
 
             // Verify the signatures.
-            Map<VerificationKey, Bytestring> invalid = new HashMap<>();
+            List<BatchVerifier.Claim> claims = new ArrayList<>(signatureMessages.size());
             for (Map.Entry<VerificationKey, Message> sig : signatureMessages.entrySet()) {
                 VerificationKey key = sig.getKey();
                 Bytestring signature = sig.getValue().readSignature();
                 signatures.put(key, signature);
-                if (!key.verify(t.serialize(), signature)) {
-                    invalid.put(key, signature);
-                }
+                claims.add(new BatchVerifier.Claim(key, serialized, signature));
+            }
+
+            Map<VerificationKey, Bytestring> invalid = new HashMap<>();
+            start = System.nanoTime();
+            List<BatchVerifier.Claim> failed = verifier.invalid(claims);
+            metrics.operation(Metrics.Operation.Verify, claims.size(), System.nanoTime() - start);
+            for (BatchVerifier.Claim claim : failed) {
+                invalid.put(claim.key, claim.signature);
             }
 
             if (invalid.size() > 0 || invalidClaim) {
@@ -315,19 +455,33 @@ public class CoinShuffle {
             return queue;
         }
 
-        // The shuffle phase.
-        Message shufflePhase(Message shuffled, Address addrNew) throws FormatException {
+        // Our new address, encrypted for the shuffle phase.
+        private Address onion = null;
+
+        // Encrypt an address with the keys of the players who come after us. Note that if
+        // me == N, ie, the last player, then no encryption is done. That is because we have
+        // reached the last layer of encryption.
+        Address onion(Address addrNew) {
+            if (onion != null && addrNew.equals(this.addrNew)) return onion;
 
-            // Add our own address to the mix. Note that if me == N, ie, the last player, then no
-            // encryption is done. That is because we have reached the last layer of encryption.
             Address encrypted = addrNew;
+            long start = System.nanoTime();
             for (int i = N; i > me; i--) {
                 // Successively encrypt with the keys of the players who haven't had their turn yet.
                 encrypted = encryptionKeys.get(players.get(i)).encrypt(encrypted);
             }
+            metrics.operation(Metrics.Operation.Encrypt, N - me, System.nanoTime() - start);
+
+            if (addrNew.equals(this.addrNew)) onion = encrypted;
 
-            // Insert new entry and reorder the keys.
-            return shuffle(shuffled.attach(encrypted));
+            return encrypted;
+        }
+
+        // The shuffle phase.
+        Message shufflePhase(Message shuffled, Address addrNew) throws FormatException {
+
+            // Add our own address to the mix, insert new entry and reorder the keys.
+            return shuffle(shuffled.attach(onion(addrNew)));
         }
 
         // In the broadcast phase, we have to either receive all the
@@ -355,9 +509,7 @@ public class CoinShuffle {
         final Message decryptAll(Message message, DecryptionKey key, int expected)
                 throws IOException, InterruptedException, FormatException {
 
-            Message decrypted = messages.make();
-
-            int count = 0;
+            List<Address> encrypted = new ArrayList<>();
             Set<Address> addrs = new HashSet<>(); // Used to check that all addresses are different.
 
             while (!message.isEmpty()) {
@@ -365,8 +517,22 @@ public class CoinShuffle {
                 message = message.rest();
 
                 addrs.add(address);
-                count++;
-                decrypted = decrypted.attach(key.decrypt(address));
+                encrypted.add(address);
+            }
+
+            int count = encrypted.size();
+            DecryptionKey[][] keys = new DecryptionKey[count][];
+            Arrays.fill(keys, new DecryptionKey[]{key});
+
+            long start = System.nanoTime();
+            Address[] plain = decryption.decrypt(encrypted.toArray(new Address[count]), keys);
+            metrics.operation(Metrics.Operation.Decrypt, count, System.nanoTime() - start);
+
+            Message decrypted = messages.make();
+            for (Address address : plain) {
+                if (address == null) throw new FormatException();
+
+                decrypted = decrypted.attach(address);
             }
 
             if (addrs.size() != count || count != expected) {
@@ -388,19 +554,22 @@ public class CoinShuffle {
 
             // First skip to phase 4 and do an equivocation check.
             phase.set(Phase.EquivocationCheck);
-            equivocationCheck(encryptionKeys, newAddresses, true);
+            equivocationCheck(true);
+        }
+
+        // The new addresses are added to the equivocation hash as soon as we have them.
+        final void receivedNewAddresses(Queue<Address> addresses) {
+            newAddresses = addresses;
+            received.addresses(addresses);
         }
 
         // Players run an equivocation check when they must confirm that they all have
         // the same information.
         void equivocationCheck(
-                Map<VerificationKey,
-                EncryptionKey> encryptonKeys,
-                Queue<Address> newAddresses,
                 boolean errorCase // There is an equivocation check that occurs
         ) throws InterruptedException, WaitingException, Matrix, IOException, FormatException {
 
-            Message equivocationCheck = equivocationCheckHash(players, encryptonKeys, newAddresses);
+            Message equivocationCheck = equivocationCheckHash();
             mailbox.broadcast(equivocationCheck, phase.get());
 
             // Wait for a similar message from everyone else and check that the result is the name.
@@ -410,7 +579,7 @@ public class CoinShuffle {
 
             hashes.put(vk, equivocationCheck);
 
-            if (areEqual(hashes.values())) {
+            if (groupByHash(hashes).size() == 1) {
                 // We may have got this far as part of a normal part of the protocol or as a part
                 // of an error case. If this is a normal part of the protocol, a blame message
                 // having been received indicates that another player has a problem with the
@@ -442,9 +611,12 @@ public class CoinShuffle {
                 throws CoinNetworkException, WaitingException, Matrix, IOException, InterruptedException, FormatException {
             List<VerificationKey> offenders = new LinkedList<>();
 
-            // Check that each participant has the required amounts.
+            // Check that each participant has the required amounts. All the
+            // addresses are looked up at once.
+            Map<Address, Long> held = Lookup.get(coin.valuesHeld(addresses(players.values())));
             for (VerificationKey player : players.values()) {
-                if (coin.valueHeld(player.address()) < amount) {
+                Long value = held.get(player.address());
+                if (value == null || value < amount) {
                     // Enter the blame phase.
                     offenders.add(player);
                 }
@@ -455,9 +627,11 @@ public class CoinShuffle {
 
             // If not, enter blame phase and find offending transactions.
             phase.set(Phase.Blame);
+            Map<Address, Transaction> conflicts
+                    = Lookup.get(coin.getConflictingTransactions(addresses(offenders), amount));
             Message blameMessage = messages.make();
             for (VerificationKey offender : offenders) {
-                Transaction t = coin.getConflictingTransaction(offender.address(), amount);
+                Transaction t = conflicts.get(offender.address());
 
                 if (t == null) {
                     blameMessage = blameMessage.attach(Blame.NoFundsAtAll(offender));
@@ -492,12 +666,14 @@ public class CoinShuffle {
         }
 
         void checkDoubleSpending(Transaction t) throws InterruptedException, IOException,
-                FormatException, WaitingException, Matrix {
+                FormatException, WaitingException, Matrix, CoinNetworkException {
 
             // Check for double spending.
+            Map<Address, Transaction> conflicts = Lookup.get(
+                    coin.getConflictingTransactions(addresses(players.values()), amount));
             Message doubleSpend = messages.make();
             for (VerificationKey key : players.values()) {
-                Transaction o = coin.getConflictingTransaction(key.address(), amount);
+                Transaction o = conflicts.get(key.address());
                 if (o != null) {
                     doubleSpend = doubleSpend.attach(Blame.DoubleSpend(key, o));
                 }
@@ -511,6 +687,15 @@ public class CoinShuffle {
             }
         }
 
+        // The addresses holding the funds of the given players.
+        private List<Address> addresses(Collection<VerificationKey> keys) {
+            List<Address> addresses = new ArrayList<>(keys.size());
+            for (VerificationKey key : keys) {
+                addresses.add(key.address());
+            }
+            return addresses;
+        }
+
         // When we know we'll receive a bunch of blame messages, we have to go through them all
         // to figure out what's going on.
         final Matrix fillBlameMatrix() throws IOException, InterruptedException, FormatException {
@@ -519,15 +704,13 @@ public class CoinShuffle {
             Map<VerificationKey, Queue<Packet>> blameMessages = mailbox.receiveAllBlame();
 
             // Get all hashes received in phase 4 to check that they were reported correctly.
-            Map<VerificationKey, Message> hashes = new HashMap<>();
+            Map<VerificationKey, Bytestring> hashes = new HashMap<>();
             {
                 Queue<Packet> hashMessages =
                         mailbox.getPacketsByPhase(Phase.EquivocationCheck);
 
                 for (Packet packet : hashMessages) {
-                    hashes.put(packet.from(), packet.payload());
-                    // Include my own hash.
-                    hashes.put(vk, equivocationCheckHash(players, encryptionKeys, newAddresses));
+                    hashes.put(packet.from(), readHash(packet.payload()));
                 }
             }
 
@@ -608,9 +791,10 @@ public class CoinShuffle {
 
                                 // Check if this player correctly reported
                                 // the hash previously sent to us.
-                                if (!hashes.get(from).equals(
-                                        equivocationCheckHash(players, receivedKeys, addresses))
-                                        ) {
+                                Bytestring reported = hashes.get(from);
+                                if (reported != null && !reported.equals(settings.equivocationHash()
+                                        .keys(players, receivedKeys)
+                                        .addresses(addresses).digest())) {
                                     matrix.put(vk, Evidence.Placeholder(from, Reason.Liar));
                                 }
 
@@ -756,7 +940,8 @@ public class CoinShuffle {
                     log.warn("leftover");
                     // TODO blame someone.
                 } else {
-                    Evidence shuffleEvidence = checkShuffleMisbehavior(players, decryptionKeys,
+                    Evidence shuffleEvidence = checkShuffleMisbehavior(
+                            decryption, players, decryptionKeys,
                             shuffleMessages, outputEquivocate ? null : outputVectors);
                     if (shuffleEvidence != null) {
                         matrix.put(vk, shuffleEvidence);
@@ -799,23 +984,23 @@ public class CoinShuffle {
                 Map<VerificationKey, EncryptionKey> encryptionKeys,
                 Queue<Address> newAddresses) {
 
-            // Put all temporary encryption keys into a list and hash the result.
-            Message check = messages.make();
-            for (int i = 2; i <= players.size(); i++) {
-                check = check.attach(encryptionKeys.get(players.get(i)));
-            }
+            EquivocationHash hash = settings.equivocationHash().keys(players, encryptionKeys);
 
             // During a normal round of the protocol, the players have all received a
             // new set of addresses by this point and those also need to be included. However,
             // there is also an error case in which we don't have the new addresses yet, in which
             // case, they are not included.
             if (newAddresses != null) {
-                for (Address address : newAddresses) {
-                    check = check.attach(address);
-                }
+                hash.addresses(newAddresses);
             }
 
-            return check.hashed();
+            return messages.make().attach(hash.digest());
+        }
+
+        // The same message for what we have received ourselves, which has been hashed
+        // as it arrived.
+        final Message equivocationCheckHash() {
+            return messages.make().attach(received.digest());
         }
 
         // A round is a single run of the protocol.
@@ -884,6 +1069,35 @@ public class CoinShuffle {
         return shuffled;
     }
 
+    // The hash in a message from the equivocation check, or null if there isn't one.
+    static Bytestring readHash(Message message) {
+        try {
+            return message.readSignature();
+        } catch (FormatException e) {
+            return null;
+        }
+    }
+
+    // Group the players by the hash they sent in the equivocation check. If everyone has
+    // received the same information, there is only one group. Players who didn't send a
+    // proper hash are grouped under null.
+    static Map<Bytestring, Set<VerificationKey>> groupByHash(
+            Map<VerificationKey, Message> hashes) {
+
+        Map<Bytestring, Set<VerificationKey>> groups = new HashMap<>();
+        for (Map.Entry<VerificationKey, Message> entry : hashes.entrySet()) {
+            Bytestring hash = readHash(entry.getValue());
+            Set<VerificationKey> group = groups.get(hash);
+            if (group == null) {
+                group = new HashSet<>();
+                groups.put(hash, group);
+            }
+            group.add(entry.getKey());
+        }
+
+        return groups;
+    }
+
     // Test whether a set of messages are equal.
     static boolean areEqual(Iterable<Message> messages) throws InvalidImplementationError {
         Message last = null;
@@ -993,6 +1207,7 @@ public class CoinShuffle {
     }
 
     private static Evidence checkShuffleMisbehavior(
+            Decryption decryption,
             Map<Integer, VerificationKey> players,
             Map<VerificationKey, DecryptionKey> decryptionKeys,
             Map<VerificationKey, Packet> shuffleMessages,
@@ -1002,9 +1217,16 @@ public class CoinShuffle {
                 || shuffleMessages == null || broadcastMessages == null)
             throw new NullPointerException();
 
-        SortedSet<Address> outputs = new TreeSet<>();
+        // First we read the addresses from every step of the shuffle so that they can all be
+        // decrypted together. We stop at the first step that is found to be invalid.
+        List<Address> encrypted = new ArrayList<>();
+        List<DecryptionKey[]> keys = new ArrayList<>();
+        int steps = 0; // The number of steps which have all their addresses.
+        boolean dropped = false; // Whether the next step is missing addresses.
+        boolean malformed = false; // Whether the next step has something other than an address.
 
         // Go through the steps of shuffling messages.
+        read:
         for (int i = 1; i <= players.size(); i++) {
 
             // The last step is from phase three, so we have to check for that.
@@ -1025,27 +1247,58 @@ public class CoinShuffle {
             }
 
             if (packet == null) {
-                // TODO Blame a player for lying.
+                break;
+            }
 
-                return null;
+            // The keys of the players who have not yet decrypted this step.
+            DecryptionKey[] remaining = new DecryptionKey[players.size() - i];
+            for (int k = i + 1; k <= players.size(); k++) {
+                remaining[k - i - 1] = decryptionKeys.get(players.get(k));
             }
 
             Message message = packet.payload();
 
-            // Grab the correct number of addresses and decrypt them.
-            SortedSet<Address> addresses = new TreeSet<>();
+            // Grab the correct number of addresses.
             for (int j = 0; j < i; j++) {
                 if (message.isEmpty()) {
-                    return Evidence.ShuffleMisbehaviorDropAddress(
-                            players.get(i), decryptionKeys, shuffleMessages, broadcastMessages);
+                    dropped = true;
+                    break read;
                 }
 
-                Address address = message.readAddress();
+                try {
+                    encrypted.add(message.readAddress());
+                } catch (FormatException e) {
+                    malformed = true;
+                    break read;
+                }
+                keys.add(remaining);
                 message = message.rest();
-                for (int k = i + 1; k <= players.size(); k++) {
-                    address = decryptionKeys.get(players.get(k)).decrypt(address);
+            }
+
+            steps++;
+        }
+
+        Address[] decrypted = decryption.decrypt(encrypted.toArray(new Address[encrypted.size()]),
+                keys.toArray(new DecryptionKey[keys.size()][]));
+
+        // Now go through the steps again in order and check them.
+        SortedSet<Address> outputs = new TreeSet<>();
+        int n = 0;
+        for (int i = 1; i <= steps + (dropped || malformed ? 1 : 0); i++) {
+
+            // Check the decrypted addresses.
+            SortedSet<Address> addresses = new TreeSet<>();
+            for (int j = 0; j < i; j++) {
+                if (n == decrypted.length) {
+                    if (malformed) throw new FormatException();
+
+                    return Evidence.ShuffleMisbehaviorDropAddress(
+                            players.get(i), decryptionKeys, shuffleMessages, broadcastMessages);
                 }
 
+                Address address = decrypted[n++];
+                if (address == null) throw new FormatException();
+
                 // There shouldn't be duplicates.
                 if (addresses.contains(address)) {
                     return Evidence.ShuffleMisbehaviorDropAddress(
@@ -1071,6 +1324,8 @@ public class CoinShuffle {
             outputs.add(addresses.first());
         }
 
+        // TODO Blame a player for lying if a packet was missing.
+
         return null;
     }
 
@@ -1095,12 +1350,7 @@ public class CoinShuffle {
             throw new NullPointerException();
         }
 
-        CurrentPhase machine;
-        if (chan == null) {
-            machine = new CurrentPhase();
-        } else {
-            machine = new CurrentPhase(chan);
-        }
+        CurrentPhase machine = new CurrentPhase(chan, metrics);
 
         // Get the initial ordering of the players.
         int i = 1;
@@ -1112,24 +1362,41 @@ public class CoinShuffle {
 
         // Make an inbox for the next round.
         Mailbox mailbox = new Mailbox(
-                sk.VerificationKey(), numberedPlayers.values(), messages);
-
-        return this.new Round(
-                machine, amount, sk, numberedPlayers, addrNew, change, mailbox
-        ).protocolDefinition();
+                sk.VerificationKey(), numberedPlayers.values(), messages, settings);
+
+        try {
+            return this.new Round(
+                    machine, amount, sk, numberedPlayers, addrNew, change, mailbox
+            ).protocolDefinition();
+        } finally {
+            machine.end();
+        }
     }
 
     public CoinShuffle(
             MessageFactory messages, // Object that knows how to create and copy messages.
             Crypto crypto, // Connects to the cryptography.
-            Coin coin // Connects us to the Bitcoin or other cryptocurrency netork.
+            Coin coin, // Connects us to the Bitcoin or other cryptocurrency netork.
+            Settings settings // Everything else.
     ) {
-        if (crypto == null || coin == null || messages == null) {
+        if (crypto == null || coin == null || messages == null || settings == null) {
             throw new NullPointerException();
         }
         this.crypto = crypto;
         this.coin = coin;
         this.messages = messages;
+        this.settings = settings;
+        this.decryption = settings.decryption;
+        this.verifier = settings.verifier;
+        this.metrics = settings.metrics;
+    }
+
+    public CoinShuffle(
+            MessageFactory messages,
+            Crypto crypto,
+            Coin coin
+    ) {
+        this(messages, crypto, coin, Settings.defaults);
     }
 
     /**
@@ -1140,8 +1407,14 @@ public class CoinShuffle {
     static class CurrentPhase {
 
         private final Send<Phase> ch;
+        private final Metrics metrics;
         private Phase phase = Phase.Uninitiated;
 
+        // When the current phase began.
+        private long since = System.nanoTime();
+
+        private boolean ended = false;
+
         // the phase can be accessed concurrently in case we want to update
         // the user on how the protocol is going.
         public Phase get() {
@@ -1149,23 +1422,49 @@ public class CoinShuffle {
         }
 
         public void set(Phase phase) throws InterruptedException {
+            long now = System.nanoTime();
+            metrics.phase(this.phase, now - since);
+            since = now;
+
             this.phase = phase;
             if (ch != null) {
                 ch.send(phase);
             }
         }
 
+        // The round is over, however it ended, so the time spent in the last phase is
+        // reported. Otherwise a round that ends in blame would never report it.
+        public void end() {
+            if (ended) return;
+            ended = true;
+
+            metrics.phase(phase, System.nanoTime() - since);
+        }
+
         public CurrentPhase() {
             ch = null;
+            metrics = Metrics.none;
         }
 
         public CurrentPhase(Send<Phase> ch) throws InterruptedException {
+            this(ch, Metrics.none);
+
             if (ch == null) {
                 throw new NullPointerException();
             }
+        }
+
+        // The channel may be null, in which case the phase is only reported to the metrics.
+        public CurrentPhase(Send<Phase> ch, Metrics metrics) throws InterruptedException {
+            if (metrics == null) {
+                throw new NullPointerException();
+            }
 
             this.ch = ch;
-            ch.send(Phase.Uninitiated);
+            this.metrics = metrics;
+            if (ch != null) {
+                ch.send(Phase.Uninitiated);
+            }
         }
     }
 }
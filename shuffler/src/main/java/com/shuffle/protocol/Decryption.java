@@ -0,0 +1,82 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.protocol;
+
+import com.shuffle.bitcoin.Address;
+import com.shuffle.bitcoin.DecryptionKey;
+import com.shuffle.monad.ParallelMap;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Determines how CoinShuffle carries out large numbers of decryptions, which happens in the
+ * shuffle phase and when checking for misbehavior in the blame phase.
+ */
+public interface Decryption {
+
+    // Decrypts every address with its own sequence of keys, which are applied in order.
+    // The result at each index corresponds to the address at the same index. If an address
+    // could not be decrypted, the result is null at that index, so that the caller can decide
+    // in what order to handle the failures.
+    Address[] decrypt(Address[] addresses, DecryptionKey[][] keys);
+
+    // Does everything in the calling thread.
+    Decryption sequential = new Decryption() {
+        @Override
+        public Address[] decrypt(Address[] addresses, DecryptionKey[][] keys) {
+            Address[] decrypted = new Address[addresses.length];
+
+            for (int i = 0; i < addresses.length; i++) {
+                decrypted[i] = Parallel.decrypt(addresses[i], keys[i]);
+            }
+
+            return decrypted;
+        }
+    };
+
+    // Splits up the decryptions among the threads of a fork-join pool.
+    class Parallel implements Decryption {
+        private final ParallelMap map;
+
+        // Below threshold decryptions, a thread does its work without splitting it further.
+        public Parallel(ForkJoinPool pool, int threshold) {
+            map = new ParallelMap(pool, threshold);
+        }
+
+        public Parallel(ForkJoinPool pool) {
+            this(pool, 4);
+        }
+
+        private static Address decrypt(Address address, DecryptionKey[] keys) {
+            try {
+                for (DecryptionKey key : keys) {
+                    address = key.decrypt(address);
+                }
+            } catch (FormatException e) {
+                return null;
+            }
+
+            return address;
+        }
+
+        @Override
+        public Address[] decrypt(final Address[] addresses, final DecryptionKey[][] keys) {
+            if (addresses.length != keys.length) throw new IllegalArgumentException();
+
+            final Address[] decrypted = new Address[addresses.length];
+            map.map(addresses.length, new ParallelMap.Function() {
+                @Override
+                public void apply(int i) {
+                    decrypted[i] = decrypt(addresses[i], keys[i]);
+                }
+            });
+            return decrypted;
+        }
+    }
+}
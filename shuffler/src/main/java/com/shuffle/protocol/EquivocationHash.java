@@ -0,0 +1,130 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.protocol;
+
+import com.shuffle.bitcoin.Address;
+import com.shuffle.bitcoin.EncryptionKey;
+import com.shuffle.bitcoin.VerificationKey;
+import com.shuffle.chan.packet.JavaMarshaller;
+import com.shuffle.chan.packet.Marshaller;
+import com.shuffle.p2p.Bytestring;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+/**
+ * A SHA-256 digest of the encryption keys and new addresses that a player has received,
+ * which the players compare in the equivocation check to make sure that nobody has been
+ * told something different from the others.
+ *
+ * Keys and addresses are added as they arrive, and the digest is always 32 bytes however
+ * many players there are. Each is hashed as it is written by the given marshallers, with a
+ * prefix that says what it is and how long it is. Every player must write them the same way,
+ * so the marshallers should be those with which they are sent over the network.
+ */
+final class EquivocationHash {
+    private static final byte KEY = 1;
+    private static final byte ADDRESS = 2;
+
+    // Java serialization, which is how keys and addresses are sent by default.
+    static final Marshaller<Address> javaAddresses = new JavaMarshaller<>();
+
+    static final Marshaller<EncryptionKey> javaKeys = new Marshaller<EncryptionKey>() {
+        private final Marshaller<Serializable> java = new JavaMarshaller<>();
+
+        @Override
+        public Bytestring marshall(EncryptionKey ek) {
+            if (!(ek instanceof Serializable)) return null;
+
+            return java.marshall((Serializable) ek);
+        }
+
+        @Override
+        public EncryptionKey unmarshall(Bytestring string) {
+            Serializable s = java.unmarshall(string);
+            return s instanceof EncryptionKey ? (EncryptionKey) s : null;
+        }
+    };
+
+    private final Marshaller<EncryptionKey> keyMarshaller;
+    private final Marshaller<Address> addressMarshaller;
+
+    private final MessageDigest digest;
+
+    // Set once the digest has been taken, after which nothing more can be added.
+    private Bytestring result = null;
+
+    EquivocationHash(Marshaller<EncryptionKey> keys, Marshaller<Address> addresses) {
+        if (keys == null || addresses == null) throw new NullPointerException();
+
+        keyMarshaller = keys;
+        addressMarshaller = addresses;
+
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new InvalidImplementationError();
+        }
+    }
+
+    private void add(byte type, Object x, Bytestring b) {
+        if (result != null) throw new IllegalStateException();
+        if (b == null) throw new IllegalArgumentException("Could not marshall " + x);
+
+        digest.update(type);
+        digest.update(ByteBuffer.allocate(4).putInt(b.length()).array());
+        digest.update(b.buffer());
+    }
+
+    EquivocationHash addKey(EncryptionKey ek) {
+        if (ek == null) throw new NullPointerException();
+
+        add(KEY, ek, keyMarshaller.marshall(ek));
+        return this;
+    }
+
+    EquivocationHash addAddress(Address addr) {
+        if (addr == null) throw new NullPointerException();
+
+        add(ADDRESS, addr, addressMarshaller.marshall(addr));
+        return this;
+    }
+
+    // The keys of every player but the first, who doesn't make one, in order.
+    EquivocationHash keys(
+            Map<Integer, VerificationKey> players,
+            Map<VerificationKey, EncryptionKey> keys) {
+
+        for (int i = 2; i <= players.size(); i++) {
+            addKey(keys.get(players.get(i)));
+        }
+
+        return this;
+    }
+
+    EquivocationHash addresses(Iterable<Address> addresses) {
+        for (Address address : addresses) {
+            addAddress(address);
+        }
+
+        return this;
+    }
+
+    Bytestring digest() {
+        if (result == null) {
+            result = new Bytestring(digest.digest());
+        }
+
+        return result;
+    }
+}
@@ -9,6 +9,7 @@
 package com.shuffle.protocol;
 
 import com.shuffle.bitcoin.VerificationKey;
+import com.shuffle.monitor.Metrics;
 import com.shuffle.protocol.blame.BlameException;
 import com.shuffle.protocol.blame.Reason;
 import com.shuffle.protocol.message.Message;
@@ -18,14 +19,18 @@ import com.shuffle.protocol.message.Phase;
 
 import java.io.IOException;
 import java.net.ProtocolException;
+import java.util.ArrayDeque;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A class for managing messages for the core protocol.
@@ -37,22 +42,100 @@ public class Mailbox {
     private final VerificationKey me;
     private final Collection<VerificationKey> players; // The keys representing all the players.
 
-    // A queue of messages that has been delivered that we aren't ready to look at yet.
-    private final Queue<Packet> delivered = new LinkedList<>();
+    // Messages that have been delivered that we aren't ready to look at yet, by phase.
+    private final Map<Phase, Queue<Packet>> delivered = new EnumMap<>(Phase.class);
 
-    // All messages received (does not include those in delivered).
-    private final Queue<Packet> history = new LinkedList<>();
+    // All messages received (does not include those in delivered), by phase.
+    private final Map<Phase, Queue<Packet>> history = new EnumMap<>(Phase.class);
+
+    // Blame messages in history, by sender.
+    private final Map<VerificationKey, Queue<Packet>> blameHistory = new HashMap<>();
 
     private final Set<Reason> blame = new HashSet<>();
 
+    private final Metrics metrics;
+
+    // The number of packets in delivered.
+    private int waiting = 0;
+
+    // A timeout, wherever one is given, is how long to wait for the messages of a phase, in
+    // milliseconds. Unless one is given, we wait this long for each player in the round, so
+    // that in a phase in which everyone sends something, each of them has as long as the
+    // old one-second poll gave them.
+    public static final long DEFAULT_TIMEOUT = 1000;
+
+    // How long to wait for the messages of a phase by default, in milliseconds.
+    public static long defaultTimeout(int players) {
+        return DEFAULT_TIMEOUT * Math.max(players, 1);
+    }
+
+    // How long we wait for each player's messages.
+    private final Timeouts timeouts;
+
+    // What the timeouts are measured by.
+    private final Clock clock;
+
+    // The phase we are receiving messages for and when we started waiting for them. How
+    // long each player takes is measured from then.
+    private Phase current = null;
+    private long start = 0;
+
+    // The players whose delay in the current phase has already been measured.
+    private final Set<VerificationKey> measured = new HashSet<>();
+
+    // Every packet that has come in. A player who resumes a round sends again exactly
+    // what they sent before, so a packet that we already have is ignored.
+    private final Set<Packet> seen = new HashSet<>();
+
     public Mailbox(
             VerificationKey me,
             Collection<VerificationKey> players,
             MessageFactory messages) {
 
+        this(me, players, messages, CoinShuffle.Settings.defaults);
+    }
+
+    // Only the metrics, the timeouts and the clock are taken from the settings. Each call
+    // that waits for messages has a deadline of its own, counted from when it is made, so a
+    // call that comes after another in the same phase still waits as long.
+    public Mailbox(
+            VerificationKey me,
+            Collection<VerificationKey> players,
+            MessageFactory messages,
+            CoinShuffle.Settings settings) {
+
         this.me = me;
         this.messages = messages;
         this.players = players;
+        this.metrics = settings.metrics;
+        this.timeouts = settings.timeouts(players.size());
+        this.clock = settings.clock;
+
+        for (Phase phase : Phase.values()) {
+            delivered.put(phase, new ArrayDeque<Packet>());
+            history.put(phase, new ArrayDeque<Packet>());
+        }
+    }
+
+    private void record(Packet packet) {
+        Phase phase = packet.phase();
+        history.get(phase).add(packet);
+
+        if (phase == Phase.Blame) {
+            VerificationKey from = packet.from();
+            Queue<Packet> q = blameHistory.get(from);
+            if (q == null) {
+                q = new ArrayDeque<>();
+                blameHistory.put(from, q);
+            }
+            q.add(packet);
+
+            try {
+                blame.add(packet.payload().readBlame().reason);
+            } catch (FormatException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     // Whether a blame message with the given reason has been received.
@@ -77,53 +160,64 @@ public class Mailbox {
         // If this is a message to myself, don't send it. Just pretend we received it.
         // This is useful later when we have to collect all blame messages later.
         if (to.equals(me)) {
-            history.add(packet);
-            if (packet.phase() == Phase.Blame) {
-                try {
-                    blame.add(packet.payload().readBlame().reason);
-                } catch (FormatException e) {
-                    e.printStackTrace();
-                }
-            }
+            record(packet);
         }
     }
 
+    // The message is signed once and the same packet goes to everyone.
     public void broadcast(Message message, Phase phase) throws IOException, InterruptedException {
-        for (VerificationKey to : players) {
-            send(message, phase, to);
+        Packet packet = message.broadcast(phase, players);
+
+        // Our own copy is kept in history, as with send.
+        if (packet != null && players.contains(me)) {
+            record(packet);
         }
     }
 
     // Get the next message from the phase we're in. It's possible for other players to get
     // ahead under some circumstances, so we have to keep their messages to look at later.
-    // It always returns a blame packet if encountered.
-    private Packet receiveNextPacket(Phase expectedPhase) throws InterruptedException, IOException {
-        Packet found = null;
-
-        // Go through the queue of received messages if any are there.
-        if (delivered.size() > 0) {
-            Iterator<Packet> i = delivered.iterator();
-            while (i.hasNext()) {
-                Packet packet = i.next();
-
-                // Return any that matches what we're looking for.
-                if (expectedPhase == packet.phase()) {
-                    i.remove();
-                    found = packet;
-                    break;
-                }
-            }
+    // It always returns a blame packet if encountered. We wait as long as the slowest of
+    // the players we expect to hear from is expected to take, counting from since, and
+    // return null after that.
+    private Packet receiveNextPacket(
+            Phase expectedPhase, Set<VerificationKey> expected, long since)
+            throws InterruptedException, IOException {
+
+        if (expectedPhase != current) {
+            current = expectedPhase;
+            start = clock.nanoTime();
+            measured.clear();
+        }
+
+        // Take the earliest one we have already received if there is one.
+        Packet found = delivered.get(expectedPhase).poll();
+        if (found != null) {
+            waiting--;
+            metrics.queueDepth(waiting);
         }
 
         // Now we wait for the right message from the network, since we haven't already received it.
         if (found == null) {
+            long timeout = 0;
+            for (VerificationKey from : expected) {
+                timeout = Math.max(timeout, timeouts.timeout(from, expectedPhase));
+            }
+            long deadline = since + timeout;
+
             while (true) {
-                Packet packet = messages.receive();
+                long remaining = deadline - clock.nanoTime();
+                Packet packet = remaining <= 0
+                        ? null : messages.receive(remaining, TimeUnit.NANOSECONDS);
 
                 if (packet == null) {
+                    for (VerificationKey from : expected) {
+                        timeouts.expired(from, expectedPhase);
+                    }
                     return null;
                 }
 
+                if (!seen.add(packet)) continue;
+
                 Phase phase = packet.phase();
 
                 if (expectedPhase == phase || phase == Phase.Blame) {
@@ -131,38 +225,26 @@ public class Mailbox {
                     break;
                 }
 
-                delivered.add(packet);
+                delivered.get(phase).add(packet);
+                waiting++;
+                metrics.queueDepth(waiting);
             }
         }
 
-        history.add(found);
-        if (found.phase() == Phase.Blame) {
-
-            try {
-                blame.add(found.payload().readBlame().reason);
-            } catch (FormatException e) {
-                e.printStackTrace();
-            }
+        // Messages which were already waiting for us count as having taken no time.
+        if (found.phase() == expectedPhase && measured.add(found.from())) {
+            timeouts.arrived(found.from(), expectedPhase, clock.nanoTime() - start);
         }
 
+        record(found);
+
         return found;
     }
 
     // Get all packets history or received by phase. Used during blame phase.
     public Queue<Packet> getPacketsByPhase(Phase phase) {
-        Queue<Packet> selection = new LinkedList<>();
-
-        for (Packet packet : history) {
-            if (packet.phase() == phase) {
-                selection.add(packet);
-            }
-        }
-
-        for (Packet packet : delivered) {
-            if (packet.phase() == phase) {
-                selection.add(packet);
-            }
-        }
+        Queue<Packet> selection = new LinkedList<>(history.get(phase));
+        selection.addAll(delivered.get(phase));
 
         return selection;
     }
@@ -171,7 +253,8 @@ public class Mailbox {
     public Message receiveFrom(VerificationKey from, Phase expectedPhase)
             throws BlameException, InterruptedException, IOException, WaitingException {
 
-        Packet packet = receiveNextPacket(expectedPhase);
+        Packet packet = receiveNextPacket(
+                expectedPhase, Collections.singleton(from), clock.nanoTime());
 
         if (packet == null) {
             throw new WaitingException(from);
@@ -188,9 +271,10 @@ public class Mailbox {
     public Message receiveFromBlameless(VerificationKey from, Phase expectedPhase)
             throws WaitingException, InterruptedException, IOException {
 
+        long since = clock.nanoTime();
         Packet packet;
         do {
-            packet = receiveNextPacket(expectedPhase);
+            packet = receiveNextPacket(expectedPhase, Collections.singleton(from), since);
             if (packet == null) throw new WaitingException(from);
 
         } while (expectedPhase != Phase.Blame && packet.phase() == Phase.Blame);
@@ -211,16 +295,17 @@ public class Mailbox {
         // Don't receive a message from myself.
         from.remove(me);
 
+        long since = clock.nanoTime();
         while (from.size() > 0) {
-            Packet packet = receiveNextPacket(expectedPhase);
+            Packet packet = receiveNextPacket(expectedPhase, from, since);
             if (packet == null) throw new WaitingException(from);
 
             if (expectedPhase != Phase.Blame && packet.phase() == Phase.Blame) {
                 if (!ignoreBlame) {
                     // Put the messages already collected back so that they can be received later.
-                    for (Packet p : broadcasts.values()) {
-                        delivered.add(p);
-                    }
+                    delivered.get(expectedPhase).addAll(broadcasts.values());
+                    waiting += broadcasts.size();
+                    metrics.queueDepth(waiting);
 
                     throw new BlameException(packet.from(), packet);
                 }
@@ -269,31 +354,61 @@ public class Mailbox {
         return null;
     }
 
+    // Blame messages with these reasons are always followed by another from the same player.
+    private static final Set<Reason> preliminary
+            = EnumSet.of(Reason.ShuffleFailure, Reason.MissingOutput);
+
+    // Whether a player has sent the last blame message we expect from them.
+    private static boolean answered(Queue<Packet> blame) {
+        for (Packet packet : blame) {
+            try {
+                if (!preliminary.contains(packet.payload().readBlame().reason)) {
+                    return true;
+                }
+            } catch (FormatException e) {
+                return true; // Nothing more that makes sense is coming.
+            }
+        }
+
+        return false;
+    }
+
     // When the blame phase it reached, there may be a lot of blame going around. This function
-    // waits to receive all blame messages until a timeout exception is caught, and then returns
-    // the list of blame messages, organized by player, including those sent by the current player.
+    // waits to receive blame messages until every other player has answered or the phase times
+    // out, and then returns the list of blame messages, organized by player, including those
+    // sent by the current player.
     public Map<VerificationKey, Queue<Packet>> receiveAllBlame()
             throws InterruptedException, IOException {
         Map<VerificationKey, Queue<Packet>> blame = new HashMap<>();
+        // First get the blame messages in history.
         for (VerificationKey player : players) {
-            blame.put(player, new LinkedList<Packet>());
+            Queue<Packet> received = blameHistory.get(player);
+            blame.put(player, received == null
+                    ? new LinkedList<Packet>() : new LinkedList<>(received));
         }
 
-        // First get the blame messages in history.
-        for (Packet packet : history) {
-            if (packet.phase() == Phase.Blame) {
-                blame.get(packet.from()).add(packet);
+        // The players we have not heard from yet.
+        Set<VerificationKey> silent = new HashSet<>();
+        for (Map.Entry<VerificationKey, Queue<Packet>> entry : blame.entrySet()) {
+            if (!entry.getKey().equals(me) && !answered(entry.getValue())) {
+                silent.add(entry.getKey());
             }
         }
 
-        // Then receive any more blame messages until there are no more.
-        while (true) {
-            Packet next = receiveNextPacket(Phase.Blame);
+        // Then receive any more blame messages until everyone has answered.
+        long since = clock.nanoTime();
+        while (!silent.isEmpty()) {
+            Packet next = receiveNextPacket(Phase.Blame, silent, since);
             if (next == null) break;
 
-            blame.get(next.from()).add(next);
+            Queue<Packet> received = blame.get(next.from());
+            received.add(next);
+            if (answered(received)) {
+                silent.remove(next.from());
+            }
         }
 
+
         return blame;
     }
 }
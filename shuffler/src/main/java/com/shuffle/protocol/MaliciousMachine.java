@@ -87,20 +87,17 @@ public final class MaliciousMachine extends CoinShuffle {
         }
 
         @Override
-        final void equivocationCheck(
-                Map<VerificationKey, EncryptionKey> encryptonKeys,
-                Queue<Address> newAddresses,
-                boolean errorCase)
+        final void equivocationCheck(boolean errorCase)
                 throws WaitingException, Matrix, InterruptedException, FormatException, IOException {
 
             Map<VerificationKey, EncryptionKey> otherKeys = new HashMap<>();
-            otherKeys.putAll(encryptonKeys);
+            otherKeys.putAll(encryptionKeys);
 
             if (alt != null) {
                 otherKeys.put(vk, alt.EncryptionKey());
             }
 
-            Message equivocationCheck = equivocationCheckHash(players, encryptonKeys, newAddresses);
+            Message equivocationCheck = equivocationCheckHash();
             Message otherCheck = equivocationCheckHash(players, otherKeys, newAddresses);
 
             for (VerificationKey to : players.values()) {
@@ -112,7 +109,7 @@ public final class MaliciousMachine extends CoinShuffle {
                     playerSet(1, players.size()), phase.get());
             hashes.put(vk, equivocationCheck);
 
-            if (areEqual(hashes.values())) {
+            if (groupByHash(hashes).size() == 1) {
                 if (mailbox.blame() || errorCase) {
                     blameBroadcastShuffleMessages();
                 }
@@ -178,16 +175,13 @@ public final class MaliciousMachine extends CoinShuffle {
         }
 
         @Override
-        final void equivocationCheck(
-                Map<VerificationKey, EncryptionKey> encryptonKeys,
-                Queue<Address> newAddresses,
-                boolean errorCase)
+        final void equivocationCheck(boolean errorCase)
                 throws InterruptedException,
                 FormatException, IOException,
                 WaitingException, Matrix {
 
-            Message equivocationCheck = equivocationCheckHash(players, encryptonKeys, newAddresses);
-            Message otherCheck = equivocationCheckHash(players, encryptonKeys, otherAddresses);
+            Message equivocationCheck = equivocationCheckHash();
+            Message otherCheck = equivocationCheckHash(players, encryptionKeys, otherAddresses);
 
             for (VerificationKey to : players.values()) {
                 mailbox.send(equivocate.contains(to) ? otherCheck : equivocationCheck, phase.get(), to);
@@ -198,7 +192,7 @@ public final class MaliciousMachine extends CoinShuffle {
                     playerSet(1, players.size()), phase.get());
             hashes.put(vk, equivocationCheck);
 
-            if (areEqual(hashes.values())) {
+            if (groupByHash(hashes).size() == 1) {
                 if (mailbox.blame() || errorCase) {
                     blameBroadcastShuffleMessages();
                 }
@@ -355,10 +349,7 @@ public final class MaliciousMachine extends CoinShuffle {
 
         @Override
         // This is when we maliciously double spend the transaction.
-        final void equivocationCheck(
-                Map<VerificationKey, EncryptionKey> encryptonKeys,
-                Queue<Address> newAddresses,
-                boolean errorCase)
+        final void equivocationCheck(boolean errorCase)
                 throws InterruptedException,
                 FormatException, IOException,
                 WaitingException, Matrix {
@@ -372,7 +363,7 @@ public final class MaliciousMachine extends CoinShuffle {
                 }
             }
 
-            super.equivocationCheck(encryptonKeys, newAddresses, errorCase);
+            super.equivocationCheck(errorCase);
         }
 
         @Override
@@ -412,12 +403,7 @@ public final class MaliciousMachine extends CoinShuffle {
             throw new NullPointerException();
         }
 
-        CurrentPhase machine;
-        if (chan == null) {
-            machine = new CurrentPhase();
-        } else {
-            machine = new CurrentPhase(chan);
-        }
+        CurrentPhase machine = new CurrentPhase(chan, metrics);
 
         // Get the initial ordering of the players.
         int i = 1;
@@ -429,8 +415,7 @@ public final class MaliciousMachine extends CoinShuffle {
 
         // Make an inbox for the next round.
         Mailbox mailbox = new Mailbox(
-                sk.VerificationKey(), numberedPlayers.values(), messages
-        );
+                sk.VerificationKey(), numberedPlayers.values(), messages, settings);
 
         Round round = null;
 
@@ -489,14 +474,17 @@ public final class MaliciousMachine extends CoinShuffle {
             // If we are a double spender, we can try to spend our own transaction and get
             // an exception as a result, which we catch here.
             return e.t;
+        } finally {
+            machine.end();
         }
     }
 
     private MaliciousMachine(MessageFactory messages, Crypto crypto,
                              Coin coin, Phase phase,
                              Set<VerificationKey> equivocate,
-                             int drop, int duplicate, boolean replaceNew, Transaction t) {
-        super(messages, crypto, coin);
+                             int drop, int duplicate, boolean replaceNew, Transaction t,
+                             Settings settings) {
+        super(messages, crypto, coin, settings);
 
         // First check for valid input values.
         if (phase == null) {
@@ -559,38 +547,50 @@ public final class MaliciousMachine extends CoinShuffle {
     }
 
     public static CoinShuffle announcementEquivocator(
-            MessageFactory messages, Crypto crypto, Coin coin, Set<VerificationKey> equivocate) {
+            MessageFactory messages, Crypto crypto, Coin coin, Set<VerificationKey> equivocate,
+            Settings settings) {
         return new MaliciousMachine(
-                messages, crypto, coin, Phase.Announcement, equivocate, 0, 0, false, null);
+                messages, crypto, coin, Phase.Announcement, equivocate, 0, 0, false, null,
+                settings);
     }
 
     public static CoinShuffle broadcastEquivocator(
-            MessageFactory messages, Crypto crypto, Coin coin, Set<VerificationKey> equivocate) {
+            MessageFactory messages, Crypto crypto, Coin coin, Set<VerificationKey> equivocate,
+            Settings settings) {
         return new MaliciousMachine(
-                messages, crypto, coin, Phase.BroadcastOutput, equivocate, 0, 0, false, null);
+                messages, crypto, coin, Phase.BroadcastOutput, equivocate, 0, 0, false, null,
+                settings);
     }
 
     public static CoinShuffle addressDropper(
-            MessageFactory messages, Crypto crypto, Coin coin, int drop) {
+            MessageFactory messages, Crypto crypto, Coin coin, int drop,
+            Settings settings) {
         return new MaliciousMachine(
-                messages, crypto, coin, Phase.Shuffling, null, drop, 0, false, null);
+                messages, crypto, coin, Phase.Shuffling, null, drop, 0, false, null,
+                settings);
     }
 
     public static CoinShuffle addressDropperDuplicator(
-            MessageFactory messages, Crypto crypto, Coin coin, int drop, int duplicate) {
+            MessageFactory messages, Crypto crypto, Coin coin, int drop, int duplicate,
+            Settings settings) {
         return new MaliciousMachine(
-                messages, crypto, coin, Phase.Shuffling, null, drop, duplicate, false, null);
+                messages, crypto, coin, Phase.Shuffling, null, drop, duplicate, false, null,
+                settings);
     }
 
     public static CoinShuffle addressReplacer(
-            MessageFactory messages, Crypto crypto, Coin coin, int drop) {
+            MessageFactory messages, Crypto crypto, Coin coin, int drop,
+            Settings settings) {
         return new MaliciousMachine(
-                messages, crypto, coin, Phase.Shuffling, null, drop, 0, true, null);
+                messages, crypto, coin, Phase.Shuffling, null, drop, 0, true, null,
+                settings);
     }
 
     public static CoinShuffle doubleSpender(
-            MessageFactory messages, Crypto crypto, Coin coin, Transaction t) {
+            MessageFactory messages, Crypto crypto, Coin coin, Transaction t,
+            Settings settings) {
         return new MaliciousMachine(
-                messages, crypto, coin, Phase.VerificationAndSubmission, null, 0, 0, false, t);
+                messages, crypto, coin, Phase.VerificationAndSubmission, null, 0, 0, false, t,
+                settings);
     }
 }
@@ -0,0 +1,156 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.protocol;
+
+import com.shuffle.bitcoin.VerificationKey;
+import com.shuffle.protocol.message.Phase;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides how long to wait for each player's message in each phase.
+ *
+ * Times are counted from the moment we start waiting for the messages of a phase, and are
+ * given in nanoseconds. Implementations may be shared by several rounds of the protocol, so
+ * they must be safe to call from many threads.
+ */
+public interface Timeouts {
+
+    // How long to wait for a message from the given player in the given phase.
+    long timeout(VerificationKey from, Phase phase);
+
+    // A message from the given player arrived after we had waited for the given time.
+    void arrived(VerificationKey from, Phase phase, long nanos);
+
+    // We gave up waiting for a message from the given player.
+    void expired(VerificationKey from, Phase phase);
+
+    // Waits the same amount of time for everyone.
+    class Fixed implements Timeouts {
+        private final long timeout;
+
+        // The timeout is in milliseconds and is the time allowed for a whole phase.
+        public Fixed(long timeout) {
+            if (timeout <= 0) throw new IllegalArgumentException();
+
+            this.timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+        }
+
+        @Override
+        public long timeout(VerificationKey from, Phase phase) {
+            return timeout;
+        }
+
+        @Override
+        public void arrived(VerificationKey from, Phase phase, long nanos) {
+
+        }
+
+        @Override
+        public void expired(VerificationKey from, Phase phase) {
+
+        }
+    }
+
+    // Learns how long each player takes in each phase, in the same way that TCP estimates
+    // the round trip time of a connection. We keep a moving average of the delay and of its
+    // deviation, and wait for the average plus four deviations. Each time a player fails to
+    // answer in time, we wait twice as long for them in that phase the next time, so that a
+    // slow player is not excluded from every round. Before anything has been learned about
+    // a player, we wait for the initial timeout.
+    class Adaptive implements Timeouts {
+
+        // The smallest and largest timeouts used by default, in milliseconds.
+        public static final long MIN = 200;
+        public static final long MAX = 60000;
+
+        private final long initial;
+        private final long min;
+        private final long max;
+
+        private static class Estimate {
+            long average = -1; // Negative until we have a measurement.
+            long deviation = 0;
+            int backoff = 0; // How many times in a row the player has failed to answer.
+        }
+
+        private final Map<VerificationKey, Map<Phase, Estimate>> estimates = new HashMap<>();
+
+        // All arguments are in milliseconds.
+        public Adaptive(long initial, long min, long max) {
+            if (min <= 0 || initial < min || max < initial) throw new IllegalArgumentException();
+
+            this.initial = TimeUnit.MILLISECONDS.toNanos(initial);
+            this.min = TimeUnit.MILLISECONDS.toNanos(min);
+            this.max = TimeUnit.MILLISECONDS.toNanos(max);
+        }
+
+        public Adaptive(long initial) {
+            this(initial, Math.min(MIN, initial), Math.max(MAX, initial));
+        }
+
+        private Estimate estimate(VerificationKey from, Phase phase) {
+            Map<Phase, Estimate> byPhase = estimates.get(from);
+            if (byPhase == null) {
+                byPhase = new EnumMap<>(Phase.class);
+                estimates.put(from, byPhase);
+            }
+
+            Estimate e = byPhase.get(phase);
+            if (e == null) {
+                e = new Estimate();
+                byPhase.put(phase, e);
+            }
+
+            return e;
+        }
+
+        @Override
+        public synchronized long timeout(VerificationKey from, Phase phase) {
+            Estimate e = estimate(from, phase);
+
+            long timeout = e.average < 0 ? initial : e.average + 4 * e.deviation;
+            if (timeout < min) timeout = min;
+
+            for (int i = 0; i < e.backoff && timeout < max; i++) {
+                timeout <<= 1;
+            }
+
+            return timeout > max ? max : timeout;
+        }
+
+        @Override
+        public synchronized void arrived(VerificationKey from, Phase phase, long nanos) {
+            if (nanos < 0) nanos = 0;
+
+            Estimate e = estimate(from, phase);
+
+            if (e.average < 0) {
+                e.average = nanos;
+                e.deviation = nanos / 2;
+            } else {
+                e.deviation += (Math.abs(e.average - nanos) - e.deviation) / 4;
+                e.average += (nanos - e.average) / 8;
+            }
+
+            e.backoff = 0;
+        }
+
+        @Override
+        public synchronized void expired(VerificationKey from, Phase phase) {
+            Estimate e = estimate(from, phase);
+
+            // There is no point in backing off further once we have reached the maximum.
+            if (e.backoff < 62) e.backoff++;
+        }
+    }
+}
@@ -17,6 +17,7 @@ import com.shuffle.protocol.blame.Blame;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.Collection;
 
 /**
  * Created by Daniel Krawisz on 12/19/15.
@@ -42,10 +43,13 @@ public interface Message extends Serializable {
 
     Message rest() throws FormatException;
 
-    Message hashed();
-
     // Send across the CoinShuffle network.
     Packet send(Phase phase, VerificationKey to) throws // May be thrown if this protocol runs in an interruptable thread.
             InterruptedException,
             IOException; // May be thrown if the internet connection fails.
+
+    // Send the same packet to all of the given players. It is only signed once.
+    Packet broadcast(Phase phase, Collection<VerificationKey> to) throws
+            InterruptedException,
+            IOException;
 }
@@ -12,6 +12,7 @@ import com.shuffle.protocol.InvalidImplementationError;
 import com.shuffle.protocol.message.Message;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by Daniel Krawisz on 12/6/15.
@@ -23,4 +24,8 @@ public interface MessageFactory {
     // ALREADY BEEN CHECKED. Throw away all messages that do not have a valid signature.
     Packet receive() throws InterruptedException, // May be thrown if this protocol runs in an interruptable thread.
             IOException; // May be thrown if the internet connection fails.
+
+    // Receive the next valid packet, waiting no longer than the given time. Returns null if
+    // nothing came in time.
+    Packet receive(long timeout, TimeUnit unit) throws InterruptedException, IOException;
 }
@@ -30,6 +30,7 @@ import java.io.IOException;
 import java.util.Map;
 import java.util.SortedSet;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
@@ -63,10 +64,11 @@ public class Adversary {
         this.addrNew = addrNew;
     }
 
-    // Run the protocol in a separate thread and get a future to the final state.
+    // Run the protocol with the executor and get a future to the final state.
     private static Future<Summable.SummableElement<Map<SigningKey,
             Either<Transaction, Matrix>>>> runProtocolFuture(
 
+            final Executor exec,
             final CoinShuffle shuffle,
             final long amount, // The amount to be shuffled per player.
             final SigningKey sk, // The signing key of the current player.
@@ -84,7 +86,7 @@ public class Adversary {
             throw new NullPointerException();
         }
 
-        new Thread(new Runnable() {
+        exec.execute(new Runnable() {
             @Override
             public void run() {
 
@@ -113,7 +115,7 @@ public class Adversary {
                 }
 
             }
-        }).start();
+        });
 
         return new Future<Summable.SummableElement<Map<SigningKey, Either<Transaction, Matrix>>>>(
         ) {
@@ -184,11 +186,16 @@ public class Adversary {
         };
     }
 
-    // Return a future that can be composed with others.
+    // Return a future that can be composed with others. The protocol spends most of its time
+    // waiting for other players, so the executor must not limit how many players can run at
+    // once to fewer than are in the simulation.
     public Future<Summable.SummableElement<Map<SigningKey, Either<Transaction, Matrix>>>> turnOn(
+            Executor exec
     ) throws InvalidImplementationError {
 
-        return runProtocolFuture(shuffle, amount, sk, players, addrNew, null);
+        if (exec == null) throw new NullPointerException();
+
+        return runProtocolFuture(exec, shuffle, amount, sk, players, addrNew, null);
     }
 
     public SigningKey identity() {
@@ -14,9 +14,11 @@ import com.shuffle.bitcoin.Crypto;
 import com.shuffle.bitcoin.SigningKey;
 import com.shuffle.bitcoin.VerificationKey;
 import com.shuffle.chan.packet.Packet;
+import com.shuffle.monitor.Metrics;
 import com.shuffle.player.Messages;
 import com.shuffle.chan.packet.SessionIdentifier;
 import com.shuffle.player.P;
+import com.shuffle.protocol.Clock;
 import com.shuffle.protocol.CoinShuffle;
 import com.shuffle.protocol.MaliciousMachine;
 import com.shuffle.protocol.message.MessageFactory;
@@ -24,6 +26,7 @@ import com.shuffle.protocol.blame.Evidence;
 import com.shuffle.protocol.blame.Matrix;
 import com.shuffle.protocol.blame.Reason;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -231,6 +234,15 @@ public class InitialState {
                 MessageFactory messages
         ) throws CoinNetworkException {
 
+            return adversary(messages, Clock.system);
+        }
+
+        // The clock is the one that the network the player is connected to keeps time by.
+        public Adversary adversary(
+                MessageFactory messages,
+                Clock clock
+        ) throws CoinNetworkException {
+
             if (sk == null) {
                 return null;
             }
@@ -238,23 +250,29 @@ public class InitialState {
             Address address = sk.VerificationKey().address();
             MockCoin coin = coin();
             CoinShuffle shuffle;
+            CoinShuffle.Settings settings = CoinShuffle.Settings.defaults.clock(clock);
+            if (timeout > 0) settings = settings.timeout(timeout);
 
             if (equivocateAnnouncement != null && equivocateAnnouncement.length > 0) {
                 shuffle = MaliciousMachine.announcementEquivocator(
-                        messages, crypto, coin, fromSet(keys, equivocateAnnouncement)
+                        messages, crypto, coin, fromSet(keys, equivocateAnnouncement),
+                        settings
                 );
             } else if (equivocateOutputVector != null && equivocateOutputVector.length > 0) {
                 shuffle = MaliciousMachine.broadcastEquivocator(
-                        messages, crypto, coin, fromSet(keys, equivocateOutputVector)
+                        messages, crypto, coin, fromSet(keys, equivocateOutputVector),
+                        settings
                 );
             } else if (replace && drop != 0) {
-                shuffle = MaliciousMachine.addressReplacer(messages, crypto, coin, drop);
+                shuffle = MaliciousMachine.addressReplacer(
+                        messages, crypto, coin, drop, settings);
             } else if (duplicate != 0 && drop != 0) {
                 shuffle = MaliciousMachine.addressDropperDuplicator(
-                        messages, crypto, coin, drop, duplicate
+                        messages, crypto, coin, drop, duplicate, settings
                 );
             } else if (drop != 0) {
-                shuffle = MaliciousMachine.addressDropper(messages, crypto, coin, drop);
+                shuffle = MaliciousMachine.addressDropper(
+                        messages, crypto, coin, drop, settings);
             } else if (doubleSpend > 0) {
                 // is he going to double spend? If so, make a new transaction for him.
                 shuffle = MaliciousMachine.doubleSpender(messages, crypto, coin,
@@ -262,12 +280,13 @@ public class InitialState {
                                 address,
                                 crypto.makeSigningKey().VerificationKey().address(),
                                 doubleSpend
-                        )
+                        ),
+                        settings
                 );
             } else if (mutate) {
-                shuffle = new CoinShuffle(messages, crypto, coin.mutated());
+                shuffle = new CoinShuffle(messages, crypto, coin.mutated(), settings);
             } else {
-                shuffle = new CoinShuffle(messages, crypto, coin);
+                shuffle = new CoinShuffle(messages, crypto, coin, settings);
             }
 
             return new Adversary(amount, sk, keys, addr, shuffle);
@@ -371,6 +390,14 @@ public class InitialState {
     }
 
     public Map<SigningKey, Adversary> getPlayers(Initializer<Packet<VerificationKey, P>> initializer) {
+        return getPlayers(initializer, Metrics.none);
+    }
+
+    // Every player reports what they do to the same metrics.
+    public Map<SigningKey, Adversary> getPlayers(
+            Initializer<Packet<VerificationKey, P>> initializer,
+            Metrics metrics) {
+
         Map<SigningKey, Adversary> p = new HashMap<>();
         Map<SigningKey, Initializer.Connections<Packet<VerificationKey, P>>> connections = new HashMap<>();
 
@@ -388,9 +415,12 @@ public class InitialState {
 
             try {
                 p.put(player.sk,
-                        player.adversary(new Messages(session, player.sk, c.send, c.receive)));
+                        player.adversary(new Messages(session, player.sk, c.send, c.receive,
+                                Messages.Settings.defaults.metrics(metrics)),
+                                initializer.clock));
 
-            } catch (CoinNetworkException e) {
+            } catch (CoinNetworkException
+                    | IOException e) { // Nothing is written to disk here.
                 return null; // Should not really happen.
             }
         }
@@ -416,6 +446,10 @@ public class InitialState {
 
     private Map<Integer, MockCoin> networkPoints = null;
 
+    // How long every player waits for each phase, in milliseconds, or zero for the default,
+    // which depends on the number of players.
+    private long timeout = 0;
+
     public InitialState(SessionIdentifier session, long amount, Crypto crypto) {
 
         this.session = session;
@@ -501,6 +535,14 @@ public class InitialState {
         return this;
     }
 
+    // Large simulations may need longer than the default to get through a phase.
+    public InitialState timeout(long timeout) {
+        if (timeout <= 0) throw new IllegalArgumentException();
+
+        this.timeout = timeout;
+        return this;
+    }
+
     public Map<SigningKey, Matrix> expected() {
         Map<SigningKey, Matrix> blame = new HashMap<>();
 
@@ -8,6 +8,7 @@ import com.shuffle.chan.Receive;
 import com.shuffle.chan.Send;
 import com.shuffle.chan.packet.Signed;
 import com.shuffle.chan.packet.SessionIdentifier;
+import com.shuffle.protocol.Clock;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -28,12 +29,27 @@ class Initializer<X> {
     public final SessionIdentifier session;
     public final int capacity;
 
+    // If not null, the players are connected over this network instead of directly.
+    private final VirtualNetwork<VerificationKey, Signed<X>> network;
+
+    // The clock that the players' timeouts should be measured by.
+    public final Clock clock;
+
     Initializer(SessionIdentifier session, int capacity) {
+        this(session, capacity, null);
+    }
+
+    Initializer(
+            SessionIdentifier session,
+            int capacity,
+            VirtualNetwork<VerificationKey, Signed<X>> network) {
 
         if (session == null || capacity == 0) throw new IllegalArgumentException();
 
         this.session = session;
         this.capacity = capacity;
+        this.network = network;
+        this.clock = network == null ? Clock.system : network;
     }
 
 
@@ -66,7 +82,9 @@ class Initializer<X> {
         networks.put(sk, inputs);
 
         // Ceate a new mailbox.
-        Inbox<VerificationKey, Signed<X>> inbox = new BasicInbox<>(capacity);
+        Inbox<VerificationKey, Signed<X>> inbox
+                = network == null ? new BasicInbox<VerificationKey, Signed<X>>(capacity)
+                        : network.inbox(vk);
 
         // Create input channels for this new mailbox that lead to all other mailboxes
         // and create input channels for all the other mailboxes for this new one.
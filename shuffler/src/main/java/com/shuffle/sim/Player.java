@@ -19,15 +19,22 @@ import com.shuffle.chan.Chan;
 import com.shuffle.chan.Inbox;
 import com.shuffle.chan.Receive;
 import com.shuffle.chan.Send;
+import com.shuffle.chan.packet.CachingMarshaller;
 import com.shuffle.chan.packet.JavaMarshaller;
+import com.shuffle.chan.packet.Marshaller;
 import com.shuffle.chan.packet.Packet;
 import com.shuffle.chan.packet.Signed;
+import com.shuffle.chan.packet.SignedMarshaller;
 import com.shuffle.mock.InsecureRandom;
 import com.shuffle.mock.MockCrypto;
+import com.shuffle.mock.MockMarshallers;
 import com.shuffle.mock.MockSessionIdentifier;
+import com.shuffle.monitor.Metrics;
+import com.shuffle.monitor.MetricsRegistry;
 import com.shuffle.p2p.Collector;
 import com.shuffle.p2p.MappedChannel;
 import com.shuffle.p2p.MarshallChannel;
+import com.shuffle.player.BinaryMarshaller;
 import com.shuffle.player.Messages;
 import com.shuffle.mock.MockSigningKey;
 import com.shuffle.p2p.Bytestring;
@@ -35,6 +42,7 @@ import com.shuffle.p2p.Channel;
 import com.shuffle.p2p.TcpChannel;
 import com.shuffle.p2p.Connect;
 import com.shuffle.chan.packet.SessionIdentifier;
+import com.shuffle.chan.packet.SessionMultiplexer;
 import com.shuffle.player.P;
 import com.shuffle.protocol.CoinShuffle;
 import com.shuffle.protocol.FormatException;
@@ -43,6 +51,7 @@ import com.shuffle.protocol.message.Phase;
 import com.shuffle.protocol.WaitingException;
 import com.shuffle.protocol.blame.Matrix;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.net.InetAddress;
@@ -58,6 +67,7 @@ import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
@@ -73,10 +83,18 @@ class Player<Address> implements Runnable {
         SessionIdentifier session;
         public final int port;
         public final int threads;
+        public final String format;
+        public final int metrics; // Seconds between reports of the metrics, or zero for none.
+        public final int timeout; // Milliseconds to wait in each phase, or zero for the default.
+        public final int history; // Messages kept in memory, or zero for all of them.
         public final InitialState.PlayerInitialState init;
         public final Map<VerificationKey, Address> identities;
 
         public Parameters(SigningKey me, SessionIdentifier session, int port, int threads,
+                          String format,
+                          int metrics,
+                          int timeout,
+                          int history,
                           InitialState.PlayerInitialState init,
                           Map<VerificationKey, Address> identities) {
 
@@ -84,6 +102,10 @@ class Player<Address> implements Runnable {
             this.session = session;
             this.port = port;
             this.threads = threads;
+            this.format = format;
+            this.metrics = metrics;
+            this.timeout = timeout;
+            this.history = history;
             this.init = init;
             this.identities = identities;
 
@@ -93,13 +115,39 @@ class Player<Address> implements Runnable {
     private final Send<Phase> msg ;
     private final Parameters<Address> param;
     private final Channel<VerificationKey, Signed<Packet<VerificationKey, P>>> channel;
+    private final Marshaller<Packet<VerificationKey, P>> marshaller;
+    private final Metrics metrics;
+    private final CoinShuffle.Settings shuffleSettings;
 
-    private Player(Parameters<Address> param, Send<Phase> msg, Channel<Address, Bytestring> channel) {
+    private Player(Parameters<Address> param, Send<Phase> msg,
+                   Channel<Address, Bytestring> channel, Metrics metrics) {
         this.param = param;
         this.msg = msg;
+        this.metrics = metrics;
+
+        Marshaller<Signed<Packet<VerificationKey, P>>> signed;
+        if (param.format.equals("binary")) {
+            marshaller = new BinaryMarshaller(
+                    MockMarshallers.session,
+                    MockMarshallers.verificationKey,
+                    MockMarshallers.address,
+                    MockMarshallers.encryptionKey,
+                    MockMarshallers.decryptionKey,
+                    new JavaMarshaller<Transaction>());
+            signed = new SignedMarshaller<>(marshaller);
+
+            // The equivocation check hashes keys and addresses as they are sent.
+            shuffleSettings = CoinShuffle.Settings.defaults.metrics(metrics)
+                    .encoding(MockMarshallers.encryptionKey, MockMarshallers.address);
+        } else {
+            marshaller = new JavaMarshaller<>();
+            signed = new JavaMarshaller<>();
+            shuffleSettings = CoinShuffle.Settings.defaults.metrics(metrics);
+        }
 
+        // A broadcast is the same packet for everyone, so it is only marshalled once.
         this.channel = new MarshallChannel<>(new MappedChannel<>(channel, param.identities, param.me.VerificationKey()),
-                new JavaMarshaller<Signed<Packet<VerificationKey, P>>>());
+                new CachingMarshaller<>(signed));
     }
 
     static String readFile(String path, Charset encoding)
@@ -127,6 +175,10 @@ class Player<Address> implements Runnable {
         defaults.put("-players", null);
         defaults.put("-identity", null);
         defaults.put("-amount", "20");
+        defaults.put("-format", "java"); // Or "binary".
+        defaults.put("-metrics", "0"); // Seconds between reports.
+        defaults.put("-timeout", "0"); // Milliseconds to wait in each phase; zero for the default.
+        defaults.put("-history", "0"); // Messages kept in memory; the rest go to disk.
 
         // Expected patterns for arguments.
         Pattern dec = Pattern.compile("[0-9]+");
@@ -140,6 +192,10 @@ class Player<Address> implements Runnable {
         expected.put("-players", dec);
         expected.put("-identity", dec);
         expected.put("-amount", dec);
+        expected.put("-format", str);
+        expected.put("-metrics", dec);
+        expected.put("-timeout", dec);
+        expected.put("-history", dec);
 
         int p = 0;
         while (2 * p < args.length) {
@@ -154,7 +210,7 @@ class Player<Address> implements Runnable {
                 throw new IllegalArgumentException("Duplicate option " + optName);
             }
 
-            Pattern pattern = expected.get(optVal);
+            Pattern pattern = expected.get(optName);
             if (!pattern.matcher(optVal).matches()) {
                 throw new IllegalArgumentException("Invalid value for " + optName + "; expected " + pattern);
             }
@@ -210,6 +266,10 @@ class Player<Address> implements Runnable {
                 new MockSessionIdentifier(options.get("-id")),
                 Integer.parseInt(options.get("-minport")) + i,
                 Integer.parseInt(options.get("-threads")),
+                options.get("-format"),
+                Integer.parseInt(options.get("-metrics")),
+                Integer.parseInt(options.get("-timeout")),
+                Integer.parseInt(options.get("-history")),
                 pinit, identities);
     }
 
@@ -227,15 +287,31 @@ class Player<Address> implements Runnable {
 
         final Chan<Phase> msg = new BasicChan<>();
 
-        // The tcp channel over which we will be connecting.
-        Channel<InetSocketAddress, Bytestring> tcp =
-                new TcpChannel(InetSocketAddress.createUnresolved("localhost", param.port), exec);
-        Player<InetSocketAddress> player = new Player<>(param, msg, tcp);
+        Metrics metrics = Metrics.none;
+        MetricsRegistry registry = null;
+        ScheduledExecutorService scheduler = null;
+        if (param.metrics > 0) {
+            registry = new MetricsRegistry();
+            scheduler = Executors.newSingleThreadScheduledExecutor();
+            registry.dump(scheduler, param.metrics, TimeUnit.SECONDS);
+            metrics = registry;
+        }
+
+        // The tcp channel over which we will be connecting. Traffic is reported by Messages
+        // rather than by the channel, so that every peer is known by their VerificationKey.
+        Channel<InetSocketAddress, Bytestring> tcp = new TcpChannel(TcpChannel.defaultHeader(),
+                InetSocketAddress.createUnresolved("localhost", param.port), exec);
+        Player<InetSocketAddress> player = new Player<>(param, msg, tcp, metrics);
         Thread thread = new Thread(player);
 
         thread.start();
 
         report(msg, System.out);
+
+        if (registry != null) {
+            scheduler.shutdown();
+            System.out.println(registry);
+        }
     }
 
     private static void report(Receive<Phase> msg, PrintStream stream) {
@@ -274,11 +350,38 @@ class Player<Address> implements Runnable {
             e.printStackTrace();
         }
 
-        Messages messages = new Messages(param.session, param.me, m.connected, m.inbox);
+        // The connections could be shared with other sessions, so packets are sorted
+        // by session before they go to the protocol.
+        SessionMultiplexer<VerificationKey, P> sessions
+                = new SessionMultiplexer<>(m.inbox, m.connected, 2 * (1 + param.identities.size()));
+        Thread sorter = new Thread(sessions);
+        sorter.setDaemon(true);
+        sorter.start();
+
+        SessionMultiplexer<VerificationKey, P>.Mix mix = sessions.open(param.session);
+
+        Messages.Settings settings = Messages.Settings.defaults
+                .marshaller(marshaller).metrics(metrics);
+
+        // Older messages are kept on disk if there are too many to keep in memory.
+        if (param.history > 0) {
+            settings = settings.history(
+                    param.history, new File(System.getProperty("java.io.tmpdir")));
+        }
+
+        Messages messages;
+        try {
+            messages = new Messages(param.session, param.me, mix.connected, mix.inbox, settings);
+        } catch (IOException e) {
+            e.printStackTrace();
+            mix.close();
+            return null;
+        }
 
         try {
             return new CoinShuffle(
-                    messages, param.init.crypto(), param.init.coin()
+                    messages, param.init.crypto(), param.init.coin(),
+                    shuffleSettings.timeout(param.timeout)
             ).runProtocol(
                     param.init.getAmount(),
                     param.init.sk,
@@ -298,8 +401,12 @@ class Player<Address> implements Runnable {
             matrix.printStackTrace();
             return null;
         } finally {
-            if (messages != null) {
-                messages.close();
+            messages.close();
+            mix.close();
+
+            // This is the only session, so the connections can be closed too.
+            for (Send<Signed<Packet<VerificationKey, P>>> send : m.connected.values()) {
+                send.close();
             }
         }
     }
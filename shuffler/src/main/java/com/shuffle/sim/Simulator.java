@@ -11,12 +11,16 @@ package com.shuffle.sim;
 import com.shuffle.bitcoin.SigningKey;
 import com.shuffle.bitcoin.Transaction;
 import com.shuffle.bitcoin.VerificationKey;
+import com.shuffle.chan.packet.CachingMarshaller;
+import com.shuffle.chan.packet.JavaMarshaller;
 import com.shuffle.chan.packet.Packet;
+import com.shuffle.chan.packet.Signed;
 import com.shuffle.monad.Either;
 import com.shuffle.monad.NaturalSummableFuture;
 import com.shuffle.monad.SummableFuture;
 import com.shuffle.monad.SummableFutureZero;
 import com.shuffle.monad.SummableMaps;
+import com.shuffle.monitor.Metrics;
 import com.shuffle.player.P;
 import com.shuffle.protocol.blame.Matrix;
 
@@ -25,32 +29,95 @@ import org.apache.logging.log4j.LogManager;
 
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * A simulator for running integration tests on the protocol.
  *
+ * Every simulation has its own network, so any number of them can run at the same time.
+ *
  * Created by Daniel Krawisz on 12/6/15.
  */
 public final class Simulator {
     private static final Logger log = LogManager.getLogger(Simulator.class);
 
+    // Runs the players of every simulation unless another executor is given. A player spends
+    // most of its time waiting for the others, so each needs a thread of its own. The threads
+    // are reused from one simulation to the next.
+    private static final ExecutorService players = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                private final ThreadFactory factory = Executors.defaultThreadFactory();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = factory.newThread(r);
+                    t.setDaemon(true); // Don't keep the program running.
+                    return t;
+                }
+            });
+
     // Cannot be instantiated. Everything here is static!
     private Simulator() {
     }
 
     public static Map<SigningKey, Either<Transaction, Matrix>> run(InitialState init) {
+        return run(init, players, Metrics.none);
+    }
+
+    // The executor must be able to run all the players at once.
+    public static Map<SigningKey, Either<Transaction, Matrix>> run(
+            InitialState init,
+            Executor exec,
+            Metrics metrics) {
+
+        if (exec == null || metrics == null) throw new NullPointerException();
 
         final Initializer<Packet<VerificationKey, P>> initializer = new Initializer<>(init.session, 2 * (1 + init.size() ));
-        final Map<SigningKey, Adversary> machines = init.getPlayers(initializer);
+        final Map<SigningKey, Adversary> machines = init.getPlayers(initializer, metrics);
+
+        Map<SigningKey, Either<Transaction, Matrix>> results
+                = runSimulation(machines, exec, null);
+
+        initializer.networks.clear(); // Avoid memory leak.
+        return results;
+    }
+
+    // Run the players over a network that keeps time by its own clock. Afterwards, the
+    // network's clock tells how long the round would have taken.
+    public static Map<SigningKey, Either<Transaction, Matrix>> run(
+            InitialState init,
+            VirtualNetwork<VerificationKey, Signed<Packet<VerificationKey, P>>> network,
+            Metrics metrics) {
+
+        if (network == null || metrics == null) throw new NullPointerException();
+
+        final Initializer<Packet<VerificationKey, P>> initializer
+                = new Initializer<>(init.session, 2 * (1 + init.size()), network);
+        final Map<SigningKey, Adversary> machines = init.getPlayers(initializer, metrics);
 
-        Map<SigningKey, Either<Transaction, Matrix>> results = runSimulation(machines);
+        Map<SigningKey, Either<Transaction, Matrix>> results
+                = runSimulation(machines, network.executor(players), network);
 
         initializer.networks.clear(); // Avoid memory leak.
         return results;
     }
 
-    private static synchronized Map<SigningKey, Either<Transaction, Matrix>> runSimulation(
-            Map<SigningKey, Adversary> machines)  {
+    // A network for run() above. Messages are marshalled to find how big they are, and a
+    // broadcast is only marshalled once.
+    public static VirtualNetwork<VerificationKey, Signed<Packet<VerificationKey, P>>> network(
+            VirtualNetwork.Topology<VerificationKey> topology, long seed) {
+
+        return new VirtualNetwork<>(topology, seed, new CachingMarshaller<>(
+                new JavaMarshaller<Signed<Packet<VerificationKey, P>>>()));
+    }
+
+    private static Map<SigningKey, Either<Transaction, Matrix>> runSimulation(
+            Map<SigningKey, Adversary> machines,
+            Executor exec,
+            VirtualNetwork<?, ?> network)  {
 
         // Create a future for the set of entries.
         SummableFuture<Map<SigningKey, Either<Transaction, Matrix>>> wait
@@ -60,9 +127,11 @@ public final class Simulator {
 
         // Start the simulations.
         for (Adversary in : machines.values()) {
-            wait = wait.plus(new NaturalSummableFuture<>(in.turnOn()));
+            wait = wait.plus(new NaturalSummableFuture<>(in.turnOn(exec)));
         }
 
+        if (network != null) network.start();
+
         try {
             return wait.get();
         } catch (InterruptedException | ExecutionException e) {
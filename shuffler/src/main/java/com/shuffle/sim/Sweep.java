@@ -0,0 +1,215 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.sim;
+
+import com.shuffle.bitcoin.Crypto;
+import com.shuffle.bitcoin.SigningKey;
+import com.shuffle.bitcoin.Transaction;
+import com.shuffle.bitcoin.VerificationKey;
+import com.shuffle.chan.packet.Packet;
+import com.shuffle.chan.packet.Signed;
+import com.shuffle.mock.InsecureRandom;
+import com.shuffle.mock.MockCrypto;
+import com.shuffle.mock.MockSessionIdentifier;
+import com.shuffle.monad.Either;
+import com.shuffle.monitor.MetricsRegistry;
+import com.shuffle.player.P;
+import com.shuffle.protocol.blame.Matrix;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates rounds of the protocol with more and more players and reports how long each took
+ * and how much was sent. This tells us how large a round can be in practice.
+ *
+ * Every size is run once with all players honest and once with a player who signs the wrong
+ * transaction, so that the round ends in blame after everything else has been done.
+ *
+ * Usage: Sweep [-min 3] [-max 500] [-factor 2] [-amount 17] [-timeout 0] [-latency 0]
+ *
+ * The number of players starts at min and is multiplied by factor until it reaches max. The
+ * timeout is how long each player waits for a phase, in milliseconds. If it is zero, the
+ * players wait as long as they would by default, which grows with the number of players.
+ *
+ * If the latency is given in milliseconds, the players are connected over a VirtualNetwork
+ * whose links take that long, give or take half as much again, and the time that the round
+ * would have taken on such a network is reported too.
+ */
+public final class Sweep {
+
+    private Sweep() {
+    }
+
+    // The outcome of simulating one round.
+    public static final class Result {
+        public final String scenario;
+        public final int players;
+        public final long millis;
+        public final long messages;
+        public final long bytes;
+
+        // How long the round took by the clock of the simulated network, in milliseconds,
+        // or -1 if the players were connected directly.
+        public final long simulated;
+
+        // Whether every player finished the round.
+        public final boolean complete;
+
+        Result(String scenario, int players, long millis, long messages, long bytes,
+               long simulated, boolean complete) {
+            this.scenario = scenario;
+            this.players = players;
+            this.millis = millis;
+            this.messages = messages;
+            this.bytes = bytes;
+            this.simulated = simulated;
+            this.complete = complete;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-10s %6d %10d %12d %14d %12s %s",
+                    scenario, players, millis, messages, bytes,
+                    simulated < 0 ? "" : Long.toString(simulated), complete ? "" : "incomplete");
+        }
+    }
+
+    public static final String header = String.format("%-10s %6s %10s %12s %14s %12s",
+            "scenario", "N", "ms", "messages", "bytes", "simulated ms");
+
+    public static Result run(String scenario, InitialState init, Executor exec) {
+        MetricsRegistry metrics = new MetricsRegistry();
+
+        long start = System.nanoTime();
+        Map<SigningKey, Either<Transaction, Matrix>> results = Simulator.run(init, exec, metrics);
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        MetricsRegistry.Traffic total = metrics.total();
+
+        return new Result(scenario, init.size(), millis, total.sent.count(), total.sent.sum(),
+                -1, results != null && results.size() == init.size());
+    }
+
+    public static Result run(
+            String scenario,
+            InitialState init,
+            VirtualNetwork<VerificationKey, Signed<Packet<VerificationKey, P>>> network) {
+
+        MetricsRegistry metrics = new MetricsRegistry();
+
+        long start = System.nanoTime();
+        Map<SigningKey, Either<Transaction, Matrix>> results
+                = Simulator.run(init, network, metrics);
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        MetricsRegistry.Traffic total = metrics.total();
+
+        return new Result(scenario, init.size(), millis, total.sent.count(), total.sent.sum(),
+                TimeUnit.NANOSECONDS.toMillis(network.nanoTime()),
+                results != null && results.size() == init.size());
+    }
+
+    private static Result run(
+            String scenario, InitialState init, Executor exec, long latency, long seed) {
+
+        if (latency == 0) return run(scenario, init, exec);
+
+        long nanos = TimeUnit.MILLISECONDS.toNanos(latency);
+        return run(scenario, init, Simulator.network(VirtualNetwork.<VerificationKey>uniform(
+                new VirtualNetwork.Link(nanos, nanos / 2, 0, 0)), seed));
+    }
+
+    private static InitialState timeout(InitialState init, long timeout) {
+        return timeout == 0 ? init : init.timeout(timeout);
+    }
+
+    public static void sweep(
+            int min, int max, double factor, long amount, long timeout, PrintStream out) {
+
+        sweep(min, max, factor, amount, timeout, 0, out);
+    }
+
+    // The latency is in milliseconds. If it is zero, the players are connected directly.
+    public static void sweep(
+            int min, int max, double factor, long amount, long timeout, long latency,
+            PrintStream out) {
+
+        if (min < 2 || max < min || factor <= 1 || timeout < 0 || latency < 0) {
+            throw new IllegalArgumentException();
+        }
+
+        ExecutorService exec = Executors.newCachedThreadPool();
+        out.println(header);
+
+        try {
+            int n = min;
+            while (true) {
+                Crypto crypto = new MockCrypto(new InsecureRandom(n));
+                out.println(run("successful", timeout(InitialState.successful(
+                        new MockSessionIdentifier("sweep successful " + n), amount, crypto, n),
+                        timeout), exec, latency, n));
+
+                crypto = new MockCrypto(new InsecureRandom(n));
+                out.println(run("malicious", timeout(InitialState.invalidSignature(
+                        new MockSessionIdentifier("sweep malicious " + n), amount, crypto, n,
+                        new int[]{n}), timeout), exec, latency, n));
+
+                if (n == max) break;
+
+                n = (int) Math.min(max, Math.max(n + 1, Math.round(n * factor)));
+            }
+        } finally {
+            exec.shutdownNow();
+        }
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        options.put("-min", "3");
+        options.put("-max", "500");
+        options.put("-factor", "2");
+        options.put("-amount", "17");
+        options.put("-timeout", "0");
+        options.put("-latency", "0");
+
+        if (args.length % 2 != 0) {
+            System.out.println(
+                    "Usage: Sweep [-min 3] [-max 500] [-factor 2] [-amount 17] [-timeout 0] "
+                            + "[-latency 0]");
+            return;
+        }
+
+        for (int i = 0; i < args.length; i += 2) {
+            if (!options.containsKey(args[i])) {
+                System.out.println("Invalid option " + args[i]);
+                return;
+            }
+
+            options.put(args[i], args[i + 1]);
+        }
+
+        try {
+            sweep(Integer.parseInt(options.get("-min")),
+                    Integer.parseInt(options.get("-max")),
+                    Double.parseDouble(options.get("-factor")),
+                    Long.parseLong(options.get("-amount")),
+                    Long.parseLong(options.get("-timeout")),
+                    Long.parseLong(options.get("-latency")),
+                    System.out);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid arguments.");
+        }
+    }
+}
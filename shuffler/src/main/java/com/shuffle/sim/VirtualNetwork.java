@@ -0,0 +1,495 @@
+/**
+ *
+ * Copyright © 2016 Mycelium.
+ * Use of this source code is governed by an ISC
+ * license that can be found in the LICENSE file.
+ *
+ */
+
+package com.shuffle.sim;
+
+import com.shuffle.chan.Inbox;
+import com.shuffle.chan.Send;
+import com.shuffle.chan.packet.Marshaller;
+import com.shuffle.protocol.Clock;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A network for simulations which keeps time by a clock of its own.
+ *
+ * Messages take as long to arrive as the link they are sent over says, and a player who waits
+ * for a message waits by the network's clock rather than the system's. The clock only moves
+ * when none of the players has anything left to do, and then it jumps straight to the next
+ * message to arrive or the next wait to run out. A round with slow links and long timeouts
+ * therefore takes no longer to simulate than the players take to do their own work.
+ *
+ * Only one player runs at a time, and they take turns in an order that depends only on what
+ * happens in the simulation. Given the same players and the same seed, a simulation always
+ * goes the same way, so a problem that depends on timing can be reproduced exactly.
+ *
+ * The players must be run with the executor returned by executor(), and must not wait for
+ * anything other than their inboxes, or else the simulation will stop. Once they have all
+ * been given to the executor, start() sets the clock going.
+ */
+public class VirtualNetwork<Address, X extends Serializable> implements Clock {
+
+    // What a link from one player to another is like.
+    public static final class Link {
+        // Each message takes the latency plus a random time less than the jitter to arrive,
+        // in nanoseconds. Messages on the same link always arrive in the order they were sent.
+        public final long latency;
+        public final long jitter;
+
+        // In bytes per second, or zero if the size of a message makes no difference. A link
+        // carries one message at a time, so messages sent together queue up behind one another.
+        public final long bandwidth;
+
+        // The chance that a message never arrives.
+        public final double loss;
+
+        public Link(long latency, long jitter, long bandwidth, double loss) {
+            if (latency < 0 || jitter < 0 || bandwidth < 0 || loss < 0 || loss > 1) {
+                throw new IllegalArgumentException();
+            }
+
+            this.latency = latency;
+            this.jitter = jitter;
+            this.bandwidth = bandwidth;
+            this.loss = loss;
+        }
+
+        public static final Link instant = new Link(0, 0, 0, 0);
+    }
+
+    // Decides what the link from one player to another is like.
+    public interface Topology<Address> {
+        Link link(Address from, Address to);
+    }
+
+    // Every link is the same.
+    public static <Address> Topology<Address> uniform(final Link link) {
+        if (link == null) throw new NullPointerException();
+
+        return new Topology<Address>() {
+            @Override
+            public Link link(Address from, Address to) {
+                return link;
+            }
+        };
+    }
+
+    private final Topology<Address> topology;
+    private final long seed;
+
+    // Used to find the size of a message. Can be null if no link has limited bandwidth.
+    private final Marshaller<X> marshaller;
+
+    // Everything below is guarded by the lock.
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private volatile long now = 0;
+
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private final Map<Address, Node> nodes = new HashMap<>();
+
+    // The player whose turn it is, if anyone's, and those who are waiting for their turn.
+    private Participant running = null;
+    private final Deque<Participant> ready = new ArrayDeque<>();
+
+    private final ThreadLocal<Participant> self = new ThreadLocal<>();
+
+    // The clock does not move until all the players are there, or after they have all
+    // finished.
+    private boolean started = false;
+    private int players = 0;
+
+    public VirtualNetwork(Topology<Address> topology, long seed, Marshaller<X> marshaller) {
+        if (topology == null) throw new NullPointerException();
+
+        this.topology = topology;
+        this.seed = seed;
+        this.marshaller = marshaller;
+    }
+
+    public VirtualNetwork(Topology<Address> topology, long seed) {
+        this(topology, seed, null);
+    }
+
+    // The time since the simulation started, in nanoseconds.
+    @Override
+    public long nanoTime() {
+        return now;
+    }
+
+    // Something that happens at a given time. Events that happen at the same time are put
+    // in an order that does not depend on how the threads were scheduled.
+    private abstract class Event implements Comparable<Event> {
+        final long time;
+        final int kind;
+        final long first;
+        final long second;
+
+        Event(long time, int kind, long first, long second) {
+            this.time = time;
+            this.kind = kind;
+            this.first = first;
+            this.second = second;
+        }
+
+        abstract void happen();
+
+        @Override
+        public int compareTo(Event e) {
+            if (time != e.time) return time < e.time ? -1 : 1;
+            if (kind != e.kind) return kind < e.kind ? -1 : 1;
+            if (first != e.first) return first < e.first ? -1 : 1;
+            if (second != e.second) return second < e.second ? -1 : 1;
+            return 0;
+        }
+    }
+
+    // A message arrives. Messages are ordered by who sent them and when.
+    private final class Delivery extends Event {
+        final Node to;
+        final Inbox.Envelope<Address, X> envelope;
+
+        Delivery(long time, Node from, long number, Node to, Inbox.Envelope<Address, X> envelope) {
+            super(time, 0, from.index, number);
+            this.to = to;
+            this.envelope = envelope;
+        }
+
+        @Override
+        void happen() {
+            to.deliver(envelope);
+        }
+    }
+
+    // A player stops waiting. A message that arrives at the same time is still received.
+    private final class Expiry extends Event {
+        final Node node;
+
+        Expiry(long time, Node node, long wait) {
+            super(time, 1, node.index, wait);
+            this.node = node;
+        }
+
+        @Override
+        void happen() {
+            if (node.waits == second) node.wake();
+        }
+    }
+
+    private final class Participant {
+        final Condition turn = lock.newCondition();
+    }
+
+    // Give the next player their turn, moving the clock forward until someone has something
+    // to do. If no one ever will, nothing happens.
+    private void next() {
+        while (running == null) {
+            Participant p = ready.poll();
+            if (p != null) {
+                running = p;
+                p.turn.signal();
+                return;
+            }
+
+            if (!started || players == 0) return;
+
+            Event e = events.poll();
+            if (e == null) return;
+
+            if (e.time > now) now = e.time;
+            e.happen();
+        }
+    }
+
+    private void await(Participant p) {
+        while (running != p) {
+            p.turn.awaitUninterruptibly();
+        }
+    }
+
+    // Start the clock once every player has been given to the executor. Until then, the
+    // players can run but cannot wait for anything.
+    public void start() {
+        lock.lock();
+        try {
+            started = true;
+            if (running == null) next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Every player in the simulation must be run by this executor. The players are given
+    // their first turn in the order they are given to it.
+    public Executor executor(final Executor exec) {
+        if (exec == null) throw new NullPointerException();
+
+        return new Executor() {
+            @Override
+            public void execute(final Runnable r) {
+                final Participant p = new Participant();
+
+                lock.lock();
+                try {
+                    players++;
+                    ready.add(p);
+                } finally {
+                    lock.unlock();
+                }
+
+                exec.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        lock.lock();
+                        try {
+                            if (running == null) next();
+                            await(p);
+                        } finally {
+                            lock.unlock();
+                        }
+
+                        self.set(p);
+                        try {
+                            r.run();
+                        } finally {
+                            self.remove();
+
+                            lock.lock();
+                            try {
+                                players--;
+                                running = null;
+                                next();
+                            } finally {
+                                lock.unlock();
+                            }
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    // Make an inbox for a new player.
+    public Inbox<Address, X> inbox(Address address) {
+        if (address == null) throw new NullPointerException();
+
+        lock.lock();
+        try {
+            if (nodes.containsKey(address)) throw new IllegalArgumentException();
+
+            Node node = new Node(address, nodes.size());
+            nodes.put(address, node);
+            return node;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private final class Node implements Inbox<Address, X> {
+        final Address address;
+        final int index;
+
+        final Deque<Envelope<Address, X>> queue = new ArrayDeque<>();
+        boolean closed = false;
+
+        // How many messages this player has sent.
+        long sent = 0;
+
+        // The player waiting for a message, if any, and how many times we have waited.
+        Participant waiting = null;
+        long waits = 0;
+
+        Node(Address address, int index) {
+            this.address = address;
+            this.index = index;
+        }
+
+        void wake() {
+            if (waiting != null) {
+                ready.add(waiting);
+                waiting = null;
+            }
+        }
+
+        void deliver(Envelope<Address, X> envelope) {
+            if (closed) return;
+
+            queue.add(envelope);
+            wake();
+        }
+
+        @Override
+        public Send<X> receivesFrom(Address from) {
+            lock.lock();
+            try {
+                Node sender = nodes.get(from);
+                if (sender == null) throw new IllegalArgumentException();
+
+                return new Wire(sender, this, topology.link(from, address));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // A negative timeout means forever.
+        private Envelope<Address, X> receive(long timeout) throws InterruptedException {
+            lock.lock();
+            try {
+                Envelope<Address, X> e = queue.poll();
+                if (e != null || closed || timeout == 0) return e;
+
+                Participant p = self.get();
+                if (p == null || p != running) {
+                    throw new IllegalStateException("Only a player in the simulation can wait.");
+                }
+
+                waiting = p;
+                waits++;
+                if (timeout > 0) {
+                    events.add(new Expiry(
+                            timeout > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + timeout,
+                            this, waits));
+                }
+
+                running = null;
+                next();
+                await(p);
+
+                if (Thread.interrupted()) throw new InterruptedException();
+
+                return queue.poll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Envelope<Address, X> receive() throws InterruptedException {
+            return receive(-1);
+        }
+
+        @Override
+        public Envelope<Address, X> receive(long l, TimeUnit u) throws InterruptedException {
+            return receive(Math.max(0, u.toNanos(l)));
+        }
+
+        @Override
+        public boolean closed() {
+            lock.lock();
+            try {
+                return closed;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                closed = true;
+                wake();
+                if (running == null) next();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "VirtualInbox[" + address + "]";
+        }
+    }
+
+    // Seeds that are close together give similar random numbers at first, so the seed of
+    // each link is scrambled.
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+
+    // The sending end of a link.
+    private final class Wire implements Send<X> {
+        final Node from;
+        final Node to;
+        final Link link;
+        final Random random;
+
+        // When the link will have finished sending the last message, and when that message
+        // arrives.
+        long free = 0;
+        long last = 0;
+
+        boolean closed = false;
+
+        Wire(Node from, Node to, Link link) {
+            if (link == null) throw new NullPointerException();
+            if (link.bandwidth > 0 && marshaller == null) throw new IllegalArgumentException();
+
+            this.from = from;
+            this.to = to;
+            this.link = link;
+            this.random = new Random(mix(mix(seed + from.index) + to.index));
+        }
+
+        @Override
+        public boolean send(X x) throws InterruptedException {
+            if (x == null) throw new NullPointerException();
+
+            lock.lock();
+            try {
+                if (closed || to.closed) return false;
+
+                long time = now;
+
+                if (link.bandwidth > 0) {
+                    long size = marshaller.marshall(x).length();
+                    free = Math.max(now, free)
+                            + size * TimeUnit.SECONDS.toNanos(1) / link.bandwidth;
+                    time = free;
+                }
+
+                // A lost message still takes up the link.
+                if (link.loss > 0 && random.nextDouble() < link.loss) return true;
+
+                time += link.latency;
+                if (link.jitter > 0) time += (long) (random.nextDouble() * link.jitter);
+                if (time < last) time = last;
+                last = time;
+
+                events.add(new Delivery(time, from, from.sent++, to, new Inbox.Envelope<>(
+                        from.address, x, TimeUnit.NANOSECONDS.toMillis(time))));
+
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                closed = true;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
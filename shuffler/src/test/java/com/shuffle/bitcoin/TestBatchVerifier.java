@@ -0,0 +1,46 @@
+package com.shuffle.bitcoin;
+
+import com.shuffle.mock.MockSigningKey;
+import com.shuffle.p2p.Bytestring;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Tests for checking many signatures at once.
+ */
+public class TestBatchVerifier {
+
+    @Test
+    public void testInvalid() {
+        Bytestring payload = new Bytestring(new byte[]{7, 8, 9});
+
+        List<BatchVerifier.Claim> claims = new ArrayList<>();
+        List<BatchVerifier.Claim> expected = new ArrayList<>();
+        for (int i = 1; i <= 50; i++) {
+            SigningKey sk = new MockSigningKey(i);
+
+            // Every seventh player signs the wrong thing.
+            Bytestring signature = i % 7 == 0
+                    ? sk.sign(new Bytestring(new byte[]{1}))
+                    : sk.sign(payload);
+
+            BatchVerifier.Claim claim
+                    = new BatchVerifier.Claim(sk.VerificationKey(), payload, signature);
+            claims.add(claim);
+
+            if (i % 7 == 0) expected.add(claim);
+        }
+
+        BatchVerifier parallel = new BatchVerifier.Parallel(new ForkJoinPool(4), 2);
+
+        Assert.assertEquals(expected, BatchVerifier.sequential.invalid(claims));
+        Assert.assertEquals(expected, parallel.invalid(claims));
+        Assert.assertTrue(parallel.invalid(claims.subList(0, 6)).isEmpty());
+        Assert.assertTrue(parallel.invalid(new ArrayList<BatchVerifier.Claim>()).isEmpty());
+    }
+}
@@ -0,0 +1,118 @@
+package com.shuffle.bitcoin;
+
+import com.shuffle.mock.MockAddress;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for looking up many addresses at once.
+ */
+public class TestLookup {
+
+    // Every lookup takes a while, as it would over the network. Address 0 cannot be looked up.
+    private static class SlowCoin implements Coin {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+
+        @Override
+        public Transaction shuffleTransaction(long amount, List<VerificationKey> from,
+                                              Queue<Address> to,
+                                              Map<VerificationKey, Address> changeAddresses) {
+            return null;
+        }
+
+        @Override
+        public long valueHeld(Address addr) throws CoinNetworkException {
+            int r = running.incrementAndGet();
+            int max;
+            do {
+                max = maxRunning.get();
+            } while (r > max && !maxRunning.compareAndSet(max, r));
+
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                throw new CoinNetworkException();
+            } finally {
+                running.decrementAndGet();
+            }
+
+            int index = ((MockAddress) addr).index;
+            if (index == 0) throw new CoinNetworkException();
+
+            return 10 * index;
+        }
+
+        @Override
+        public Future<Map<Address, Long>> valuesHeld(Collection<Address> addrs) {
+            return null;
+        }
+
+        @Override
+        public Transaction getConflictingTransaction(Address addr, long amount) {
+            return null;
+        }
+
+        @Override
+        public Future<Map<Address, Transaction>> getConflictingTransactions(
+                Collection<Address> addrs, long amount) {
+            return null;
+        }
+
+        @Override
+        public Transaction getSpendingTransaction(Address addr, long amount) {
+            return null;
+        }
+    }
+
+    @Test
+    public void testValuesHeld() throws CoinNetworkException, InterruptedException {
+        SlowCoin coin = new SlowCoin();
+        ExecutorService exec = Executors.newFixedThreadPool(10);
+
+        try {
+            List<Address> addrs = new ArrayList<>();
+            for (int i = 1; i <= 20; i++) {
+                addrs.add(new MockAddress(i));
+            }
+
+            Map<Address, Long> held = Lookup.get(Lookup.valuesHeld(coin, addrs, exec));
+            Assert.assertEquals(20, held.size());
+            for (int i = 1; i <= 20; i++) {
+                Assert.assertEquals(Long.valueOf(10 * i), held.get(new MockAddress(i)));
+            }
+
+            // The lookups should have overlapped.
+            Assert.assertTrue(coin.maxRunning.get() > 1);
+
+            // A failed lookup causes the whole thing to fail.
+            addrs.add(new MockAddress(0));
+            try {
+                Lookup.get(Lookup.valuesHeld(coin, addrs, exec));
+                Assert.fail();
+            } catch (CoinNetworkException e) {
+                // Expected.
+            }
+
+            // Nothing runs concurrently with the immediate executor.
+            SlowCoin serial = new SlowCoin();
+            Future<Map<Address, Long>> f = Lookup.valuesHeld(serial, addrs.subList(0, 5), Lookup.immediate);
+            Assert.assertTrue(f.isDone());
+            Assert.assertEquals(5, Lookup.get(f).size());
+            Assert.assertEquals(1, serial.maxRunning.get());
+        } finally {
+            exec.shutdown();
+        }
+    }
+}
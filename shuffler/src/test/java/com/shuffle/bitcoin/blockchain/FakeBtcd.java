@@ -0,0 +1,169 @@
+package com.shuffle.bitcoin.blockchain;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.commons.codec.binary.Base64;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A local http server which answers a few of btcd's JSON-RPC calls from memory.
+ */
+public class FakeBtcd implements HttpHandler {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final HttpServer server;
+    private final String authorization;
+
+    // Raw transactions by hash.
+    private final Map<String, String> transactions = new HashMap<>();
+
+    // Transaction hashes by address.
+    private final Map<String, List<String>> addresses = new HashMap<>();
+
+    private int requests = 0;
+    private final Set<InetSocketAddress> connections = new HashSet<>();
+
+    public FakeBtcd(String user, String pass) throws IOException {
+        authorization = "Basic " + new Base64().encodeAsString((user + ":" + pass).getBytes(UTF8));
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this);
+        server.start();
+    }
+
+    public URL endpoint() throws MalformedURLException {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    public synchronized void put(String hash, String hex, String... addrs) {
+        transactions.put(hash, hex);
+        for (String addr : addrs) {
+            List<String> list = addresses.get(addr);
+            if (list == null) {
+                list = new LinkedList<>();
+                addresses.put(addr, list);
+            }
+            list.add(hash);
+        }
+    }
+
+    public synchronized int requests() {
+        return requests;
+    }
+
+    // The number of different connections which have been used.
+    public synchronized int connections() {
+        return connections.size();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    private JSONObject error(Object id, int code, String message) {
+        JSONObject error = new JSONObject();
+        error.put("code", code);
+        error.put("message", message);
+
+        JSONObject response = new JSONObject();
+        response.put("result", JSONObject.NULL);
+        response.put("error", error);
+        response.put("id", id);
+        return response;
+    }
+
+    private synchronized JSONObject respond(JSONObject call) {
+        Object id = call.get("id");
+        String method = call.getString("method");
+        JSONArray params = call.getJSONArray("params");
+
+        Object result;
+        switch (method) {
+            case "getrawtransaction": {
+                result = transactions.get(params.getString(0));
+                if (result == null) {
+                    return error(id, -5, "No information available about transaction");
+                }
+                break;
+            }
+            case "searchrawtransactions": {
+                JSONArray txs = new JSONArray();
+                List<String> hashes = addresses.get(params.getString(0));
+                if (hashes != null) {
+                    for (String hash : hashes) {
+                        JSONObject tx = new JSONObject();
+                        tx.put("txid", hash);
+                        tx.put("hex", transactions.get(hash));
+                        txs.put(tx);
+                    }
+                }
+                result = txs;
+                break;
+            }
+            default:
+                return error(id, -32601, "Method not found");
+        }
+
+        JSONObject response = new JSONObject();
+        response.put("result", result);
+        response.put("error", JSONObject.NULL);
+        response.put("id", id);
+        return response;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        synchronized (this) {
+            requests++;
+            connections.add(exchange.getRemoteAddress());
+        }
+
+        int code;
+        Object response;
+        if (!authorization.equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+            code = 401;
+            response = "";
+        } else {
+            Object request = new JSONTokener(
+                    new InputStreamReader(exchange.getRequestBody(), UTF8)).nextValue();
+
+            code = 200;
+            if (request instanceof JSONArray) {
+                JSONArray calls = (JSONArray) request;
+                JSONArray responses = new JSONArray();
+                for (int i = 0; i < calls.length(); i++) {
+                    responses.put(respond(calls.getJSONObject(i)));
+                }
+                response = responses;
+            } else {
+                JSONObject r = respond((JSONObject) request);
+                if (r.get("error") != JSONObject.NULL) code = 500;
+                response = r;
+            }
+        }
+
+        byte[] body = response.toString().getBytes(UTF8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, body.length == 0 ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
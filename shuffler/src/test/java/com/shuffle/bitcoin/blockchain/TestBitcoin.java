@@ -0,0 +1,91 @@
+package com.shuffle.bitcoin.blockchain;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.params.MainNetParams;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import javax.xml.bind.annotation.adapters.HexBinaryAdapter;
+
+/**
+ * Tests for finding the balance of an address from its history.
+ */
+public class TestBitcoin {
+
+    private final NetworkParameters netParams = MainNetParams.get();
+    private final Context context = Context.getOrCreate(netParams);
+
+    private final Address mine = new ECKey().toAddress(netParams);
+    private final Address other = new ECKey().toAddress(netParams);
+
+    private FakeBtcd fake;
+    private Btcd btcd;
+
+    @Before
+    public void setup() throws IOException {
+        fake = new FakeBtcd("admin", "pass");
+        btcd = new Btcd(netParams, 2, "admin", "pass", fake.endpoint());
+    }
+
+    @After
+    public void shutdown() {
+        fake.stop();
+    }
+
+    // A transaction which spends the given output and pays the given amounts.
+    private Transaction transaction(Sha256Hash prev, long index, Object... outputs) {
+        Transaction tx = new Transaction(netParams);
+        tx.addInput(new TransactionInput(netParams, tx, new byte[]{},
+                new TransactionOutPoint(netParams, index, prev)));
+
+        for (int i = 0; i < outputs.length; i += 2) {
+            tx.addOutput(Coin.valueOf((Long) outputs[i + 1]), (Address) outputs[i]);
+        }
+        return tx;
+    }
+
+    private void put(Transaction tx, Address... addrs) {
+        String[] a = new String[addrs.length];
+        for (int i = 0; i < addrs.length; i++) {
+            a[i] = addrs[i].toString();
+        }
+
+        fake.put(tx.getHashAsString(),
+                new HexBinaryAdapter().marshal(tx.bitcoinSerialize()).toLowerCase(), a);
+    }
+
+    @Test
+    public void testBalance() throws IOException {
+        Assert.assertEquals(0, btcd.getAddressBalance(mine.toString()));
+
+        // We are paid twice in one transaction and once in another.
+        Transaction a = transaction(Sha256Hash.ZERO_HASH, 0, mine, 1000L, mine, 2000L, other, 10L);
+        Transaction b = transaction(Sha256Hash.ZERO_HASH, 1, mine, 400L);
+        put(a, mine, other);
+        put(b, mine);
+        Assert.assertEquals(3400, btcd.getAddressBalance(mine.toString()));
+
+        // Now spend the second output of the first transaction.
+        Transaction c = transaction(a.getHash(), 1, other, 1990L);
+        put(c, mine, other);
+        Assert.assertEquals(1400, btcd.getAddressBalance(mine.toString()));
+        Assert.assertEquals(2000, btcd.getAddressBalance(other.toString()));
+
+        // Spending an output of a different transaction with the same index changes nothing.
+        Transaction d = transaction(b.getHash(), 1, other, 5L);
+        put(d, mine);
+        Assert.assertEquals(1400, btcd.getAddressBalance(mine.toString()));
+    }
+}
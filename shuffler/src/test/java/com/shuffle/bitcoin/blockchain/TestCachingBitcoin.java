@@ -0,0 +1,125 @@
+package com.shuffle.bitcoin.blockchain;
+
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.MainNetParams;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.annotation.adapters.HexBinaryAdapter;
+
+/**
+ * Tests for the cache in front of a Bitcoin service.
+ */
+public class TestCachingBitcoin {
+
+    private final NetworkParameters netParams = MainNetParams.get();
+    private final Context context = Context.getOrCreate(netParams);
+
+    private final String txid = "7301b595279ece985f0c415e420e425451fcf7f684fcce087ba14d10ffec1121";
+    private final String hexTx = "01000000014dff4050dcee16672e48d755c6dd25d324492b5ea306f85a3ab23b4df26e16e9000000008c493046022100cb6dc911ef0bae0ab0e6265a45f25e081fc7ea4975517c9f848f82bc2b80a909022100e30fb6bb4fb64f414c351ed3abaed7491b8f0b1b9bcd75286036df8bfabc3ea5014104b70574006425b61867d2cbb8de7c26095fbc00ba4041b061cf75b85699cb2b449c6758741f640adffa356406632610efb267cb1efa0442c207059dd7fd652eeaffffffff020049d971020000001976a91461cf5af7bb84348df3fd695672e53c7d5b3f3db988ac30601c0c060000001976a914fd4ed114ef85d350d6d40ed3f6dc23743f8f99c488ac00000000";
+    private final String address = "1A1zP1eP5QGefi2DMPTfTL5SLmv7DivfNa";
+    private final String other = "1BoatSLRHtKNngkdXEeobR76b53LETtpyT";
+
+    private FakeBtcd fake;
+    private Btcd btcd;
+
+    @Before
+    public void setup() throws IOException {
+        fake = new FakeBtcd("admin", "pass");
+        fake.put(txid, hexTx, address, other);
+        btcd = new Btcd(netParams, 2, "admin", "pass", fake.endpoint());
+    }
+
+    @After
+    public void shutdown() {
+        fake.stop();
+    }
+
+    private Transaction tx() {
+        return new Transaction(netParams, new HexBinaryAdapter().unmarshal(hexTx));
+    }
+
+    @Test
+    public void testTransactions() throws IOException {
+        CachingBitcoin cache = new CachingBitcoin(btcd, 10, 1, TimeUnit.MINUTES);
+
+        Assert.assertEquals(tx(), cache.getTransaction(txid));
+        Assert.assertEquals(tx(), cache.getTransaction(txid));
+        Assert.assertEquals(1, fake.requests());
+        Assert.assertEquals(1, cache.hits());
+        Assert.assertEquals(1, cache.misses());
+
+        // Transactions are not forgotten when a block is found.
+        cache.newBlock();
+        Assert.assertEquals(tx(), cache.getTransaction(txid));
+        Assert.assertEquals(1, fake.requests());
+
+        // Only the unknown transactions are looked up, and all of them in one request.
+        Assert.assertEquals(Arrays.asList(tx(), null, null),
+                cache.getTransactions(Arrays.asList(txid, "00", "01")));
+        Assert.assertEquals(2, fake.requests());
+    }
+
+    @Test
+    public void testHistories() throws IOException, InterruptedException {
+        CachingBitcoin cache = new CachingBitcoin(btcd, 1, 1, TimeUnit.MINUTES);
+
+        Assert.assertEquals(1, cache.getAddressTransactions(address).size());
+        Assert.assertEquals(1, cache.getAddressTransactions(address).size());
+        Assert.assertEquals(1, fake.requests());
+
+        // A new block could change the history.
+        cache.newBlock();
+        cache.getAddressTransactions(address);
+        Assert.assertEquals(2, fake.requests());
+
+        // There is only room for one address.
+        cache.getAddressTransactions(other);
+        cache.getAddressTransactions(address);
+        Assert.assertEquals(4, fake.requests());
+
+        // Histories expire.
+        cache = new CachingBitcoin(btcd, 10, 20, TimeUnit.MILLISECONDS);
+        cache.getAddressTransactions(address);
+        Thread.sleep(50);
+        cache.getAddressTransactions(address);
+        Assert.assertEquals(6, fake.requests());
+        Assert.assertEquals(0, cache.hits());
+    }
+
+    // A transaction in a history which has not been downloaded yet is looked up in the cache.
+    @Test
+    public void testLazyTransactions() throws Exception {
+        Bitcoin lazy = new Bitcoin(btcd) {
+            @Override
+            List<Bitcoin.Transaction> getAddressTransactions(String address) {
+                return Collections.singletonList(new Bitcoin.Transaction(txid, false));
+            }
+
+            @Override
+            org.bitcoinj.core.Transaction getTransaction(String transactionHash)
+                    throws IOException {
+
+
+                return btcd.getTransaction(transactionHash);
+            }
+        };
+
+        CachingBitcoin cache = new CachingBitcoin(lazy, 10, 1, TimeUnit.MINUTES);
+        Assert.assertEquals(tx(), cache.getTransaction(txid));
+
+        Assert.assertEquals(tx(), cache.getAddressTransactions(address).get(0).bitcoinj());
+        Assert.assertEquals(1, fake.requests());
+        Assert.assertEquals(1, cache.hits());
+    }
+}
@@ -0,0 +1,102 @@
+package com.shuffle.bitcoin.blockchain;
+
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.store.BlockStoreException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.bind.annotation.adapters.HexBinaryAdapter;
+
+/**
+ * Tests for the JSON-RPC client against a fake btcd.
+ */
+public class TestJsonRpc {
+
+    private final NetworkParameters netParams = MainNetParams.get();
+    private final Context context = Context.getOrCreate(netParams);
+
+    private final String txid = "7301b595279ece985f0c415e420e425451fcf7f684fcce087ba14d10ffec1121";
+    private final String hexTx = "01000000014dff4050dcee16672e48d755c6dd25d324492b5ea306f85a3ab23b4df26e16e9000000008c493046022100cb6dc911ef0bae0ab0e6265a45f25e081fc7ea4975517c9f848f82bc2b80a909022100e30fb6bb4fb64f414c351ed3abaed7491b8f0b1b9bcd75286036df8bfabc3ea5014104b70574006425b61867d2cbb8de7c26095fbc00ba4041b061cf75b85699cb2b449c6758741f640adffa356406632610efb267cb1efa0442c207059dd7fd652eeaffffffff020049d971020000001976a91461cf5af7bb84348df3fd695672e53c7d5b3f3db988ac30601c0c060000001976a914fd4ed114ef85d350d6d40ed3f6dc23743f8f99c488ac00000000";
+    private final String address = "1A1zP1eP5QGefi2DMPTfTL5SLmv7DivfNa";
+
+    private FakeBtcd fake;
+    private Btcd btcd;
+
+    @Before
+    public void setup() throws IOException {
+        fake = new FakeBtcd("admin", "pass");
+        fake.put(txid, hexTx, address);
+        btcd = new Btcd(netParams, 2, "admin", "pass", fake.endpoint());
+    }
+
+    @After
+    public void shutdown() {
+        fake.stop();
+    }
+
+    private Transaction tx() {
+        return new Transaction(netParams, new HexBinaryAdapter().unmarshal(hexTx));
+    }
+
+    @Test
+    public void testGetTransaction() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(tx(), btcd.getTransaction(txid));
+        }
+
+        // The same connection should have been used every time.
+        Assert.assertEquals(5, fake.requests());
+        Assert.assertEquals(1, fake.connections());
+    }
+
+    @Test
+    public void testGetTransactions() throws IOException {
+        List<Transaction> txs = btcd.getTransactions(Arrays.asList(txid, "00", txid));
+
+        Assert.assertEquals(Arrays.asList(tx(), null, tx()), txs);
+        Assert.assertEquals(1, fake.requests());
+
+        Assert.assertTrue(btcd.getTransactions(Arrays.<String>asList()).isEmpty());
+        Assert.assertEquals(1, fake.requests());
+    }
+
+    @Test
+    public void testGetAddressTransactions() throws IOException, BlockStoreException {
+        List<Bitcoin.Transaction> txs = btcd.getAddressTransactions(address);
+
+        Assert.assertEquals(1, txs.size());
+        Assert.assertEquals(txid, txs.get(0).hash);
+        Assert.assertEquals(tx(), txs.get(0).bitcoinj());
+
+        Assert.assertTrue(btcd.getAddressTransactions("1BoatSLRHtKNngkdXEeobR76b53LETtpyT").isEmpty());
+    }
+
+    @Test
+    public void testErrors() throws IOException {
+        try {
+            btcd.getTransaction("00");
+            Assert.fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+
+        try {
+            new JsonRpc(fake.endpoint(), "admin", "wrong").call("getrawtransaction", txid);
+            Assert.fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+
+        // The client still works after an error.
+        Assert.assertEquals(tx(), btcd.getTransaction(txid));
+    }
+}
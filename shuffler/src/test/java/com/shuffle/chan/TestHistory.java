@@ -0,0 +1,106 @@
+package com.shuffle.chan;
+
+import com.shuffle.chan.packet.JavaMarshaller;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Tests for the history of a channel.
+ */
+public class TestHistory {
+
+    private static List<Integer> list(Iterable<Integer> history) {
+        List<Integer> l = new ArrayList<>();
+        for (Integer i : history) {
+            l.add(i);
+        }
+        return l;
+    }
+
+    private static List<Integer> range(int from, int to) {
+        List<Integer> l = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            l.add(i);
+        }
+        return l;
+    }
+
+    @Test
+    public void testMemory() {
+        History<Integer> history = new History<>();
+        for (int i = 0; i < 100; i++) {
+            history.add(i);
+        }
+
+        Assert.assertEquals(100, history.size());
+        Assert.assertEquals(99, (int) history.last());
+        Assert.assertEquals(range(0, 100), list(history));
+    }
+
+    // Only the most recent messages are remembered.
+    @Test
+    public void testWindow() {
+        History<Integer> history = new History<>(10);
+        for (int i = 0; i < 100; i++) {
+            history.add(i);
+        }
+
+        Assert.assertEquals(100, history.size());
+        Assert.assertEquals(99, (int) history.last());
+        Assert.assertEquals(range(90, 100), list(history));
+    }
+
+    // Older messages are read back from the log.
+    @Test
+    public void testLog() throws IOException {
+        File file = File.createTempFile("history", ".log");
+        History<Integer> history = new History<>(7, new JavaMarshaller<Integer>(), file);
+
+        // Enough that the log has to be mapped more than once.
+        int n = 20000;
+        for (int i = 0; i < n; i++) {
+            history.add(i);
+        }
+
+        Assert.assertEquals(n, history.size());
+        Assert.assertEquals(n - 1, (int) history.last());
+        Assert.assertEquals(range(0, n), list(history));
+
+        history.close();
+        Assert.assertFalse(file.exists());
+        Assert.assertFalse(history.iterator().hasNext());
+    }
+
+    // An iterator does not see what is added after it was made.
+    @Test
+    public void testView() throws IOException {
+        File file = File.createTempFile("history", ".log");
+        History<Integer> history = new History<>(3, new JavaMarshaller<Integer>(), file);
+        for (int i = 0; i < 5; i++) {
+            history.add(i);
+        }
+
+        Iterator<Integer> it = history.iterator();
+        Assert.assertEquals(0, (int) it.next());
+
+        for (int i = 5; i < 10; i++) {
+            history.add(i);
+        }
+
+        List<Integer> rest = new ArrayList<>();
+        while (it.hasNext()) {
+            rest.add(it.next());
+        }
+        Assert.assertEquals(range(1, 5), rest);
+        Assert.assertEquals(range(0, 10), list(history));
+
+        history.close();
+    }
+}
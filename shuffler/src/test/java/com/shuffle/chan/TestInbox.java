@@ -20,6 +20,12 @@ public class TestInbox {
     static int testNum = 0;
 
     public static void runTest(int[] tpeers, int[] tmessages) throws InterruptedException {
+        runTest(new BasicInbox<Integer, Integer>(100), tpeers, tmessages);
+        runTest(new RingInbox<Integer, Integer>(100), tpeers, tmessages);
+    }
+
+    public static void runTest(Inbox<Integer, Integer> inbox, int[] tpeers, int[] tmessages)
+            throws InterruptedException {
         testNum++;
         System.out.println("Test case " + testNum);
 
@@ -29,7 +35,6 @@ public class TestInbox {
         // Who should messages be sent from in this test?
         final List<Integer> messages = new LinkedList<>();
 
-        final Inbox<Integer, Integer> inbox = new BasicInbox<>(100);
         final Map<Integer, Send<Integer>> send = new HashMap<>();
             
         for (int p : tpeers) {
@@ -90,4 +95,70 @@ public class TestInbox {
         runTest(new int[]{1, 2}, new int[]{2, 1});
         runTest(new int[]{1, 2}, new int[]{1, 2, 1});
     }
+
+    @Test
+    public void testRingInbox() throws InterruptedException {
+        final RingInbox<Integer, Integer> inbox = new RingInbox<>(16);
+
+        // Nothing there yet.
+        Assert.assertNull(inbox.receive(10, TimeUnit.MILLISECONDS));
+
+        // Fill the inbox up.
+        Send<Integer> one = inbox.receivesFrom(1);
+        for (int i = 0; i < 16; i++) {
+            Assert.assertTrue(one.send(i));
+        }
+        Assert.assertFalse(one.send(16));
+
+        for (int i = 0; i < 16; i++) {
+            Assert.assertEquals((Integer) i, inbox.receive().payload);
+        }
+
+        // Several threads sending at once.
+        final int senders = 4;
+        final int each = 10000;
+        for (int s = 0; s < senders; s++) {
+            final Send<Integer> send = inbox.receivesFrom(s);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < each; i++) {
+                            while (!send.send(i)) {
+                                Thread.yield();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        // Not expected.
+                    }
+                }
+            }).start();
+        }
+
+        // Messages from each sender must arrive in order.
+        int[] next = new int[senders];
+        for (int i = 0; i < senders * each; i++) {
+            Inbox.Envelope<Integer, Integer> e = inbox.receive(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(e);
+            Assert.assertEquals((Integer) next[e.from], e.payload);
+            next[e.from]++;
+        }
+
+        // A receiver which is waiting is woken up when the inbox is closed.
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                    inbox.close();
+                } catch (InterruptedException e) {
+                    // Not expected.
+                }
+            }
+        }).start();
+
+        Assert.assertNull(inbox.receive());
+        Assert.assertTrue(inbox.closed());
+        Assert.assertNull(inbox.receivesFrom(5));
+    }
 }
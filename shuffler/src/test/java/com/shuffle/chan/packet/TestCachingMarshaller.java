@@ -0,0 +1,46 @@
+package com.shuffle.chan.packet;
+
+import com.shuffle.p2p.Bytestring;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for remembering the last thing that was marshalled.
+ */
+public class TestCachingMarshaller {
+
+    // Counts how many times it is asked to marshall something.
+    private static class Counting implements Marshaller<String> {
+        private final Marshaller<String> marshaller = new JavaMarshaller<>();
+        int count = 0;
+
+        @Override
+        public Bytestring marshall(String s) {
+            count++;
+            return marshaller.marshall(s);
+        }
+
+        @Override
+        public String unmarshall(Bytestring string) {
+            return marshaller.unmarshall(string);
+        }
+    }
+
+    @Test
+    public void testCache() {
+        Counting counting = new Counting();
+        Marshaller<String> m = new CachingMarshaller<>(counting);
+
+        String a = new String("broadcast");
+        Bytestring b = m.marshall(a);
+        Assert.assertSame(b, m.marshall(a));
+        Assert.assertEquals(1, counting.count);
+
+        // Something equal but not the same is marshalled again.
+        Assert.assertEquals(b, m.marshall(new String("broadcast")));
+        Assert.assertEquals(2, counting.count);
+
+        Assert.assertEquals("broadcast", m.unmarshall(b));
+    }
+}
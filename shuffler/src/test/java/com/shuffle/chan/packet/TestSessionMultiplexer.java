@@ -0,0 +1,258 @@
+package com.shuffle.chan.packet;
+
+import com.shuffle.bitcoin.Crypto;
+import com.shuffle.bitcoin.SigningKey;
+import com.shuffle.bitcoin.Transaction;
+import com.shuffle.bitcoin.VerificationKey;
+import com.shuffle.chan.BasicChan;
+import com.shuffle.chan.BasicInbox;
+import com.shuffle.chan.Inbox;
+import com.shuffle.chan.Send;
+import com.shuffle.mock.InsecureRandom;
+import com.shuffle.mock.MockAddress;
+import com.shuffle.mock.MockCoin;
+import com.shuffle.mock.MockCrypto;
+import com.shuffle.mock.MockSessionIdentifier;
+import com.shuffle.mock.MockSigningKey;
+import com.shuffle.p2p.Bytestring;
+import com.shuffle.player.Messages;
+import com.shuffle.player.P;
+import com.shuffle.protocol.CoinShuffle;
+import com.shuffle.protocol.blame.Matrix;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for running several sessions over the same connections.
+ */
+public class TestSessionMultiplexer {
+
+    private static Signed<Packet<Integer, String>> packet(
+            SessionIdentifier session, int from, String payload) {
+
+        return new Signed<>(new Packet<>(session, from, 0, 0, payload),
+                new Bytestring(new byte[]{1}), 0);
+    }
+
+    private static String receive(SessionMultiplexer<Integer, String>.Mix mix)
+            throws InterruptedException {
+
+        Inbox.Envelope<Integer, Signed<Packet<Integer, String>>> e
+                = mix.inbox.receive(1, TimeUnit.SECONDS);
+
+        return e == null ? null : e.payload.message.payload;
+    }
+
+    @Test
+    public void testMultiplexer() throws InterruptedException {
+        SessionIdentifier a = new MockSessionIdentifier("a");
+        SessionIdentifier b = new MockSessionIdentifier("b");
+
+        Inbox<Integer, Signed<Packet<Integer, String>>> shared = new BasicInbox<>(100);
+        Send<Signed<Packet<Integer, String>>> from1 = shared.receivesFrom(1);
+        Send<Signed<Packet<Integer, String>>> from2 = shared.receivesFrom(2);
+
+        BasicChan<Signed<Packet<Integer, String>>> to1 = new BasicChan<>(10);
+        Map<Integer, Send<Signed<Packet<Integer, String>>>> net = new HashMap<>();
+        net.put(1, to1);
+
+        SessionMultiplexer<Integer, String> mux = new SessionMultiplexer<>(shared, net, 10);
+        Thread thread = new Thread(mux);
+        thread.start();
+
+        // A packet for a session which has not been opened yet.
+        from1.send(packet(a, 1, "early"));
+        Thread.sleep(100);
+
+        SessionMultiplexer<Integer, String>.Mix mixA = mux.open(a);
+        SessionMultiplexer<Integer, String>.Mix mixB = mux.open(b);
+        Assert.assertNotNull(mixA);
+        Assert.assertNotNull(mixB);
+        Assert.assertNull(mux.open(a));
+
+        from2.send(packet(b, 2, "b1"));
+        from1.send(packet(a, 1, "a1"));
+        from2.send(packet(a, 2, "a2"));
+        from1.send(packet(b, 1, "b2"));
+
+        Assert.assertEquals("early", receive(mixA));
+        Assert.assertEquals("a1", receive(mixA));
+        Assert.assertEquals("a2", receive(mixA));
+        Assert.assertEquals("b1", receive(mixB));
+        Assert.assertEquals("b2", receive(mixB));
+
+        // Closing a session does not close the connection.
+        Assert.assertTrue(mixA.connected.get(1).send(packet(a, 0, "out a")));
+        mixA.close();
+        Assert.assertFalse(mixA.connected.get(1).send(packet(a, 0, "out a")));
+        Assert.assertTrue(mixB.connected.get(1).send(packet(b, 0, "out b")));
+        Assert.assertEquals("out a", to1.receive().message.payload);
+        Assert.assertEquals("out b", to1.receive().message.payload);
+
+        // A closed session cannot be opened again and gets nothing more.
+        Assert.assertNull(mux.open(a));
+        from1.send(packet(a, 1, "late"));
+        from1.send(packet(b, 1, "b3"));
+        Assert.assertEquals("b3", receive(mixB));
+        Assert.assertNull(receive(mixA));
+
+        // When the connections close, so does every session.
+        shared.close();
+        thread.join(1000);
+        Assert.assertFalse(thread.isAlive());
+        Assert.assertNull(mixB.inbox.receive());
+        Assert.assertNull(mux.open(new MockSessionIdentifier("c")));
+    }
+
+    // Only so much is kept for sessions which have not been opened.
+    @Test
+    public void testUnknownSessions() throws InterruptedException {
+        SessionIdentifier a = new MockSessionIdentifier("a");
+        SessionIdentifier b = new MockSessionIdentifier("b");
+        SessionIdentifier c = new MockSessionIdentifier("c");
+
+        Inbox<Integer, Signed<Packet<Integer, String>>> shared = new BasicInbox<>(100);
+        Send<Signed<Packet<Integer, String>>> from1 = shared.receivesFrom(1);
+
+        SessionMultiplexer<Integer, String> mux = new SessionMultiplexer<>(
+                shared, new HashMap<Integer, Send<Signed<Packet<Integer, String>>>>(), 2, 2);
+        Thread thread = new Thread(mux);
+        thread.start();
+
+        from1.send(packet(a, 1, "a1"));
+        from1.send(packet(b, 1, "b1"));
+        from1.send(packet(b, 1, "b2"));
+        from1.send(packet(b, 1, "b3"));
+
+        // The session heard of first is forgotten to make room for this one.
+        from1.send(packet(c, 1, "c1"));
+        Thread.sleep(100);
+
+        SessionMultiplexer<Integer, String>.Mix mixA = mux.open(a);
+        SessionMultiplexer<Integer, String>.Mix mixB = mux.open(b);
+        SessionMultiplexer<Integer, String>.Mix mixC = mux.open(c);
+
+        Assert.assertNull(receive(mixA));
+        Assert.assertEquals("b1", receive(mixB));
+        Assert.assertEquals("b2", receive(mixB));
+        Assert.assertNull(receive(mixB));
+        Assert.assertEquals("c1", receive(mixC));
+
+        shared.close();
+        thread.join(1000);
+    }
+
+    // Several rounds run at the same time over one set of connections, and every player
+    // finishes every round. The capacity is far less than a round sends, so any packet
+    // that did not fit would be lost and its round would fail.
+    @Test
+    public void testConcurrentRounds() throws Exception {
+        final int rounds = 4;
+        final SortedSet<VerificationKey> keys = new TreeSet<>();
+        List<SigningKey> players = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            SigningKey sk = new MockSigningKey(i);
+            players.add(sk);
+            keys.add(sk.VerificationKey());
+        }
+
+        // One inbox for each player, shared by all the rounds.
+        Map<VerificationKey, Inbox<VerificationKey, Signed<Packet<VerificationKey, P>>>> inboxes
+                = new HashMap<>();
+        for (VerificationKey vk : keys) {
+            inboxes.put(vk,
+                    new BasicInbox<VerificationKey, Signed<Packet<VerificationKey, P>>>(1000));
+        }
+
+        List<SessionIdentifier> sessions = new ArrayList<>();
+        List<Crypto> cryptos = new ArrayList<>();
+        for (int r = 0; r < rounds; r++) {
+            sessions.add(new MockSessionIdentifier("concurrent " + r));
+            cryptos.add(new MockCrypto(new InsecureRandom(r)));
+        }
+
+        List<Thread> sorters = new ArrayList<>();
+        ExecutorService exec = Executors.newCachedThreadPool();
+        try {
+            List<Future<Transaction>> results = new ArrayList<>();
+            for (int i = 0; i < players.size(); i++) {
+                final SigningKey sk = players.get(i);
+                VerificationKey vk = sk.VerificationKey();
+
+                Map<VerificationKey, Send<Signed<Packet<VerificationKey, P>>>> net
+                        = new HashMap<>();
+                for (VerificationKey k : keys) {
+                    if (!k.equals(vk)) net.put(k, inboxes.get(k).receivesFrom(vk));
+                }
+
+                SessionMultiplexer<VerificationKey, P> mux
+                        = new SessionMultiplexer<>(inboxes.get(vk), net, 2);
+                Thread sorter = new Thread(mux);
+                sorter.start();
+                sorters.add(sorter);
+
+                for (int r = 0; r < rounds; r++) {
+                    final SessionMultiplexer<VerificationKey, P>.Mix mix
+                            = mux.open(sessions.get(r));
+                    final MockAddress addr = new MockAddress(100 * (r + 1) + i);
+
+                    MockCoin coin = new MockCoin();
+                    for (VerificationKey k : keys) {
+                        coin.put(k.address(), 20);
+                    }
+
+                    final CoinShuffle shuffle = new CoinShuffle(
+                            new Messages(mix.session, sk, mix.connected, mix.inbox),
+                            cryptos.get(r), coin);
+
+                    results.add(exec.submit(new Callable<Transaction>() {
+                        @Override
+                        public Transaction call() throws Exception {
+                            try {
+                                return shuffle.runProtocol(17, sk, keys, addr, null, null);
+                            } catch (Matrix m) {
+                                return null;
+                            } finally {
+                                mix.close();
+                            }
+                        }
+                    }));
+                }
+            }
+
+            // Every player comes to the same transaction in each round, and no two rounds
+            // come to the same one.
+            Set<Transaction> transactions = new HashSet<>();
+            for (Future<Transaction> result : results) {
+                Transaction t = result.get();
+                Assert.assertNotNull(t);
+                transactions.add(t);
+            }
+            Assert.assertEquals(rounds, transactions.size());
+        } finally {
+            exec.shutdownNow();
+            for (Inbox<VerificationKey, Signed<Packet<VerificationKey, P>>> inbox
+                    : inboxes.values()) {
+                inbox.close();
+            }
+            for (Thread sorter : sorters) {
+                sorter.join(1000);
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.shuffle.monitor;
+
+import com.shuffle.protocol.message.Phase;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the in-memory metrics.
+ */
+public class TestMetricsRegistry {
+
+    @Test
+    public void testTotals() {
+        MetricsRegistry registry = new MetricsRegistry();
+
+        registry.phase(Phase.Announcement, 100);
+        registry.phase(Phase.Blame, 20);
+        registry.phase(Phase.Blame, 30);
+
+        Assert.assertEquals(1, registry.phase(Phase.Announcement).count());
+        Assert.assertEquals(100, registry.phase(Phase.Announcement).sum());
+        Assert.assertEquals(2, registry.blameRounds());
+        Assert.assertEquals(50, registry.phase(Phase.Blame).sum());
+        Assert.assertEquals(0, registry.phase(Phase.Shuffling).count());
+
+        registry.operation(Metrics.Operation.Decrypt, 5, 1000);
+        registry.operation(Metrics.Operation.Decrypt, 3, 500);
+        Assert.assertEquals(8, registry.operation(Metrics.Operation.Decrypt).count());
+        Assert.assertEquals(1500, registry.operation(Metrics.Operation.Decrypt).sum());
+
+        Assert.assertNull(registry.traffic("alice"));
+        registry.sent("alice", 10);
+        registry.sent("alice", 20);
+        registry.received("alice", 7);
+        Assert.assertEquals(2, registry.traffic("alice").sent.count());
+        Assert.assertEquals(30, registry.traffic("alice").sent.sum());
+        Assert.assertEquals(1, registry.traffic("alice").received.count());
+        Assert.assertEquals(7, registry.traffic("alice").received.sum());
+
+        registry.queueDepth(3);
+        registry.queueDepth(9);
+        registry.queueDepth(2);
+        Assert.assertEquals(2, registry.queueDepth());
+        Assert.assertEquals(9, registry.maxQueueDepth());
+    }
+
+    @Test
+    public void testConcurrent() throws InterruptedException {
+        final MetricsRegistry registry = new MetricsRegistry();
+        final int threads = 4;
+        final int each = 10000;
+
+        Thread[] t = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            t[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < each; j++) {
+                        registry.sent("bob", 1);
+                        registry.operation(Metrics.Operation.Sign, 1, 1);
+                    }
+                }
+            });
+            t[i].start();
+        }
+
+        for (Thread thread : t) {
+            thread.join();
+        }
+
+        Assert.assertEquals(threads * each, registry.traffic("bob").sent.count());
+        Assert.assertEquals(threads * each, registry.operation(Metrics.Operation.Sign).sum());
+    }
+
+    @Test
+    public void testDump() throws InterruptedException {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.phase(Phase.Shuffling, 5);
+
+        ScheduledExecutorService exec = new ScheduledThreadPoolExecutor(1);
+        try {
+            ScheduledFuture<?> dump = registry.dump(exec, 10, TimeUnit.MILLISECONDS);
+            Thread.sleep(50);
+            Assert.assertFalse(dump.isDone());
+            dump.cancel(false);
+        } finally {
+            exec.shutdown();
+        }
+
+        Assert.assertTrue(registry.toString().contains("Shuffling: 1 / 5"));
+    }
+}
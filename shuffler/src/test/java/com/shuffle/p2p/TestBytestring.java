@@ -3,6 +3,12 @@ package com.shuffle.p2p;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.Arrays;
 
 /**
@@ -39,7 +45,7 @@ public class TestBytestring {
         Bytestring[] results = new Bytestring(input).chop(chop);
         byte[][] resultBAs = new byte[results.length][];
         for(int i=0; i<results.length; i++) {
-            resultBAs[i] = results[i].bytes;
+            resultBAs[i] = results[i].bytes();
         }
         String msg = "Chop test case; expected " + Arrays.deepToString(expected)
                 + "; result " + Arrays.deepToString(resultBAs);
@@ -88,4 +94,66 @@ public class TestBytestring {
     public void testChopFailsChoppingOutOfOrder() {
         chopTestCase(new byte[]{1, 3, 4}, new int[]{2, 1}, null);
     }
+
+    @Test
+    public void testSlice() throws IOException, ClassNotFoundException {
+        Bytestring b = new Bytestring(new byte[]{1, 2, 3, 4, 5});
+        Bytestring s = b.slice(1, 4);
+
+        Assert.assertEquals(3, s.length());
+        Assert.assertEquals(new Bytestring(new byte[]{2, 3, 4}), s);
+        Assert.assertEquals(new Bytestring(new byte[]{2, 3, 4}).hashCode(), s.hashCode());
+        Assert.assertEquals(new Bytestring(new byte[]{3}), s.slice(1, 2));
+        Assert.assertEquals(4, s.get(2));
+        Assert.assertEquals(3, s.buffer().remaining());
+        Assert.assertEquals(2, s.buffer().get());
+
+        // Only the slice is serialized.
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ObjectOutputStream(out).writeObject(s);
+        Object x = new ObjectInputStream(new ByteArrayInputStream(out.toByteArray())).readObject();
+        Assert.assertEquals(s, x);
+        Assert.assertEquals(3, ((Bytestring) x).bytes().length);
+    }
+
+    // Many joins in a row do not overflow the stack when the result is used.
+    @Test
+    public void testLongAppend() {
+        Bytestring b = new Bytestring(new byte[]{});
+        byte[] expected = new byte[100000];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = (byte) i;
+            b = b.append(new Bytestring(new byte[]{(byte) i}));
+        }
+
+        Assert.assertEquals(expected.length, b.length());
+        Assert.assertTrue(Arrays.equals(expected, b.bytes()));
+        Assert.assertEquals(new Bytestring(expected).hashCode(), b.hashCode());
+    }
+
+    @Test
+    public void testHashCode() {
+        // Strings with the same bytes in a different order should not collide.
+        Assert.assertNotEquals(
+                new Bytestring(new byte[]{1, 2}).hashCode(),
+                new Bytestring(new byte[]{2, 1}).hashCode());
+    }
+
+    // A serialized Bytestring that reaches past the end of its array is rejected.
+    @Test(expected = InvalidObjectException.class)
+    public void testBadSerialization() throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ObjectOutputStream(out).writeObject(new Bytestring(new byte[]{1, 2, 3}));
+        byte[] b = out.toByteArray();
+
+        // The fields length and offset are written one after the other. Make length 9.
+        byte[] fields = new byte[]{0, 0, 0, 3, 0, 0, 0, 0};
+        int i = 0;
+        while (!Arrays.equals(fields, Arrays.copyOfRange(b, i, i + fields.length))) {
+            i++;
+        }
+        b[i + 3] = 9;
+
+        new ObjectInputStream(new ByteArrayInputStream(b)).readObject();
+    }
 }
@@ -0,0 +1,191 @@
+package com.shuffle.p2p;
+
+import com.shuffle.chan.BasicChan;
+import com.shuffle.chan.Chan;
+import com.shuffle.chan.Send;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the non-blocking tcp channel.
+ */
+public class TestNioTcpChannel {
+
+    private static class TestListener implements Listener<InetSocketAddress, Bytestring> {
+        final Chan<Session<InetSocketAddress, Bytestring>> sessions = new BasicChan<>(2);
+        final Chan<Bytestring> received = new BasicChan<>(10);
+
+        @Override
+        public Send<Bytestring> newSession(Session<InetSocketAddress, Bytestring> session)
+                throws InterruptedException {
+
+            sessions.send(session);
+            return received;
+        }
+    }
+
+    NioTcpChannel a, b;
+    Connection<InetSocketAddress> ca, cb;
+    TestListener la, lb;
+
+    @Before
+    public void setup() throws UnknownHostException {
+        InetAddress local = InetAddress.getLocalHost();
+
+        a = new NioTcpChannel(new InetSocketAddress(local, 9987), 2);
+        b = new NioTcpChannel(new InetSocketAddress(local, 9988), 2);
+
+        la = new TestListener();
+        lb = new TestListener();
+
+        ca = a.open(la);
+        cb = b.open(lb);
+
+        Assert.assertNotNull(ca);
+        Assert.assertNotNull(cb);
+
+        // A channel cannot be opened twice.
+        Assert.assertNull(a.open(la));
+    }
+
+    @After
+    public void shutdown() throws InterruptedException {
+        ca.close();
+        cb.close();
+
+        Assert.assertTrue(ca.closed());
+        Assert.assertTrue(cb.closed());
+    }
+
+    @Test
+    public void testSendAndReceive() throws InterruptedException {
+        Chan<Bytestring> replies = new BasicChan<>(10);
+
+        Session<InetSocketAddress, Bytestring> ab
+                = a.getPeer(b.identity()).openSession(replies);
+        Assert.assertNotNull(ab);
+
+        // Only one session per peer is allowed.
+        Assert.assertNull(a.getPeer(b.identity()).openSession(replies));
+
+        Bytestring hello = new Bytestring(new byte[]{1, 2, 3});
+        Assert.assertTrue(ab.send(hello));
+
+        Session<InetSocketAddress, Bytestring> ba = lb.sessions.receive(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(ba);
+        Assert.assertEquals(hello, lb.received.receive(5, TimeUnit.SECONDS));
+
+        // A message too big to be written in one go.
+        byte[] big = new byte[1 << 19];
+        new Random(7).nextBytes(big);
+
+        Assert.assertTrue(ba.send(new Bytestring(big)));
+        Assert.assertTrue(ba.send(hello));
+
+        Bytestring r = replies.receive(10, TimeUnit.SECONDS);
+        Assert.assertNotNull(r);
+        Assert.assertTrue(Arrays.equals(big, r.bytes()));
+        Assert.assertEquals(hello, replies.receive(5, TimeUnit.SECONDS));
+
+        ab.close();
+        Assert.assertTrue(ab.closed());
+        Assert.assertFalse(ab.send(hello));
+
+        // The remote end finds out that the session was closed.
+        Assert.assertNull(lb.received.receive(5, TimeUnit.SECONDS));
+    }
+
+    // When a peer stops reading, send returns false once the queue is full rather than
+    // blocking or taking up more memory.
+    @Test
+    public void testBackpressure() throws InterruptedException, IOException {
+        InetAddress local = InetAddress.getLocalHost();
+        NioTcpChannel c = new NioTcpChannel(TcpChannel.defaultHeader(),
+                new InetSocketAddress(local, 9989), 1, 1 << 12);
+        Connection<InetSocketAddress> cc = c.open(new TestListener());
+        Assert.assertNotNull(cc);
+
+        // A peer who accepts the connection and then never reads anything.
+        ServerSocket server = new ServerSocket(0);
+        try {
+            Session<InetSocketAddress, Bytestring> session = c.getPeer(
+                    new InetSocketAddress(local, server.getLocalPort()))
+                    .openSession(new BasicChan<Bytestring>(1));
+            Assert.assertNotNull(session);
+            Socket accepted = server.accept();
+
+            Bytestring chunk = new Bytestring(new byte[1 << 16]);
+            boolean full = false;
+            for (int i = 0; i < 1000 && !full; i++) {
+                full = !session.send(chunk);
+            }
+            Assert.assertTrue(full);
+            Assert.assertFalse(session.closed());
+
+            accepted.close();
+        } finally {
+            server.close();
+            cc.close();
+        }
+    }
+
+    // A peer who says that a message is longer than any we accept is disconnected before
+    // we try to make room for it.
+    @Test
+    public void testFrameTooLong() throws InterruptedException, IOException {
+        Socket socket = new Socket(a.identity().getAddress(), a.identity().getPort());
+        try {
+            Assert.assertNotNull(la.sessions.receive(5, TimeUnit.SECONDS));
+
+            OutputStream out = socket.getOutputStream();
+            out.write(ByteBuffer.allocate(4).putInt(NioTcpChannel.MAX_FRAME + 1).array());
+            out.flush();
+
+            Assert.assertNull(la.received.receive(5, TimeUnit.SECONDS));
+            Assert.assertEquals(-1, socket.getInputStream().read());
+        } finally {
+            socket.close();
+        }
+
+        // Nor do we send such a message.
+        Session<InetSocketAddress, Bytestring> ab
+                = a.getPeer(b.identity()).openSession(new BasicChan<Bytestring>(1));
+        Assert.assertNotNull(ab);
+        Assert.assertFalse(ab.send(new Bytestring(new byte[NioTcpChannel.MAX_FRAME + 1])));
+        ab.close();
+    }
+
+    // Opening a session does not wait for the connection, and a session which cannot be
+    // connected is closed.
+    @Test
+    public void testConnectionRefused() throws InterruptedException, IOException {
+        ServerSocket server = new ServerSocket(0);
+        InetSocketAddress nobody = new InetSocketAddress(
+                InetAddress.getLocalHost(), server.getLocalPort());
+        server.close();
+
+        Chan<Bytestring> replies = new BasicChan<>(1);
+        Session<InetSocketAddress, Bytestring> session
+                = a.getPeer(nobody).openSession(replies);
+
+        if (session != null) {
+            Assert.assertNull(replies.receive(5, TimeUnit.SECONDS));
+            Assert.assertTrue(session.closed());
+        }
+    }
+}
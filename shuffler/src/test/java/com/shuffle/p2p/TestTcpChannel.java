@@ -11,8 +11,10 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.util.concurrent.Executor;
@@ -230,7 +232,7 @@ public class TestTcpChannel {
         public boolean send(Bytestring bytestring) throws InterruptedException {
             if (closed) return false;
 
-            byte[] bytes = bytestring.bytes;
+            byte[] bytes = bytestring.bytes();
 
             for (byte b : bytes) {
                 last = (last << 8) + b;
@@ -442,4 +444,44 @@ public class TestTcpChannel {
     public void testOnAndOff() {
 
     }
+
+    // A frame which arrives in pieces is put back together, and frames which arrive
+    // together are taken apart.
+    @Test
+    public void testFraming() throws IOException, InterruptedException {
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLocalHost(), 9996);
+        TcpChannel tcp = new TcpChannel(address, Executors.newCachedThreadPool());
+
+        final Chan<Bytestring> received = new BasicChan<>(3);
+        Connection<InetSocketAddress> c = tcp.open(new Listener<InetSocketAddress, Bytestring>() {
+            @Override
+            public Send<Bytestring> newSession(Session<InetSocketAddress, Bytestring> session) {
+                return received;
+            }
+        });
+        Assert.assertNotNull(c);
+
+        byte[] first = new byte[]{0, 0, 0, 5, 1, 2, 3, 4, 5};
+        byte[] second = new byte[]{0, 0, 0, 2, 6, 7, 0, 0, 0, 1, 8};
+
+        try (Socket socket = new Socket(address.getAddress(), address.getPort())) {
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+
+            for (int i = 0; i < first.length; i += 2) {
+                out.write(first, i, Math.min(2, first.length - i));
+                out.flush();
+                Thread.sleep(20);
+            }
+
+            out.write(second);
+            out.flush();
+
+            Assert.assertEquals(new Bytestring(new byte[]{1, 2, 3, 4, 5}), received.receive());
+            Assert.assertEquals(new Bytestring(new byte[]{6, 7}), received.receive());
+            Assert.assertEquals(new Bytestring(new byte[]{8}), received.receive());
+        } finally {
+            c.close();
+        }
+    }
 }
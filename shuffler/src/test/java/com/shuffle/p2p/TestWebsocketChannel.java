@@ -61,7 +61,7 @@ public class TestWebsocketChannel {
 
                     @Override
                     public boolean send(Bytestring bytestring) throws InterruptedException {
-                        TestWebsocketChannel.this.serverMessage = new String(bytestring.bytes);
+                        TestWebsocketChannel.this.serverMessage = new String(bytestring.bytes());
                         return true;
                     }
 
@@ -76,7 +76,7 @@ public class TestWebsocketChannel {
         final Send<Bytestring> clientReceiver = new Send<Bytestring>() {
             @Override
             public boolean send(Bytestring bytestring) throws InterruptedException {
-                TestWebsocketChannel.this.clientMessage = new String(bytestring.bytes);
+                TestWebsocketChannel.this.clientMessage = new String(bytestring.bytes());
                 return true;
             }
 
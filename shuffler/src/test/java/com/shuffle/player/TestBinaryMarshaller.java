@@ -0,0 +1,150 @@
+package com.shuffle.player;
+
+import com.shuffle.bitcoin.SigningKey;
+import com.shuffle.bitcoin.Transaction;
+import com.shuffle.bitcoin.VerificationKey;
+import com.shuffle.chan.BasicChan;
+import com.shuffle.chan.Inbox;
+import com.shuffle.chan.Send;
+import com.shuffle.chan.packet.JavaMarshaller;
+import com.shuffle.chan.packet.Marshaller;
+import com.shuffle.chan.packet.Packet;
+import com.shuffle.chan.packet.Signed;
+import com.shuffle.chan.packet.SignedMarshaller;
+import com.shuffle.mock.MockAddress;
+import com.shuffle.mock.MockCoin;
+import com.shuffle.mock.MockDecryptionKey;
+import com.shuffle.mock.MockEncryptionKey;
+import com.shuffle.mock.MockMarshallers;
+import com.shuffle.mock.MockSessionIdentifier;
+import com.shuffle.mock.MockSigningKey;
+import com.shuffle.p2p.Bytestring;
+import com.shuffle.protocol.FormatException;
+import com.shuffle.protocol.blame.Blame;
+import com.shuffle.protocol.message.Phase;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Queue;
+
+/**
+ * Tests for the binary marshaller.
+ */
+public class TestBinaryMarshaller {
+
+    private final SigningKey sk = new MockSigningKey(1);
+    private final VerificationKey vk = sk.VerificationKey();
+
+    private static BinaryMarshaller mock() {
+        return new BinaryMarshaller(
+                MockMarshallers.session,
+                MockMarshallers.verificationKey,
+                MockMarshallers.address,
+                MockMarshallers.encryptionKey,
+                MockMarshallers.decryptionKey,
+                new JavaMarshaller<Transaction>());
+    }
+
+    // The marshaller with which messages are signed.
+    private final BinaryMarshaller binary = mock();
+
+    private final Messages messages;
+
+    public TestBinaryMarshaller() throws IOException {
+        messages = new Messages(new MockSessionIdentifier("binary"), sk,
+                new HashMap<VerificationKey, Send<Signed<Packet<VerificationKey, P>>>>(),
+                new BasicChan<
+                        Inbox.Envelope<VerificationKey, Signed<Packet<VerificationKey, P>>>>(),
+                Messages.Settings.defaults.marshaller(binary));
+    }
+
+    private Messages.SignedPacket send(com.shuffle.protocol.message.Message m, Phase phase)
+            throws InterruptedException, IOException {
+
+        Messages.SignedPacket p = (Messages.SignedPacket) m.send(phase, vk);
+        Assert.assertNotNull(p);
+        return p;
+    }
+
+    private void roundTrip(Marshaller<Packet<VerificationKey, P>> bm, Messages.SignedPacket sp) {
+        Marshaller<Signed<Packet<VerificationKey, P>>> sm = new SignedMarshaller<>(bm);
+
+        Bytestring b = sm.marshall(sp.packet);
+        Assert.assertNotNull(b);
+
+        Signed<Packet<VerificationKey, P>> decoded = sm.unmarshall(b);
+        Assert.assertNotNull(decoded);
+
+        // Encoding again should give the same bytes, so that signatures can be checked.
+        Assert.assertEquals(b, sm.marshall(decoded));
+        Assert.assertEquals(sp.packet.signature, decoded.signature);
+        Assert.assertEquals(sp.packet.message.payload.phase, decoded.message.payload.phase);
+        Assert.assertTrue(vk.verify(binary.marshall(decoded.message), decoded.signature));
+    }
+
+    @Test
+    public void testRoundTrip() throws InterruptedException, IOException, FormatException {
+        MockCoin coin = new MockCoin();
+        coin.put(new MockAddress(1), 20);
+        Transaction t = coin.makeSpendingTransaction(new MockAddress(1), new MockAddress(2), 10);
+
+        Messages.SignedPacket announcement = send(messages.make()
+                .attach(new MockEncryptionKey(3)), Phase.Announcement);
+
+        Messages.SignedPacket shuffle = send(messages.make()
+                .attach(new MockEncryptionKey(4).encrypt(new MockAddress(5)))
+                .attach(new MockDecryptionKey(6).decrypt(new MockAddress(7)))
+                .attach(new MockAddress(8)), Phase.Shuffling);
+
+        byte[] digest = new byte[32];
+        Arrays.fill(digest, (byte) 9);
+        Messages.SignedPacket hash = send(messages.make()
+                .attach(new Bytestring(digest)), Phase.EquivocationCheck);
+
+        Messages.SignedPacket sig = send(messages.make()
+                .attach(new Bytestring(new byte[]{1, 2, 3})), Phase.VerificationAndSubmission);
+
+        Queue<com.shuffle.protocol.message.Packet> packets = new LinkedList<>();
+        packets.add(announcement);
+        packets.add(shuffle);
+
+        Messages.SignedPacket blame = send(messages.make()
+                .attach(Blame.DoubleSpend(new MockSigningKey(2).VerificationKey(), t))
+                .attach(Blame.InvalidSignature(vk, new Bytestring(new byte[]{4})))
+                .attach(Blame.ShuffleAndEquivocationFailure(new MockDecryptionKey(10), packets))
+                .attach(Blame.EquivocationFailure(packets)), Phase.Blame);
+
+        Messages.SignedPacket broadcast = (Messages.SignedPacket) messages.make()
+                .attach(new MockAddress(11)).broadcast(Phase.BroadcastOutput,
+                        Collections.singleton(vk));
+        Assert.assertNotNull(broadcast);
+        Assert.assertNull(broadcast.to());
+
+        for (BinaryMarshaller bm : new BinaryMarshaller[]{binary, new BinaryMarshaller()}) {
+            roundTrip(bm, broadcast);
+            roundTrip(bm, announcement);
+            roundTrip(bm, shuffle);
+            roundTrip(bm, hash);
+            roundTrip(bm, sig);
+            roundTrip(bm, blame);
+        }
+
+        // The binary format is supposed to be much smaller.
+        JavaMarshaller<Packet<VerificationKey, P>> jm = new JavaMarshaller<>();
+        Assert.assertTrue(binary.marshall(shuffle.packet.message).length() * 4
+                < jm.marshall(shuffle.packet.message).length());
+    }
+
+    @Test
+    public void testInvalid() {
+        Assert.assertNull(binary.unmarshall(new Bytestring(new byte[]{})));
+        Assert.assertNull(binary.unmarshall(new Bytestring(new byte[]{BinaryMarshaller.VERSION + 1})));
+        Assert.assertNull(binary.unmarshall(new Bytestring(new byte[]{BinaryMarshaller.VERSION, 4, 0})));
+    }
+}
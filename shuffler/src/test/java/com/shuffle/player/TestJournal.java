@@ -0,0 +1,375 @@
+package com.shuffle.player;
+
+import com.shuffle.bitcoin.Crypto;
+import com.shuffle.bitcoin.DecryptionKey;
+import com.shuffle.bitcoin.SigningKey;
+import com.shuffle.bitcoin.Transaction;
+import com.shuffle.bitcoin.VerificationKey;
+import com.shuffle.chan.BasicInbox;
+import com.shuffle.chan.IgnoreSend;
+import com.shuffle.chan.Inbox;
+import com.shuffle.chan.Send;
+import com.shuffle.chan.packet.JavaMarshaller;
+import com.shuffle.chan.packet.Marshaller;
+import com.shuffle.chan.packet.Packet;
+import com.shuffle.chan.packet.SessionIdentifier;
+import com.shuffle.chan.packet.Signed;
+import com.shuffle.mock.InsecureRandom;
+import com.shuffle.mock.MockAddress;
+import com.shuffle.mock.MockCoin;
+import com.shuffle.mock.MockCrypto;
+import com.shuffle.mock.MockSessionIdentifier;
+import com.shuffle.mock.MockSigningKey;
+import com.shuffle.protocol.CoinShuffle;
+import com.shuffle.protocol.blame.Matrix;
+import com.shuffle.protocol.message.Phase;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests for the journal with which a round can be resumed.
+ */
+public class TestJournal {
+
+    private final Marshaller<Packet<VerificationKey, P>> marshaller = new JavaMarshaller<>();
+
+    // What is recorded comes back the same way, and a record that was only partly written
+    // is thrown away.
+    @Test
+    public void testRecords() throws IOException, InterruptedException {
+        File file = File.createTempFile("journal", ".log");
+        file.deleteOnExit();
+
+        Journal journal = new Journal(file, marshaller);
+        Assert.assertEquals(Phase.Uninitiated, journal.phase());
+        if (Files.getFileStore(file.toPath()).supportsFileAttributeView("posix")) {
+            Assert.assertEquals("rw-------", PosixFilePermissions.toString(
+                    Files.getPosixFilePermissions(file.toPath())));
+        }
+        Assert.assertFalse(journal.replaying());
+
+        Crypto crypto = journal.crypto(new MockCrypto(new InsecureRandom(3)));
+        Send<Phase> phases = journal.phases(null);
+
+        DecryptionKey dk = crypto.makeDecryptionKey();
+        List<Integer> randoms = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) {
+            randoms.add(crypto.getRandom(i));
+        }
+        phases.send(Phase.Announcement);
+        phases.send(Phase.Shuffling);
+        journal.close();
+
+        // Half a record, as if the process stopped while it was being written.
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[]{1, 0, 0, 0, 100, 0});
+        out.close();
+
+        journal = new Journal(file, marshaller);
+        Assert.assertEquals(Phase.Shuffling, journal.phase());
+        Assert.assertTrue(journal.replaying());
+
+        // Another crypto gives the same results as the first.
+        crypto = journal.crypto(new MockCrypto(new InsecureRandom(4)));
+        phases = journal.phases(null);
+
+        Assert.assertEquals(dk.EncryptionKey(), crypto.makeDecryptionKey().EncryptionKey());
+        for (int i = 1; i <= 10; i++) {
+            Assert.assertEquals(randoms.get(i - 1), (Integer) crypto.getRandom(i));
+        }
+        phases.send(Phase.Announcement);
+        phases.send(Phase.Shuffling);
+        Assert.assertFalse(journal.replaying());
+
+        // New records go after the old ones.
+        phases.send(Phase.BroadcastOutput);
+        journal.close();
+
+        journal = new Journal(file, marshaller);
+        Assert.assertEquals(Phase.BroadcastOutput, journal.phase());
+        journal.close();
+    }
+
+    private static MockCoin funded(SortedSet<VerificationKey> keys) {
+        MockCoin coin = new MockCoin();
+        for (VerificationKey vk : keys) {
+            coin.put(vk.address(), 20);
+        }
+        return coin;
+    }
+
+    // A player who runs a round again from the journal of a round that is finished goes
+    // through it without hearing from anyone and comes to the same transaction.
+    @Test
+    public void testResume() throws Exception, Matrix {
+        final SessionIdentifier session = new MockSessionIdentifier("journal");
+        final SortedSet<VerificationKey> keys = new TreeSet<>();
+        final List<SigningKey> players = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            SigningKey sk = new MockSigningKey(i);
+            players.add(sk);
+            keys.add(sk.VerificationKey());
+        }
+
+        Map<VerificationKey, Inbox<VerificationKey, Signed<Packet<VerificationKey, P>>>> inboxes
+                = new HashMap<>();
+        for (VerificationKey vk : keys) {
+            inboxes.put(vk,
+                    new BasicInbox<VerificationKey, Signed<Packet<VerificationKey, P>>>(100));
+        }
+
+        File file = File.createTempFile("journal", ".log");
+        file.deleteOnExit();
+        final Journal journal = new Journal(file, marshaller);
+        final Crypto crypto = new MockCrypto(new InsecureRandom(17));
+        final SigningKey resumed = players.get(1);
+
+        ExecutorService exec = Executors.newCachedThreadPool();
+        Map<SigningKey, Future<Transaction>> results = new HashMap<>();
+        try {
+            for (int i = 0; i < players.size(); i++) {
+                final SigningKey sk = players.get(i);
+                final VerificationKey vk = sk.VerificationKey();
+                final MockAddress addr = new MockAddress(100 + i);
+
+                Map<VerificationKey, Send<Signed<Packet<VerificationKey, P>>>> net
+                        = new HashMap<>();
+                for (VerificationKey k : keys) {
+                    if (!k.equals(vk)) net.put(k, inboxes.get(k).receivesFrom(vk));
+                }
+
+                final CoinShuffle shuffle;
+                if (sk.equals(resumed)) {
+                    shuffle = new CoinShuffle(new Messages(session, sk, net, inboxes.get(vk),
+                            Messages.Settings.defaults.marshaller(marshaller).journal(journal)),
+                            journal.crypto(crypto), funded(keys));
+                } else {
+                    shuffle = new CoinShuffle(new Messages(session, sk, net, inboxes.get(vk)),
+                            crypto, funded(keys));
+                }
+
+                results.put(sk, exec.submit(new Callable<Transaction>() {
+                    @Override
+                    public Transaction call() throws Exception {
+                        try {
+                            return shuffle.runProtocol(17, sk, keys, addr, null,
+                                    sk.equals(resumed) ? journal.phases(null) : null);
+                        } catch (Matrix m) {
+                            return null;
+                        }
+                    }
+                }));
+            }
+
+            for (Future<Transaction> result : results.values()) {
+                Assert.assertNotNull(result.get());
+            }
+        } finally {
+            exec.shutdownNow();
+        }
+        journal.close();
+
+        Transaction t = results.get(resumed).get();
+
+        // Nothing comes in and everything that goes out is thrown away.
+        Journal again = new Journal(file, marshaller);
+        Assert.assertEquals(Phase.Completed, again.phase());
+
+        VerificationKey vk = resumed.VerificationKey();
+        Map<VerificationKey, Send<Signed<Packet<VerificationKey, P>>>> net = new HashMap<>();
+        for (VerificationKey k : keys) {
+            if (!k.equals(vk)) net.put(k, new IgnoreSend<Signed<Packet<VerificationKey, P>>>());
+        }
+
+        Transaction resumedTransaction = new CoinShuffle(
+                new Messages(session, resumed, net,
+                        new BasicInbox<VerificationKey, Signed<Packet<VerificationKey, P>>>(100),
+                        Messages.Settings.defaults.marshaller(marshaller).journal(again)),
+                again.crypto(new MockCrypto(new InsecureRandom(18))), funded(keys)
+        ).runProtocol(17, resumed, keys, new MockAddress(101), null, again.phases(null));
+
+        Assert.assertEquals(t, resumedTransaction);
+        Assert.assertFalse(again.replaying());
+        again.close();
+    }
+
+    // Thrown to stop a player as though their process had died.
+    private static class Crash extends RuntimeException {
+    }
+
+    // A player stops in the middle of a round while the others wait for them, and then
+    // resumes it from the journal. The others drop the packets that they are sent twice and
+    // the round is completed by everyone.
+    @Test
+    public void testResumeMidRound() throws Exception, Matrix {
+        final SessionIdentifier session = new MockSessionIdentifier("journal mid-round");
+        final SortedSet<VerificationKey> keys = new TreeSet<>();
+        final List<SigningKey> players = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            SigningKey sk = new MockSigningKey(i);
+            players.add(sk);
+            keys.add(sk.VerificationKey());
+        }
+
+        Map<VerificationKey, Inbox<VerificationKey, Signed<Packet<VerificationKey, P>>>> inboxes
+                = new HashMap<>();
+        for (VerificationKey vk : keys) {
+            inboxes.put(vk,
+                    new BasicInbox<VerificationKey, Signed<Packet<VerificationKey, P>>>(100));
+        }
+
+        final SigningKey resumed = players.get(1);
+        final VerificationKey first = players.get(0).VerificationKey();
+
+        // Everything that the resumed player sends to the first player.
+        final List<Signed<Packet<VerificationKey, P>>> toFirst
+                = Collections.synchronizedList(new ArrayList<Signed<Packet<VerificationKey, P>>>());
+
+        final Map<SigningKey, Map<VerificationKey, Send<Signed<Packet<VerificationKey, P>>>>>
+                nets = new HashMap<>();
+        for (SigningKey sk : players) {
+            VerificationKey vk = sk.VerificationKey();
+            Map<VerificationKey, Send<Signed<Packet<VerificationKey, P>>>> net = new HashMap<>();
+            for (VerificationKey k : keys) {
+                if (k.equals(vk)) continue;
+
+                final Send<Signed<Packet<VerificationKey, P>>> send
+                        = inboxes.get(k).receivesFrom(vk);
+                if (sk.equals(resumed) && k.equals(first)) {
+                    net.put(k, new Send<Signed<Packet<VerificationKey, P>>>() {
+                        @Override
+                        public boolean send(Signed<Packet<VerificationKey, P>> x)
+                                throws InterruptedException {
+
+                            toFirst.add(x);
+                            return send.send(x);
+                        }
+
+                        @Override
+                        public void close() throws InterruptedException {
+                            send.close();
+                        }
+                    });
+                } else {
+                    net.put(k, send);
+                }
+            }
+            nets.put(sk, net);
+        }
+
+        File file = File.createTempFile("journal", ".log");
+        file.deleteOnExit();
+        final Crypto crypto = new MockCrypto(new InsecureRandom(23));
+        final long timeout = 5000;
+
+        ExecutorService exec = Executors.newCachedThreadPool();
+        try {
+            Map<SigningKey, Future<Transaction>> results = new HashMap<>();
+            for (int i = 0; i < players.size(); i++) {
+                final SigningKey sk = players.get(i);
+                final MockAddress addr = new MockAddress(100 + i);
+                final Journal journal = sk.equals(resumed) ? new Journal(file, marshaller) : null;
+
+                final CoinShuffle shuffle = new CoinShuffle(journal == null
+                        ? new Messages(session, sk, nets.get(sk), inboxes.get(sk.VerificationKey()))
+                        : new Messages(session, sk, nets.get(sk), inboxes.get(sk.VerificationKey()),
+                                Messages.Settings.defaults.marshaller(marshaller).journal(journal)),
+                        journal == null ? crypto : journal.crypto(crypto), funded(keys),
+                        CoinShuffle.Settings.defaults.timeout(timeout));
+
+                // The resumed player stops when they get to the equivocation check, without
+                // closing the journal.
+                final Send<Phase> crash = new Send<Phase>() {
+                    @Override
+                    public boolean send(Phase phase) {
+                        if (phase == Phase.EquivocationCheck) throw new Crash();
+                        return true;
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                };
+
+                results.put(sk, exec.submit(new Callable<Transaction>() {
+                    @Override
+                    public Transaction call() throws Exception {
+                        try {
+                            return shuffle.runProtocol(17, sk, keys, addr, null,
+                                    journal == null ? null : journal.phases(crash));
+                        } catch (Matrix m) {
+                            return null;
+                        }
+                    }
+                }));
+            }
+
+            try {
+                results.get(resumed).get();
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof Crash);
+            }
+            int before = toFirst.size();
+
+            // Start again, connected to the others as before.
+            final Journal journal = new Journal(file, marshaller);
+            Assert.assertEquals(Phase.BroadcastOutput, journal.phase());
+            Transaction t = new CoinShuffle(
+                    new Messages(session, resumed, nets.get(resumed),
+                            inboxes.get(resumed.VerificationKey()),
+                            Messages.Settings.defaults.marshaller(marshaller).journal(journal)),
+                    journal.crypto(new MockCrypto(new InsecureRandom(24))), funded(keys),
+                    CoinShuffle.Settings.defaults.timeout(timeout)
+            ).runProtocol(17, resumed, keys, new MockAddress(101), null, journal.phases(null));
+            Assert.assertNotNull(t);
+            Assert.assertFalse(journal.replaying());
+            journal.delete();
+            Assert.assertFalse(file.exists());
+
+            for (SigningKey sk : players) {
+                if (sk.equals(resumed)) continue;
+                Assert.assertEquals(t, results.get(sk).get());
+            }
+
+            // Everything sent before the crash was sent again, and what was sent after it
+            // is numbered on from there.
+            Set<Signed<Packet<VerificationKey, P>>> distinct = new HashSet<>(toFirst);
+            Assert.assertTrue(toFirst.size() >= 2 * before);
+            Assert.assertTrue(distinct.size() > before);
+
+            List<Integer> numbers = new ArrayList<>();
+            for (Signed<Packet<VerificationKey, P>> packet : distinct) {
+                Assert.assertNull(packet.message.to);
+                numbers.add(packet.message.sequenceNumber);
+            }
+            Collections.sort(numbers);
+            for (int i = 0; i < numbers.size(); i++) {
+                Assert.assertEquals(i, (int) numbers.get(i));
+            }
+        } finally {
+            exec.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.shuffle.player;
+
+import com.shuffle.chan.packet.JavaMarshaller;
+import com.shuffle.mock.MockAddress;
+import com.shuffle.mock.MockEncryptionKey;
+import com.shuffle.mock.MockSessionIdentifier;
+import com.shuffle.mock.MockVerificationKey;
+import com.shuffle.protocol.FormatException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for messages which share their atoms.
+ */
+public class TestMessage {
+
+    private final Message empty
+            = new Message(new MockSessionIdentifier("message"), new MockVerificationKey(1), null);
+
+    private static void check(com.shuffle.protocol.message.Message m, int... addrs)
+            throws FormatException {
+
+        for (int i : addrs) {
+            Assert.assertFalse(m.isEmpty());
+            Assert.assertEquals(new MockAddress(i), m.readAddress());
+            m = m.rest();
+        }
+
+        Assert.assertTrue(m.isEmpty());
+    }
+
+    @Test
+    public void testAttach() throws FormatException {
+        com.shuffle.protocol.message.Message m = empty;
+        for (int i = 0; i < 100; i++) {
+            m = m.attach(new MockAddress(i));
+        }
+
+        int[] expected = new int[100];
+        for (int i = 0; i < 100; i++) expected[i] = i;
+        check(m, expected);
+        check(empty);
+
+        // Attaching different things to the same message gives different messages.
+        com.shuffle.protocol.message.Message a = empty.attach(new MockAddress(1));
+        com.shuffle.protocol.message.Message b = a.attach(new MockAddress(2));
+        com.shuffle.protocol.message.Message c = a.attach(new MockAddress(3));
+        com.shuffle.protocol.message.Message d = b.rest().attach(new MockAddress(4));
+
+        check(a, 1);
+        check(b, 1, 2);
+        check(c, 1, 3);
+        check(d, 2, 4);
+
+        Assert.assertEquals(b, empty.attach(new MockAddress(1)).attach(new MockAddress(2)));
+        Assert.assertNotEquals(b, c);
+
+        try {
+            empty.readAddress();
+            Assert.fail();
+        } catch (FormatException e) {
+            // Expected.
+        }
+
+        try {
+            a.readEncryptionKey();
+            Assert.fail();
+        } catch (FormatException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testSerialize() throws FormatException {
+        JavaMarshaller<Message> jm = new JavaMarshaller<>();
+
+        // Only the part of the buffer which belongs to the message should be written.
+        Message m = (Message) empty.attach(new MockAddress(1)).attach(new MockAddress(2))
+                .attach(new MockEncryptionKey(3)).rest();
+
+        Message n = jm.unmarshall(jm.marshall(m));
+        Assert.assertEquals(m, n);
+
+        check(n.rest().rest().attach(new MockAddress(5)), 5);
+        Assert.assertEquals(new MockAddress(2), n.readAddress());
+    }
+}
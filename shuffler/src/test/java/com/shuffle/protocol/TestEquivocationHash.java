@@ -0,0 +1,118 @@
+package com.shuffle.protocol;
+
+import com.shuffle.bitcoin.Address;
+import com.shuffle.bitcoin.EncryptionKey;
+import com.shuffle.bitcoin.VerificationKey;
+import com.shuffle.mock.MockAddress;
+import com.shuffle.mock.MockEncryptionKey;
+import com.shuffle.mock.MockMarshallers;
+import com.shuffle.mock.MockVerificationKey;
+import com.shuffle.p2p.Bytestring;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Tests for the digest compared in the equivocation check.
+ */
+public class TestEquivocationHash {
+
+    private static EquivocationHash hash() {
+        return CoinShuffle.Settings.defaults.equivocationHash();
+    }
+
+    @Test
+    public void testEquivocationHash() {
+        Map<Integer, VerificationKey> players = new TreeMap<>();
+        Map<VerificationKey, EncryptionKey> keys = new HashMap<>();
+        for (int i = 1; i <= 4; i++) {
+            VerificationKey vk = new MockVerificationKey(i);
+            players.put(i, vk);
+            if (i > 1) keys.put(vk, new MockEncryptionKey(i));
+        }
+
+        List<Address> addresses = new LinkedList<>();
+        for (int i = 1; i <= 4; i++) {
+            addresses.add(new MockAddress(i + 10));
+        }
+
+        Bytestring digest
+                = hash().keys(players, keys).addresses(addresses).digest();
+
+        // The digest is the same size however much went into it.
+        Assert.assertEquals(32, digest.length());
+        Assert.assertEquals(32, hash().digest().length());
+
+        // Adding things one at a time as they arrive gives the same digest.
+        EquivocationHash streamed = hash();
+        for (int i = 2; i <= 4; i++) {
+            streamed.addKey(new MockEncryptionKey(i));
+        }
+        for (Address address : addresses) {
+            streamed.addAddress(address);
+        }
+        Assert.assertEquals(digest, streamed.digest());
+
+        // A different key, a different order of addresses, or a key in place of an address
+        // all give a different digest.
+        keys.put(players.get(3), new MockEncryptionKey(7));
+        Assert.assertNotEquals(digest,
+                hash().keys(players, keys).addresses(addresses).digest());
+        keys.put(players.get(3), new MockEncryptionKey(3));
+
+        addresses.add(addresses.remove(0));
+        Assert.assertNotEquals(digest,
+                hash().keys(players, keys).addresses(addresses).digest());
+
+        Assert.assertNotEquals(hash().addKey(new MockEncryptionKey(1)).digest(),
+                hash().addAddress(new MockAddress(1)).digest());
+
+        // Nothing can be added once the digest has been taken.
+        try {
+            streamed.addAddress(new MockAddress(1));
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    // The digest depends only on how keys and addresses are marshalled, not on how they
+    // are printed.
+    @Test
+    public void testEncoding() {
+        MockEncryptionKey ek = new MockEncryptionKey(2);
+        MockEncryptionKey printedDifferently = new MockEncryptionKey(2) {
+            @Override
+            public String toString() {
+                return "another key";
+            }
+        };
+
+        CoinShuffle.Settings binary = CoinShuffle.Settings.defaults
+                .encoding(MockMarshallers.encryptionKey, MockMarshallers.address);
+
+        Assert.assertEquals(binary.equivocationHash().addKey(ek).digest(),
+                binary.equivocationHash().addKey(printedDifferently).digest());
+        Assert.assertNotEquals(binary.equivocationHash().addKey(ek).digest(),
+                hash().addKey(ek).digest());
+
+        // Something that cannot be marshalled cannot be hashed.
+        try {
+            binary.equivocationHash().addKey(new EncryptionKey() {
+                @Override
+                public Address encrypt(Address m) {
+                    return m;
+                }
+            });
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}
@@ -20,6 +20,7 @@ import com.shuffle.mock.MockSigningKey;
 import com.shuffle.mock.MockVerificationKey;
 import com.shuffle.chan.packet.SessionIdentifier;
 import com.shuffle.player.P;
+import com.shuffle.protocol.blame.Blame;
 import com.shuffle.protocol.blame.BlameException;
 import com.shuffle.protocol.message.Phase;
 
@@ -31,6 +32,7 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
@@ -87,12 +89,18 @@ public class TestMailbox {
             new Mailbox(me.VerificationKey(), players, messages
             ).broadcast(messages.make(), Phase.Shuffling);
 
+            // Everyone gets the same packet, which is signed once.
+            Signed<Packet<VerificationKey, P>> first = null;
             for (Inbox.Envelope<VerificationKey, Signed<Packet<VerificationKey, P>>> sent
                     : network.getResponses()) {
 
                 VerificationKey sentTo = sent.from;
                 Assert.assertTrue(players.contains(sentTo));
                 players.remove(sentTo);
+
+                Assert.assertTrue(sent.payload.message.broadcast());
+                if (first == null) first = sent.payload;
+                Assert.assertSame(first, sent.payload);
             }
 
             Assert.assertTrue(players.contains(me.VerificationKey()));
@@ -384,4 +392,52 @@ public class TestMailbox {
             i++;
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testReceiveAllBlame() throws InterruptedException, IOException {
+        SortedSet<SigningKey> keys = new TreeSet<>();
+        Set<VerificationKey> players = new HashSet<>();
+        for (int i = 1; i <= 3; i++) {
+            SigningKey k = new MockSigningKey(i);
+            keys.add(k);
+            players.add(k.VerificationKey());
+        }
+
+        VerificationKey me = new MockVerificationKey(1);
+        VerificationKey two = new MockVerificationKey(2);
+        VerificationKey three = new MockVerificationKey(3);
+
+        for (int test = 0; test < 2; test++) {
+            MockNetwork network = new MockNetwork(
+                    new MockSessionIdentifier("receiveAllBlame" + test), new MockSigningKey(1), keys, 100);
+
+            // A shuffle failure is always followed by another blame message.
+            network.messages(two).make().attach(Blame.ShuffleFailure(three)).send(Phase.Blame, me);
+            network.messages(two).make().attach(Blame.NoFundsAtAll(three)).send(Phase.Blame, me);
+
+            // The second time, player three never answers.
+            if (test == 0) {
+                network.messages(three).make().attach(Blame.NoFundsAtAll(two)).send(Phase.Blame, me);
+            }
+
+            long timeout = test == 0 ? 10000 : 200;
+            Mailbox mailbox = new Mailbox(me, players, network.messages(me),
+                    CoinShuffle.Settings.defaults.timeout(timeout));
+
+            long start = System.currentTimeMillis();
+            Map<VerificationKey, Queue<com.shuffle.protocol.message.Packet>> blame
+                    = mailbox.receiveAllBlame();
+            long elapsed = System.currentTimeMillis() - start;
+
+            Assert.assertEquals(2, blame.get(two).size());
+            Assert.assertEquals(1 - test, blame.get(three).size());
+
+            if (test == 0) {
+                // We didn't wait for the phase to time out.
+                Assert.assertTrue(elapsed < timeout / 2);
+            } else {
+                Assert.assertTrue(elapsed >= timeout);
+            }
+        }
+    }
+}
@@ -24,8 +24,10 @@ import com.shuffle.mock.MockSessionIdentifier;
 import com.shuffle.mock.MockSigningKey;
 import com.shuffle.mock.MockVerificationKey;
 import com.shuffle.mock.RandomSequence;
+import com.shuffle.monitor.MetricsRegistry;
 import com.shuffle.chan.packet.SessionIdentifier;
 import com.shuffle.protocol.message.Message;
+import com.shuffle.protocol.message.Phase;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
@@ -44,6 +46,7 @@ import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Tests the methods in the shuffle machine other than the main ones.
@@ -322,7 +325,7 @@ public class TestShuffleMachineMethods {
                     queue = queue.attach(new MockAddress(i));
                 }
 
-                this.input.add(queue.hashed());
+                this.input.add(queue);
             }
 
             this.expected = expected;
@@ -391,6 +394,18 @@ public class TestShuffleMachineMethods {
             SortedSet<SigningKey> others,
             Crypto crypto, Mailbox mailbox) throws InvalidParticipantSetException {
 
+        return standardTestInitialization(
+                session, me, addr, others, crypto, mailbox, Decryption.sequential);
+    }
+
+    private CoinShuffle.Round standardTestInitialization(
+            SessionIdentifier session,
+            int me,
+            Address addr,
+            SortedSet<SigningKey> others,
+            Crypto crypto, Mailbox mailbox,
+            Decryption decryption) throws InvalidParticipantSetException {
+
         int i = 1;
         Map<Integer, VerificationKey> players = new HashMap<>();
         for (SigningKey key : others) {
@@ -405,7 +420,7 @@ public class TestShuffleMachineMethods {
         MockNetwork net = new MockNetwork(session, sk, others, 100);
 
         CoinShuffle shuffle = new CoinShuffle(net.messages(sk.VerificationKey()),
-                crypto, new MockCoin());
+                crypto, new MockCoin(), CoinShuffle.Settings.defaults.decryption(decryption));
 
         return shuffle.new Round(
                 new CoinShuffle.CurrentPhase(), amount, sk, players, addr, null, mailbox
@@ -416,10 +431,11 @@ public class TestShuffleMachineMethods {
     public void testDecryptAll() throws WaitingException, InterruptedException, IOException {
 
         MockCrypto crypto = new MockCrypto(new InsecureRandom(56));
+        Decryption parallel = new Decryption.Parallel(new ForkJoinPool(4), 1);
 
         // Success cases.
         try {
-            for (int i = 0; i <= 5; i++) {
+            for (int i = 0; i <= 11; i++) {
 
                 // Set up a session identifier and signing key.
                 SessionIdentifier session
@@ -455,8 +471,10 @@ public class TestShuffleMachineMethods {
                 Mailbox mailbox
                         = new Mailbox(sk.VerificationKey(), playersPublic, messages);
 
+                // Every other time, decrypt in parallel. The output must be the same.
                 CoinShuffle.Round round = standardTestInitialization(
-                        session, 1, new MockAddress(-1), players, crypto, mailbox
+                        session, 1, new MockAddress(-1), players, crypto, mailbox,
+                        i % 2 == 0 ? Decryption.sequential : parallel
                 );
 
                 Message result = round.decryptAll(input, dk, i + 1);
@@ -569,4 +587,20 @@ public class TestShuffleMachineMethods {
             Assert.fail(e.toString());
         }
     }
+
+    // The last phase of a round is reported when the round ends, even if that phase is blame.
+    @Test
+    public void testPhaseMetrics() throws InterruptedException {
+        MetricsRegistry metrics = new MetricsRegistry();
+        CoinShuffle.CurrentPhase machine = new CoinShuffle.CurrentPhase(null, metrics);
+
+        machine.set(Phase.Announcement);
+        machine.set(Phase.Blame);
+        Assert.assertEquals(1, metrics.phase(Phase.Announcement).count());
+        Assert.assertEquals(0, metrics.blameRounds());
+
+        machine.end();
+        machine.end();
+        Assert.assertEquals(1, metrics.blameRounds());
+    }
 }
@@ -0,0 +1,152 @@
+package com.shuffle.protocol;
+
+import com.shuffle.bitcoin.SigningKey;
+import com.shuffle.bitcoin.VerificationKey;
+import com.shuffle.mock.MockEncryptionKey;
+import com.shuffle.mock.MockSessionIdentifier;
+import com.shuffle.mock.MockSigningKey;
+import com.shuffle.mock.MockVerificationKey;
+import com.shuffle.protocol.blame.Blame;
+import com.shuffle.protocol.message.Phase;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the adaptive timeouts.
+ */
+public class TestTimeouts {
+    private static final long ms = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testAdaptive() {
+        VerificationKey fast = new MockVerificationKey(1);
+        VerificationKey slow = new MockVerificationKey(2);
+
+        Timeouts timeouts = new Timeouts.Adaptive(1000, 100, 8000);
+
+        // Before we know anything, we wait for the initial timeout.
+        Assert.assertEquals(1000 * ms, timeouts.timeout(fast, Phase.Shuffling));
+
+        // A player who always answers quickly is given the minimum.
+        for (int i = 0; i < 50; i++) {
+            timeouts.arrived(fast, Phase.Shuffling, 5 * ms);
+        }
+        Assert.assertEquals(100 * ms, timeouts.timeout(fast, Phase.Shuffling));
+
+        // What we learn in one phase does not apply to the others.
+        Assert.assertEquals(1000 * ms, timeouts.timeout(fast, Phase.Announcement));
+
+        // A player who takes longer is given longer, with some room to spare.
+        for (int i = 0; i < 50; i++) {
+            timeouts.arrived(slow, Phase.Shuffling, (i % 2 == 0 ? 1500 : 2500) * ms);
+        }
+        long t = timeouts.timeout(slow, Phase.Shuffling);
+        Assert.assertTrue(t > 2500 * ms);
+        Assert.assertTrue(t < 8000 * ms);
+
+        // Each time a player does not answer, we wait twice as long, up to the maximum.
+        timeouts.expired(fast, Phase.Shuffling);
+        Assert.assertEquals(200 * ms, timeouts.timeout(fast, Phase.Shuffling));
+        timeouts.expired(fast, Phase.Shuffling);
+        Assert.assertEquals(400 * ms, timeouts.timeout(fast, Phase.Shuffling));
+        for (int i = 0; i < 100; i++) {
+            timeouts.expired(fast, Phase.Shuffling);
+        }
+        Assert.assertEquals(8000 * ms, timeouts.timeout(fast, Phase.Shuffling));
+
+        // An answer ends the backoff.
+        timeouts.arrived(fast, Phase.Shuffling, 5 * ms);
+        Assert.assertEquals(100 * ms, timeouts.timeout(fast, Phase.Shuffling));
+    }
+
+    // The mailbox waits only as long as the players it is waiting for need.
+    @Test
+    public void testMailbox() throws InterruptedException, IOException {
+        SortedSet<SigningKey> keys = new TreeSet<>();
+        Set<VerificationKey> players = new HashSet<>();
+        for (int i = 1; i <= 3; i++) {
+            SigningKey k = new MockSigningKey(i);
+            keys.add(k);
+            players.add(k.VerificationKey());
+        }
+
+        VerificationKey me = new MockVerificationKey(1);
+        VerificationKey two = new MockVerificationKey(2);
+        VerificationKey three = new MockVerificationKey(3);
+
+        Timeouts timeouts = new Timeouts.Adaptive(2000, 100, 10000);
+        for (int i = 0; i < 20; i++) {
+            timeouts.arrived(two, Phase.Shuffling, ms);
+        }
+
+        MockNetwork network = new MockNetwork(
+                new MockSessionIdentifier("timeouts"), new MockSigningKey(1), keys, 100);
+        Mailbox mailbox = new Mailbox(me, players, network.messages(me),
+                CoinShuffle.Settings.defaults.timeouts(timeouts));
+
+        // Player two is quick, so we don't wait long for them.
+        long start = System.nanoTime();
+        try {
+            mailbox.receiveFrom(two, Phase.Shuffling);
+            Assert.fail();
+        } catch (WaitingException e) {
+            // Expected.
+        } catch (Exception e) {
+            Assert.fail();
+        }
+        long elapsed = System.nanoTime() - start;
+        Assert.assertTrue(elapsed >= 100 * ms);
+        Assert.assertTrue(elapsed < 1000 * ms);
+
+        // Next time we wait longer.
+        Assert.assertEquals(200 * ms, timeouts.timeout(two, Phase.Shuffling));
+
+        // A message that arrives is measured.
+        network.messages(three).make().attach(new MockEncryptionKey(3)).send(Phase.Announcement, me);
+        try {
+            mailbox.receiveFrom(three, Phase.Announcement);
+        } catch (Exception e) {
+            Assert.fail();
+        }
+        Assert.assertTrue(timeouts.timeout(three, Phase.Announcement) < 2000 * ms);
+    }
+
+    // Waiting a second time in the same phase gives the players as long again as the
+    // first time, rather than however much of the first wait was left.
+    @Test
+    public void testDeadlinePerCall() throws InterruptedException, IOException {
+        SortedSet<SigningKey> keys = new TreeSet<>();
+        Set<VerificationKey> players = new HashSet<>();
+        for (int i = 1; i <= 3; i++) {
+            SigningKey k = new MockSigningKey(i);
+            keys.add(k);
+            players.add(k.VerificationKey());
+        }
+
+        VerificationKey me = new MockVerificationKey(1);
+        VerificationKey two = new MockVerificationKey(2);
+        VerificationKey three = new MockVerificationKey(3);
+
+        MockNetwork network = new MockNetwork(
+                new MockSessionIdentifier("deadline"), new MockSigningKey(1), keys, 100);
+        Mailbox mailbox = new Mailbox(me, players, network.messages(me),
+                CoinShuffle.Settings.defaults.timeout(200));
+
+        // Nobody says anything, so we give up once the deadline has passed.
+        long start = System.nanoTime();
+        Assert.assertTrue(mailbox.receiveAllBlame().get(two).isEmpty());
+        Assert.assertTrue(System.nanoTime() - start >= 200 * ms);
+
+        // Something comes in afterwards, which we still wait for.
+        network.messages(two).make().attach(Blame.NoFundsAtAll(three)).send(Phase.Blame, me);
+        Assert.assertEquals(1, mailbox.receiveAllBlame().get(two).size());
+    }
+}
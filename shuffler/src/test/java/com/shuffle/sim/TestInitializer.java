@@ -31,10 +31,10 @@ public class TestInitializer {
 
         @Override
         public Integer unmarshall(Bytestring string) {
-            if (string.bytes.length != 4) return null;
+            if (string.length() != 4) return null;
 
             int i = 0;
-            for (byte b : string.bytes) {
+            for (byte b : string.bytes()) {
                 i = (i << 8) + b;
             }
 
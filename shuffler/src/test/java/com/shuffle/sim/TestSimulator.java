@@ -0,0 +1,104 @@
+package com.shuffle.sim;
+
+import com.shuffle.bitcoin.SigningKey;
+import com.shuffle.bitcoin.Transaction;
+import com.shuffle.mock.InsecureRandom;
+import com.shuffle.mock.MockCrypto;
+import com.shuffle.mock.MockSessionIdentifier;
+import com.shuffle.monad.Either;
+import com.shuffle.monitor.MetricsRegistry;
+import com.shuffle.protocol.blame.Matrix;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests for running simulations.
+ */
+public class TestSimulator {
+
+    // Several simulations can run at the same time without getting in each other's way.
+    @Test
+    public void testConcurrent() throws InterruptedException, ExecutionException {
+        ExecutorService exec = Executors.newCachedThreadPool();
+
+        try {
+            List<Future<Map<SigningKey, Either<Transaction, Matrix>>>> runs = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                final InitialState init = InitialState.successful(
+                        new MockSessionIdentifier("concurrent" + i), 17,
+                        new MockCrypto(new InsecureRandom(i)), 4 + i);
+
+                runs.add(exec.submit(new Callable<Map<SigningKey, Either<Transaction, Matrix>>>() {
+                    @Override
+                    public Map<SigningKey, Either<Transaction, Matrix>> call() {
+                        return Simulator.run(init);
+                    }
+                }));
+            }
+
+            for (int i = 0; i < runs.size(); i++) {
+                Map<SigningKey, Either<Transaction, Matrix>> results = runs.get(i).get();
+                Assert.assertNotNull(results);
+                Assert.assertEquals(4 + i, results.size());
+
+                for (Either<Transaction, Matrix> result : results.values()) {
+                    Assert.assertNotNull(result.first);
+                    Assert.assertNull(result.second);
+                }
+            }
+        } finally {
+            exec.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSweep() {
+        ExecutorService exec = Executors.newCachedThreadPool();
+
+        try {
+            Sweep.Result result = Sweep.run("successful", InitialState.successful(
+                    new MockSessionIdentifier("sweep"), 17,
+                    new MockCrypto(new InsecureRandom(5)), 5), exec);
+
+            Assert.assertTrue(result.complete);
+            Assert.assertEquals(5, result.players);
+            Assert.assertTrue(result.messages > 0);
+            Assert.assertTrue(result.bytes > result.messages);
+        } finally {
+            exec.shutdownNow();
+        }
+    }
+
+    // Traffic is counted in bytes for each player, both ways.
+    @Test
+    public void testTraffic() {
+        ExecutorService exec = Executors.newCachedThreadPool();
+
+        try {
+            MetricsRegistry metrics = new MetricsRegistry();
+            Map<SigningKey, Either<Transaction, Matrix>> results = Simulator.run(
+                    InitialState.successful(new MockSessionIdentifier("traffic"), 17,
+                            new MockCrypto(new InsecureRandom(7)), 4), exec, metrics);
+
+            Assert.assertEquals(4, results.size());
+            for (SigningKey sk : results.keySet()) {
+                MetricsRegistry.Traffic t = metrics.traffic(sk.VerificationKey());
+                Assert.assertNotNull(t);
+                Assert.assertTrue(t.sent.sum() > t.sent.count());
+                Assert.assertTrue(t.received.sum() > t.received.count());
+            }
+        } finally {
+            exec.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.shuffle.sim;
+
+import com.shuffle.bitcoin.SigningKey;
+import com.shuffle.bitcoin.Transaction;
+import com.shuffle.bitcoin.VerificationKey;
+import com.shuffle.chan.packet.Packet;
+import com.shuffle.chan.packet.Signed;
+import com.shuffle.mock.InsecureRandom;
+import com.shuffle.mock.MockCrypto;
+import com.shuffle.mock.MockSessionIdentifier;
+import com.shuffle.monad.Either;
+import com.shuffle.monitor.Metrics;
+import com.shuffle.player.P;
+import com.shuffle.protocol.blame.Matrix;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for simulating rounds over a network with a clock of its own.
+ */
+public class TestVirtualNetwork {
+    private static final long ms = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static VirtualNetwork<VerificationKey, Signed<Packet<VerificationKey, P>>> network(
+            VirtualNetwork.Link link, long seed) {
+        return Simulator.network(VirtualNetwork.<VerificationKey>uniform(link), seed);
+    }
+
+    // A round with slow links takes much less time to simulate than it would take for real.
+    @Test
+    public void testLatency() {
+        VirtualNetwork<VerificationKey, Signed<Packet<VerificationKey, P>>> network
+                = network(new VirtualNetwork.Link(300 * ms, 100 * ms, 100000, 0), 1);
+
+        InitialState init = InitialState.successful(
+                new MockSessionIdentifier("latency"), 17, new MockCrypto(new InsecureRandom(1)), 6)
+                .timeout(10000);
+
+        long start = System.nanoTime();
+        Map<SigningKey, Either<Transaction, Matrix>> results
+                = Simulator.run(init, network, Metrics.none);
+        long elapsed = System.nanoTime() - start;
+
+        Assert.assertNotNull(results);
+        Assert.assertEquals(6, results.size());
+        for (Either<Transaction, Matrix> result : results.values()) {
+            Assert.assertNotNull(result.first);
+        }
+
+        // There are several phases that each require at least one message to cross a link.
+        Assert.assertTrue(network.nanoTime() > 1000 * ms);
+        Assert.assertTrue(elapsed < network.nanoTime());
+    }
+
+    // When a message is too late, the players stop waiting by the network's clock.
+    @Test
+    public void testTimeout() {
+        VirtualNetwork<VerificationKey, Signed<Packet<VerificationKey, P>>> network
+                = network(new VirtualNetwork.Link(5000 * ms, 0, 0, 0), 2);
+
+        InitialState init = InitialState.successful(
+                new MockSessionIdentifier("timeout"), 17, new MockCrypto(new InsecureRandom(2)), 3)
+                .timeout(1000);
+
+        long start = System.nanoTime();
+        Simulator.run(init, network, Metrics.none);
+        long elapsed = System.nanoTime() - start;
+
+        Assert.assertTrue(network.nanoTime() >= 1000 * ms);
+        Assert.assertTrue(elapsed < 1000 * ms);
+    }
+
+    // The same simulation with the same seed always has the same outcome, even when
+    // messages are lost at random.
+    @Test
+    public void testDeterministic() {
+        String last = null;
+        long time = -1;
+
+        for (int i = 0; i < 3; i++) {
+            VirtualNetwork<VerificationKey, Signed<Packet<VerificationKey, P>>> network
+                    = network(new VirtualNetwork.Link(50 * ms, 50 * ms, 0, 0.05), 3);
+
+            InitialState init = InitialState.successful(
+                    new MockSessionIdentifier("deterministic"), 17,
+                    new MockCrypto(new InsecureRandom(3)), 5).timeout(500);
+
+            Map<SigningKey, Either<Transaction, Matrix>> results
+                    = Simulator.run(init, network, Metrics.none);
+
+            Assert.assertNotNull(results);
+            StringBuilder outcome = new StringBuilder();
+            for (SigningKey sk : new TreeSet<>(results.keySet())) {
+                Either<Transaction, Matrix> result = results.get(sk);
+                outcome.append(sk).append(": ")
+                        .append(result.first != null ? "success" : result.second).append("\n");
+            }
+
+            if (last != null) {
+                Assert.assertEquals(last, outcome.toString());
+                Assert.assertEquals(time, network.nanoTime());
+            }
+
+            last = outcome.toString();
+            time = network.nanoTime();
+        }
+    }
+}